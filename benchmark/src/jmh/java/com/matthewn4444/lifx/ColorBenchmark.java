@@ -0,0 +1,56 @@
+package com.matthewn4444.lifx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Color text and averaging, as objects and packed
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColorBenchmark {
+    private static final int Colors = 50;
+
+    private HSBKColor mColor;
+    private HSBKColor[] mColors;
+    private long[] mPacked;
+
+    @Setup
+    public void setup() {
+        mColor = new HSBKColor(120.5f, 0.75f, 0.5f, 3500);
+        mColors = new HSBKColor[Colors];
+        mPacked = new long[Colors];
+        for (int i = 0; i < Colors; i++) {
+            mColors[i] = new HSBKColor(i * 7 % 360, 1, i / (float) Colors, 2500 + i * 100);
+            mPacked[i] = mColors[i].toPacked();
+        }
+    }
+
+    @Benchmark
+    public HSBKColor fromFormattedString() {
+        return HSBKColor.fromFormattedString("hue:120.5 saturation:0.75 brightness:0.5 kelvin:3500");
+    }
+
+    @Benchmark
+    public String formatString() {
+        return mColor.toString();
+    }
+
+    @Benchmark
+    public HSBKColor averageOfColors() {
+        return HSBKColor.averageOfColors(mColors);
+    }
+
+    @Benchmark
+    public long averagePacked() {
+        return HSBKPacked.average(mPacked, 0, Colors);
+    }
+}
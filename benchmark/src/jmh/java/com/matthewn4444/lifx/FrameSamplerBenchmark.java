@@ -0,0 +1,67 @@
+package com.matthewn4444.lifx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a 1080p frame into 32 region colors
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrameSamplerBenchmark {
+    private static final int Width = 1920;
+    private static final int Height = 1080;
+
+    @Param({"1", "4"})
+    public int bands;
+
+    @Param({"1", "2"})
+    public int step;
+
+    private int[] mPixels;
+    private long[] mColors;
+    private HSBKFrameSampler mSampler;
+    private ExecutorService mExecutor;
+
+    @Setup
+    public void setup() {
+        mPixels = new int[Width * Height];
+        Random random = new Random(1);
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = random.nextInt() | 0xFF000000;
+        }
+        mSampler = new HSBKFrameSampler(Width, Height, HSBKFrameSampler.Region.grid(Width, Height, 8, 4));
+        mColors = new long[mSampler.getRegionCount()];
+        if (bands > 1) {
+            mExecutor = Executors.newFixedThreadPool(bands);
+            mSampler.setExecutor(mExecutor, bands);
+        }
+        mSampler.setStep(step);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long[] sample() throws InterruptedException {
+        mSampler.sample(mPixels, 0, Width, mColors);
+        return mColors;
+    }
+}
@@ -0,0 +1,56 @@
+package com.matthewn4444.lifx.lan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading lan packets, both should not allocate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LanCodecBenchmark {
+    private ByteBuffer mOut;
+    private ByteBuffer mLightState;
+    private LIFXLanMessage mMessage;
+
+    @Setup
+    public void setup() {
+        mOut = ByteBuffer.allocateDirect(LIFXLanCodec.MaxPacketSize).order(ByteOrder.LITTLE_ENDIAN);
+        mMessage = new LIFXLanMessage();
+
+        LIFXLanMessage state = new LIFXLanMessage(LIFXLanMessage.LightState);
+        state.mHue = 21845;
+        state.mSaturation = 65535;
+        state.mBrightness = 32768;
+        state.mKelvin = 3500;
+        state.mLevel = LIFXLanMessage.PowerOn;
+        state.setLabel("Left Lamp");
+        mLightState = ByteBuffer.allocateDirect(LIFXLanCodec.MaxPacketSize).order(ByteOrder.LITTLE_ENDIAN);
+        LIFXLanCodec.encode(state, mLightState);
+        mLightState.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeSetColor() {
+        mOut.clear();
+        LIFXLanCodec.encodeSetColor(mOut, 0x123456789AL, 42, 7, false, 21845, 65535, 32768, 3500, 100);
+        return mOut;
+    }
+
+    @Benchmark
+    public LIFXLanMessage decodeLightState() {
+        mLightState.rewind();
+        LIFXLanCodec.decode(mLightState, mMessage);
+        return mMessage;
+    }
+}
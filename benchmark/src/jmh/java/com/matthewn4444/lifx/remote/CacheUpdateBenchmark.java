@@ -0,0 +1,56 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying the response of a state change to the cache, as the worker does after every
+ * SetState, with every cached bulb in the response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CacheUpdateBenchmark {
+    @Param({"10", "100", "1000"})
+    public int bulbs;
+
+    private LIFXRemote mRemote;
+    private LIFXBulb[] mResults;
+    private LIFXState[] mStates;
+    private int mNext;
+
+    @Setup
+    public void setup() throws IOException, ParseException {
+        mRemote = new LIFXRemote("token", null);
+        LIFXState all = new LIFXState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null,
+                LIFXState.BrightnessNoChange, 0);
+        mRemote.getBulbRegistry().replaceAll(Payloads.parse(Payloads.listLights(bulbs), all).operations[0].getBulbs());
+        mResults = Payloads.parse(Payloads.setStateResults(bulbs), all).operations[0].getBulbs();
+
+        // Change the color every time so the cache always has something to update
+        mStates = new LIFXState[] {
+                new LIFXState(LIFXState.SelectorAll, LIFXState.PowerOn, new HSBKColor(120, 1, 0.5f, 3500), 0.5f, 0),
+                new LIFXState(LIFXState.SelectorAll, LIFXState.PowerOn, new HSBKColor(240, 1, 0.8f, 3500), 0.8f, 0)
+        };
+    }
+
+    @Benchmark
+    public LIFXBulb[] updateCachedBulbs() {
+        // The update writes the cached bulbs into the response so give it a fresh copy
+        LIFXBulb[] results = mResults.clone();
+        mRemote.updateCachedBulbsWithResponseBulbsAndState(results, mStates[mNext++ & 1]);
+        return results;
+    }
+}
@@ -0,0 +1,116 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binary codec against json for a ListLights response and a batch of states, the sizes
+ * of both are listed in the README
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodecBenchmark {
+    @Param({"10", "100", "1000"})
+    public int bulbs;
+
+    private String mJson;
+    private LIFXState mListState;
+    private LIFXRemoteResponse mResponse;
+    private byte[] mBinary;
+    private LIFXState[] mStates;
+    private byte[] mBinaryStates;
+
+    @Setup
+    public void setup() throws IOException, ParseException, JSONException {
+        mJson = Payloads.listLights(bulbs);
+        mListState = new LIFXState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null,
+                LIFXState.BrightnessNoChange, 0);
+        mResponse = Payloads.parse(mJson, mListState);
+        mBinary = encodeResponse();
+
+        mStates = new LIFXState[Math.min(bulbs, LIFXState.MaxStateSize)];
+        for (int i = 0; i < mStates.length; i++) {
+            mStates[i] = new LIFXState(LIFXBulbRegistry.SelectorId + Payloads.id(i), LIFXState.PowerOn,
+                    new HSBKColor(i * 7 % 360, 1, 0.5f, 3500), 0.5f, 1000);
+        }
+        mBinaryStates = encodeStates();
+    }
+
+    @Benchmark
+    public LIFXRemoteResponse parseJsonResponse() throws IOException, ParseException {
+        return Payloads.parse(mJson, mListState);
+    }
+
+    @Benchmark
+    public LIFXRemoteResponse decodeBinaryResponse() throws IOException {
+        return new LIFXBinaryCodec.Reader(new ByteArrayInputStream(mBinary)).readResponse();
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryResponse() throws IOException {
+        return encodeResponse();
+    }
+
+    @Benchmark
+    public String formatJsonStates() throws JSONException {
+        return formatStates();
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryStates() throws IOException {
+        return encodeStates();
+    }
+
+    @Benchmark
+    public LIFXState[] decodeBinaryStates() throws IOException {
+        LIFXBinaryCodec.Reader reader = new LIFXBinaryCodec.Reader(new ByteArrayInputStream(mBinaryStates));
+        LIFXState[] states = new LIFXState[mStates.length];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = reader.readState();
+        }
+        return states;
+    }
+
+    private byte[] encodeResponse() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bulbs * 128);
+        LIFXBinaryCodec.Writer writer = new LIFXBinaryCodec.Writer(out);
+        writer.writeResponse(mResponse);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private byte[] encodeStates() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mStates.length * 32);
+        LIFXBinaryCodec.Writer writer = new LIFXBinaryCodec.Writer(out);
+        for (LIFXState state : mStates) {
+            writer.writeState(state);
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private String formatStates() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (LIFXState state : mStates) {
+            array.put(state.formatJson(true));
+        }
+        return array.toString();
+    }
+}
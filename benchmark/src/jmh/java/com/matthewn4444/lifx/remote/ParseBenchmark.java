@@ -0,0 +1,48 @@
+package com.matthewn4444.lifx.remote;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading ListLights responses with the streaming reader and, as a baseline, by building an
+ * org.json tree first like the library used to
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+    @Param({"10", "100", "1000"})
+    public int bulbs;
+
+    private String mPayload;
+    private LIFXState mState;
+
+    @Setup
+    public void setup() {
+        mPayload = Payloads.listLights(bulbs);
+        mState = new LIFXState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null,
+                LIFXState.BrightnessNoChange, 0);
+    }
+
+    @Benchmark
+    public LIFXRemoteResponse parseListLights() throws IOException, ParseException {
+        return Payloads.parse(mPayload, mState);
+    }
+
+    @Benchmark
+    public LIFXRemoteResponse parseListLightsJsonTree() throws JSONException, ParseException {
+        return new LIFXRemoteResponse(new JSONArray(mPayload), 200, mState);
+    }
+}
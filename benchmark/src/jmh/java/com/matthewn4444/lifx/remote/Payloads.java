@@ -0,0 +1,75 @@
+package com.matthewn4444.lifx.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Locale;
+
+/**
+ * Server responses for the benchmarks, built from a recorded ListLights bulb
+ */
+final class Payloads {
+    private static final String RecordedId = "d073d5000000";
+
+    private Payloads() {
+    }
+
+    static String id(int i) {
+        return String.format(Locale.US, "d073d5%06x", i);
+    }
+
+    /**
+     * @param count number of bulbs
+     * @return ListLights response with the recorded bulb repeated with different ids
+     */
+    static String listLights(int count) {
+        String bulb = recordedBulb();
+        StringBuilder sb = new StringBuilder(count * (bulb.length() + 2));
+        sb.append('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(bulb.replace(RecordedId, id(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * @param count number of bulbs
+     * @return SetState response for the bulbs
+     */
+    static String setStateResults(int count) {
+        StringBuilder sb = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":\"").append(id(i)).append("\",\"label\":\"Lamp ").append(i)
+                    .append("\",\"status\":\"ok\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    static LIFXRemoteResponse parse(String json, LIFXState state) throws IOException, ParseException {
+        return LIFXRemoteResponse.read(new LIFXJsonReader(new StringReader(json)), 200, state);
+    }
+
+    private static String recordedBulb() {
+        InputStream in = Payloads.class.getResourceAsStream("/list_lights_bulb.json");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the recorded bulb", e);
+        }
+    }
+}
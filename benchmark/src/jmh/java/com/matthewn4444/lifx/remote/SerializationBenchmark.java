@@ -0,0 +1,52 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the json sent for state changes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializationBenchmark {
+    @Param({"1", "50"})
+    public int states;
+
+    private LIFXState mState;
+    private LIFXCommand mCommand;
+
+    @Setup
+    public void setup() {
+        LIFXState[] array = new LIFXState[states];
+        for (int i = 0; i < states; i++) {
+            array[i] = new LIFXState(LIFXBulbRegistry.SelectorId + Payloads.id(i), LIFXState.PowerOn,
+                    new HSBKColor(i * 7 % 360, 1, 0.5f, 3500), 0.5f, 1000);
+        }
+        mState = array[0];
+        mCommand = states == 1 ? new LIFXCommand(LIFXCommand.SetState, array)
+                : new LIFXCommand(LIFXCommand.SetStates, array);
+    }
+
+    @Benchmark
+    public JSONObject formatJson() throws JSONException {
+        return mState.formatJson(true);
+    }
+
+    @Benchmark
+    public String buildJsonData() throws JSONException {
+        return mCommand.buildJsonData();
+    }
+}
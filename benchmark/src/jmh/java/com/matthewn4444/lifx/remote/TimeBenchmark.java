@@ -0,0 +1,22 @@
+package com.matthewn4444.lifx.remote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the times of a bulb, done for every bulb in a ListLights response
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimeBenchmark {
+    @Benchmark
+    public Calendar parseTime() throws ParseException {
+        return LIFXBulb.parseTime("2015-03-02T08:53:02.867+00:00");
+    }
+}
@@ -0,0 +1,155 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a LIFXRemote against LIFXMockCloud and reports the throughput and latency of commands.
+ * Latency is measured from when a command is given to the remote until its future finishes, so
+ * it includes the time waiting in the queue and for the rate limiter. Settings are given as
+ * name=value arguments, see Defaults.
+ */
+public class LIFXLoadTest {
+    private static final String[][] Defaults = {
+            { "bulbs", "100" },         // Virtual lightbulbs in the mock
+            { "requests", "2000" },     // Commands to send
+            { "concurrency", "16" },    // Commands waiting for an answer at the same time
+            { "workers", "4" },         // LIFXRemote worker threads
+            { "batch", "0" },           // LIFXRemote batch window in ms
+            { "latency", "20" },        // Shortest server latency in ms
+            { "jitter", "10" },         // Random extra server latency in ms
+            { "ratelimit", "0" },       // Mock requests allowed every minute, 0 for no limit
+            { "offline", "0" },         // Ratio of lightbulbs that are offline
+            { "errors", "0" },          // Ratio of requests the mock fails with 503
+            { "mix", "state" },         // state, states, toggle or mixed
+    };
+
+    private final Map<String, String> mSettings;
+
+    public LIFXLoadTest(String[] args) {
+        mSettings = new HashMap<>();
+        for (String[] setting : Defaults) {
+            mSettings.put(setting[0], setting[1]);
+        }
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0 || !mSettings.containsKey(arg.substring(0, index))) {
+                throw new IllegalArgumentException("Unknown setting: " + arg);
+            }
+            mSettings.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LIFXLoadTest(args).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        int requests = getInt("requests");
+        LIFXMockCloud mock = new LIFXMockCloud(getInt("bulbs"));
+        mock.setLatency(getInt("latency"), getInt("latency") + getInt("jitter"));
+        mock.setRateLimit(getInt("ratelimit"), LIFXRateLimiter.DefaultPeriod);
+        mock.setOfflineRatio(Float.parseFloat(mSettings.get("offline")));
+        mock.setErrorRatio(Float.parseFloat(mSettings.get("errors")), 0);
+        mock.start(0);
+
+        // Without a limit in the mock the client should not pace itself to the cloud's limit either
+        int rateLimit = getInt("ratelimit");
+        LIFXRemote remote = new LIFXRemote("mock-token", new LIFXKeepAliveTransport(), new LIFXRateLimiter(
+                rateLimit > 0 ? rateLimit : Integer.MAX_VALUE, LIFXRateLimiter.DefaultPeriod));
+        remote.setApiUrl(mock.getApiUrl());
+        remote.setWorkerCount(getInt("workers"));
+        remote.setBatchWindow(getInt("batch"));
+        remote.setRefreshInterval(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+        remote.start();
+        remote.listAllLights().get();
+        long startRequests = mock.getRequestCount();
+
+        final long[] latencies = new long[requests];
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(requests);
+        final Semaphore inFlight = new Semaphore(getInt("concurrency"));
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            final int index = i;
+            final long sent = System.nanoTime();
+            send(remote, mock, i).addCallback(new LIFXCommandFuture.Callback() {
+                @Override
+                public void onFinished(LIFXRemoteResponse response) {
+                    finish();
+                }
+
+                @Override
+                public void onError(LIFXResponseException e) {
+                    errors.incrementAndGet();
+                    finish();
+                }
+
+                private void finish() {
+                    latencies[index] = System.nanoTime() - sent;
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        LIFXMetrics.Snapshot metrics = remote.getMetrics().snapshot();
+        remote.destroy();
+        mock.stop();
+
+        Arrays.sort(latencies);
+        System.out.println("Settings: " + mSettings);
+        System.out.println(String.format(Locale.US, "Commands: %d in %.2f s, %.1f commands/s, %d errors",
+                requests, elapsed / 1e9, requests / (elapsed / 1e9), errors.get()));
+        System.out.println(String.format(Locale.US, "Requests: %d, %d rate limited, %d failed",
+                mock.getRequestCount() - startRequests, mock.getRateLimitedCount(), mock.getFailedCount()));
+        System.out.println(String.format(Locale.US, "Latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                latencies[latencies.length - 1] / 1e6));
+        System.out.println("Remote metrics (times in ms):");
+        System.out.print(metrics);
+    }
+
+    private LIFXCommandFuture send(LIFXRemote remote, LIFXMockCloud mock, int i) {
+        String mix = mSettings.get("mix");
+        if (mix.equals("mixed")) {
+            mix = i % 10 == 0 ? "toggle" : i % 10 < 4 ? "states" : "state";
+        }
+        String id = LIFXBulbRegistry.SelectorId + mock.getBulbId(i % mock.getBulbCount());
+        HSBKColor color = new HSBKColor(i * 7 % 360, 1, 1, HSBKColor.DEFAULT_KELVIN);
+        switch (mix) {
+            case "state":
+                return remote.setState(id, LIFXState.PowerOn, color, 0.5f, 0);
+            case "states":
+                LIFXState[] states = new LIFXState[Math.min(LIFXState.MaxStateSize, mock.getBulbCount())];
+                for (int j = 0; j < states.length; j++) {
+                    states[j] = new LIFXState(LIFXBulbRegistry.SelectorId + mock.getBulbId(j),
+                            LIFXState.PowerOn, color, 0.5f, 0);
+                }
+                return remote.setStates(states);
+            case "toggle":
+                return remote.togglePower(id);
+        }
+        throw new IllegalArgumentException("Unknown mix: " + mix);
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(mSettings.get(name));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(p * sorted.length) - 1));
+        return sorted[index] / 1e6;
+    }
+}
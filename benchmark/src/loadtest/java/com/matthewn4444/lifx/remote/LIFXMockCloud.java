@@ -0,0 +1,537 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the LIFX cloud to test against without a network or real lightbulbs.
+ * It serves the list, state, states, toggle, pulse and breathe endpoints for a fleet of virtual
+ * lightbulbs, waits a configurable time before answering, sends the rate limit headers and
+ * answers state changes with 207 multi-status like the cloud does. Point a remote at it with
+ * LIFXRemote.setApiUrl(mock.getApiUrl()).
+ */
+public class LIFXMockCloud {
+    public static final String ApiPath = "/v1/lights/";
+    public static final int MultiStatus = 207;
+    private static final int Groups = 8;
+    private static final String[] Locations = { "Home", "Office" };
+
+    static {
+        // The server writes the headers and body separately, without this the client waits for
+        // the delayed ack of the headers on every request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final class VirtualBulb {
+        final String id;
+        final String uuid;
+        final String label;
+        final String group;
+        final String location;
+        boolean on;
+        float hue;
+        float saturation;
+        float brightness;
+        int kelvin;
+        boolean offline;
+
+        VirtualBulb(int index) {
+            id = String.format(Locale.US, "d073d5%06x", index);
+            uuid = String.format(Locale.US, "8fa5f072-af97-44ed-ae54-%012x", index);
+            label = "Lamp " + index;
+            group = "Room " + (index % Groups);
+            location = Locations[index % Locations.length];
+            on = true;
+            brightness = 1;
+            kelvin = HSBKColor.DEFAULT_KELVIN;
+        }
+    }
+
+    private final class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                mRequests.incrementAndGet();
+                simulateLatency();
+                String auth = exchange.getRequestHeaders().getFirst("Authorization");
+                if (auth == null || !auth.startsWith("Bearer ") || auth.length() == 7) {
+                    send(exchange, 401, error("Invalid token"));
+                    return;
+                }
+                if (!takeRateLimit(exchange)) {
+                    mRateLimited.incrementAndGet();
+                    send(exchange, LIFXRateLimiter.TooManyRequests, error("Rate limit exceeded"));
+                    return;
+                }
+                if (failRandomly()) {
+                    mFailed.incrementAndGet();
+                    if (mErrorRetryAfter > 0) {
+                        exchange.getResponseHeaders().set("Retry-After", String.valueOf(mErrorRetryAfter));
+                    }
+                    send(exchange, 503, error("Service unavailable"));
+                    return;
+                }
+                route(exchange);
+            } catch (JSONException e) {
+                send(exchange, 422, error("Invalid json: " + e.getMessage()));
+            } catch (RuntimeException e) {
+                send(exchange, 500, error(e.toString()));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private final List<VirtualBulb> mBulbs;
+    private final Random mRandom;
+    private final String mLastSeen;
+    private final AtomicLong mRequests;
+    private final AtomicLong mRateLimited;
+    private final AtomicLong mFailed;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    private volatile long mMinLatency;
+    private volatile long mMaxLatency;
+    private volatile float mErrorRatio;
+    private volatile int mErrorRetryAfter;
+
+    // Fixed window rate limit, guarded by this
+    private int mRateLimit;
+    private long mRatePeriod;
+    private long mWindowStart;
+    private int mWindowCount;
+
+    /**
+     * @param bulbCount number of virtual lightbulbs, their ids are d073d5 followed by the index
+     */
+    public LIFXMockCloud(int bulbCount) {
+        mBulbs = new ArrayList<>(bulbCount);
+        for (int i = 0; i < bulbCount; i++) {
+            mBulbs.add(new VirtualBulb(i));
+        }
+        mRandom = new Random();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'+00:00'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        mLastSeen = format.format(new Date());
+        mRequests = new AtomicLong();
+        mRateLimited = new AtomicLong();
+        mFailed = new AtomicLong();
+    }
+
+    /**
+     * Wait before answering each request, a random time between min and max
+     * @param min time in ms
+     * @param max time in ms
+     */
+    public void setLatency(long min, long max) {
+        mMinLatency = Math.max(0, min);
+        mMaxLatency = Math.max(mMinLatency, max);
+    }
+
+    /**
+     * Answer 429 after a number of requests in each period, the default is no limit
+     * @param limit requests allowed every period, 0 for no limit
+     * @param period time in ms, the cloud uses 60 seconds
+     */
+    public synchronized void setRateLimit(int limit, long period) {
+        mRateLimit = limit;
+        mRatePeriod = period;
+        mWindowStart = System.currentTimeMillis();
+        mWindowCount = 0;
+    }
+
+    /**
+     * Answer some requests with 503 like an overloaded server, to test retries
+     * @param ratio of requests that fail from 0.0 to 1.0
+     * @param retryAfter seconds sent in the Retry-After header, 0 to not send it
+     */
+    public void setErrorRatio(float ratio, int retryAfter) {
+        mErrorRatio = ratio;
+        mErrorRetryAfter = retryAfter;
+    }
+
+    /**
+     * Take lightbulbs offline, state changes then answer with a status of offline for them
+     * @param ratio of lightbulbs that are offline from 0.0 to 1.0, picked at random
+     */
+    public void setOfflineRatio(float ratio) {
+        synchronized (mBulbs) {
+            for (VirtualBulb bulb : mBulbs) {
+                bulb.offline = mRandom.nextFloat() < ratio;
+            }
+        }
+    }
+
+    /**
+     * Start answering requests on the loopback address
+     * @param port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be used
+     */
+    public synchronized void start(int port) throws IOException {
+        if (mServer != null) {
+            return;
+        }
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mServer.createContext(ApiPath, new Handler());
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    public synchronized void stop() {
+        if (mServer != null) {
+            mServer.stop(0);
+            mExecutor.shutdownNow();
+            mServer = null;
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * @return base url to give to LIFXRemote.setApiUrl()
+     */
+    public synchronized String getApiUrl() {
+        if (mServer == null) {
+            throw new IllegalStateException("Mock cloud is not started");
+        }
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + ApiPath;
+    }
+
+    public int getBulbCount() {
+        return mBulbs.size();
+    }
+
+    /**
+     * @param index of the lightbulb
+     * @return id of the virtual lightbulb
+     */
+    public String getBulbId(int index) {
+        return mBulbs.get(index).id;
+    }
+
+    /**
+     * @return number of requests received
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return number of requests answered with 429
+     */
+    public long getRateLimitedCount() {
+        return mRateLimited.get();
+    }
+
+    /**
+     * @return number of requests answered with 503 by setErrorRatio()
+     */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    private void route(HttpExchange exchange) throws IOException, JSONException {
+        String method = exchange.getRequestMethod();
+        String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8")
+                .substring(ApiPath.length());
+        if (path.equals("states") && method.equals("PUT")) {
+            setStates(exchange, new JSONObject(readBody(exchange)));
+            return;
+        }
+        int slash = path.indexOf('/');
+        String selector = slash >= 0 ? path.substring(0, slash) : path;
+        String action = slash >= 0 ? path.substring(slash + 1) : "";
+        List<VirtualBulb> bulbs = select(selector);
+        if (bulbs.isEmpty()) {
+            send(exchange, 404, error("Could not find light with selector '" + selector + "'."));
+            return;
+        }
+
+        JSONObject body = method.equals("GET") ? null : parseBody(readBody(exchange));
+        if (action.isEmpty() && method.equals("GET")) {
+            JSONArray array = new JSONArray();
+            synchronized (mBulbs) {
+                for (VirtualBulb bulb : bulbs) {
+                    array.put(toJson(bulb));
+                }
+            }
+            send(exchange, 200, array.toString());
+        } else if (action.equals("state") && method.equals("PUT")) {
+            JSONObject json = new JSONObject();
+            json.put("results", apply(bulbs, LIFXState.fromJson(body), body));
+            send(exchange, MultiStatus, json.toString());
+        } else if (action.equals("toggle") && method.equals("POST")) {
+            JSONObject json = new JSONObject();
+            json.put("results", toggle(bulbs));
+            send(exchange, MultiStatus, json.toString());
+        } else if ((action.equals("effects/pulse") || action.equals("effects/breathe")) && method.equals("POST")) {
+            // The effect does not change the state after it finishes unless persist is set
+            JSONObject json = new JSONObject();
+            json.put("results", results(bulbs, null));
+            send(exchange, MultiStatus, json.toString());
+        } else {
+            send(exchange, 404, error("Unknown endpoint: " + method + " " + path));
+        }
+    }
+
+    private void setStates(HttpExchange exchange, JSONObject body) throws IOException, JSONException {
+        JSONArray states = body.getJSONArray("states");
+        JSONObject defaults = body.optJSONObject("defaults");
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < states.length(); i++) {
+            JSONObject stateJson = states.getJSONObject(i);
+            if (defaults != null) {
+                for (String key : JSONObject.getNames(defaults)) {
+                    if (!stateJson.has(key)) {
+                        stateJson.put(key, defaults.get(key));
+                    }
+                }
+            }
+            JSONObject operation = new JSONObject();
+            operation.put("operation", stateJson);
+            operation.put("results", apply(select(stateJson.getString("selector")),
+                    LIFXState.fromJson(stateJson), stateJson));
+            results.put(operation);
+        }
+        JSONObject json = new JSONObject();
+        json.put("results", results);
+        send(exchange, MultiStatus, json.toString());
+    }
+
+    private JSONArray apply(List<VirtualBulb> bulbs, LIFXState state, JSONObject json) throws JSONException {
+        // The color text fills in what it does not set, only take the brightness when it is given
+        boolean colorBrightness = state.color != null && json.getString("color").contains("brightness");
+        synchronized (mBulbs) {
+            for (VirtualBulb bulb : bulbs) {
+                if (bulb.offline) {
+                    continue;
+                }
+                if (state.powerState != LIFXState.PowerNoChange) {
+                    bulb.on = state.powerState == LIFXState.PowerOn;
+                }
+                if (state.color != null) {
+                    bulb.hue = state.color.hue();
+                    bulb.saturation = state.color.saturation();
+                    bulb.kelvin = state.color.kelvin();
+                    if (colorBrightness) {
+                        bulb.brightness = state.color.brightness();
+                    }
+                }
+                if (state.brightness != LIFXState.BrightnessNoChange) {
+                    bulb.brightness = state.brightness;
+                }
+            }
+        }
+        return results(bulbs, null);
+    }
+
+    private JSONArray toggle(List<VirtualBulb> bulbs) throws JSONException {
+        boolean on = true;
+        synchronized (mBulbs) {
+            // Turn all off if any are on like the cloud does
+            for (VirtualBulb bulb : bulbs) {
+                if (bulb.on && !bulb.offline) {
+                    on = false;
+                }
+            }
+            for (VirtualBulb bulb : bulbs) {
+                if (!bulb.offline) {
+                    bulb.on = on;
+                }
+            }
+        }
+        return results(bulbs, on ? "on" : "off");
+    }
+
+    private JSONArray results(List<VirtualBulb> bulbs, String power) throws JSONException {
+        JSONArray results = new JSONArray();
+        synchronized (mBulbs) {
+            for (VirtualBulb bulb : bulbs) {
+                JSONObject result = new JSONObject();
+                result.put("id", bulb.id);
+                result.put("label", bulb.label);
+                result.put("status", bulb.offline ? "offline" : "ok");
+                if (power != null && !bulb.offline) {
+                    result.put("power", power);
+                }
+                results.put(result);
+            }
+        }
+        return results;
+    }
+
+    private JSONObject toJson(VirtualBulb bulb) throws JSONException {
+        JSONObject color = new JSONObject();
+        color.put("hue", bulb.hue);
+        color.put("saturation", bulb.saturation);
+        color.put("kelvin", bulb.kelvin);
+        JSONObject group = new JSONObject();
+        group.put("id", Integer.toHexString(bulb.group.hashCode()));
+        group.put("name", bulb.group);
+        JSONObject location = new JSONObject();
+        location.put("id", Integer.toHexString(bulb.location.hashCode()));
+        location.put("name", bulb.location);
+
+        JSONObject json = new JSONObject();
+        json.put("id", bulb.id);
+        json.put("uuid", bulb.uuid);
+        json.put("label", bulb.label);
+        json.put("connected", !bulb.offline);
+        json.put("power", bulb.on ? "on" : "off");
+        json.put("color", color);
+        json.put("brightness", bulb.brightness);
+        json.put("group", group);
+        json.put("location", location);
+        json.put("last_seen", mLastSeen);
+        json.put("seconds_since_seen", 0);
+        return json;
+    }
+
+    /**
+     * Find the lightbulbs of a selector, a comma separated list of all, id:, label:, group:,
+     * group_id:, location: or location_id: selectors
+     */
+    private List<VirtualBulb> select(String selector) {
+        List<VirtualBulb> bulbs = new ArrayList<>();
+        synchronized (mBulbs) {
+            for (VirtualBulb bulb : mBulbs) {
+                for (String part : selector.split(",")) {
+                    if (matches(bulb, part)) {
+                        bulbs.add(bulb);
+                        break;
+                    }
+                }
+            }
+        }
+        return bulbs;
+    }
+
+    private static boolean matches(VirtualBulb bulb, String selector) {
+        if (selector.equals(LIFXState.SelectorAll)) {
+            return true;
+        }
+        int colon = selector.indexOf(':');
+        if (colon < 0) {
+            return false;
+        }
+        String value = selector.substring(colon + 1);
+        switch (selector.substring(0, colon)) {
+            case "id":
+                return bulb.id.equalsIgnoreCase(value);
+            case "label":
+                return bulb.label.equals(value);
+            case "group":
+                return bulb.group.equals(value);
+            case "group_id":
+                return Integer.toHexString(bulb.group.hashCode()).equals(value);
+            case "location":
+                return bulb.location.equals(value);
+            case "location_id":
+                return Integer.toHexString(bulb.location.hashCode()).equals(value);
+        }
+        return false;
+    }
+
+    private boolean failRandomly() {
+        if (mErrorRatio <= 0) {
+            return false;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextFloat() < mErrorRatio;
+        }
+    }
+
+    private void simulateLatency() {
+        long latency = mMinLatency;
+        if (mMaxLatency > mMinLatency) {
+            synchronized (mRandom) {
+                latency += (long) (mRandom.nextDouble() * (mMaxLatency - mMinLatency));
+            }
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Count the request in the current window and add the rate limit headers
+     * @return false if the request is over the limit
+     */
+    private synchronized boolean takeRateLimit(HttpExchange exchange) {
+        if (mRateLimit <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mWindowStart >= mRatePeriod) {
+            mWindowStart = now;
+            mWindowCount = 0;
+        }
+        boolean allowed = mWindowCount < mRateLimit;
+        if (allowed) {
+            mWindowCount++;
+        }
+        long reset = (mWindowStart + mRatePeriod + 999) / 1000;
+        exchange.getResponseHeaders().set("X-RateLimit-Limit", String.valueOf(mRateLimit));
+        exchange.getResponseHeaders().set("X-RateLimit-Remaining", String.valueOf(mRateLimit - mWindowCount));
+        exchange.getResponseHeaders().set("X-RateLimit-Reset", String.valueOf(reset));
+        return allowed;
+    }
+
+    private static JSONObject parseBody(String body) throws JSONException {
+        return body.isEmpty() ? new JSONObject() : new JSONObject(body);
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + JSONObject.quote(message) + "}";
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] data = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, data.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(data);
+        out.close();
+    }
+}
@@ -0,0 +1,19 @@
+package android.util;
+
+/**
+ * Stand-in for the android logger so the library runs on the JVM, only warnings are printed
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+}
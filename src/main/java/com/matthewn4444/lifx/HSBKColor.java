@@ -37,40 +37,30 @@ public class HSBKColor {
         return color;
     }
 
+    /**
+     * Average colors around the color wheel, see HSBKPacked.average()
+     * @param colors to average
+     * @return average color or null if there are no colors
+     */
     public static HSBKColor averageOfColors(HSBKColor[] colors) {
         if (colors.length == 0) {
             return null;
         }
-
-        float hueXTotal = 0;
-        float hueYTotal = 0;
-        float saturationTotal = 0;
-        float brightnessTotal = 0;
-        long kelvinTotal = 0;
-
-        for (HSBKColor aColor : colors) {
-            hueXTotal += Math.sin(aColor.mHue * Math.PI / 180.0);
-            hueYTotal += Math.cos(aColor.mHue * Math.PI / 180.0);
-            saturationTotal += aColor.mSaturation;
-            brightnessTotal += aColor.mBrightness;
-
-            if (aColor.mKelvin == 0) {
-                kelvinTotal += 3500;
-            } else {
-                kelvinTotal += aColor.mKelvin;
-            }
+        long[] packed = new long[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            packed[i] = colors[i].toPacked();
         }
+        return fromPacked(HSBKPacked.average(packed, 0, packed.length));
+    }
 
-        float M_1_PI = (float) (1.0f / Math.PI);
-
-        float hue = (float) (Math.atan2(hueXTotal, hueYTotal) * 0.5 * M_1_PI);
-        if (hue < 0.0)
-            hue += 1.0;
-        float saturation = saturationTotal / colors.length;
-        float brightness = brightnessTotal / colors.length;
-        int kelvin = (int) (kelvinTotal / colors.length);
-
-        return new HSBKColor(hue, saturation, brightness, kelvin);
+    /**
+     * @param color packed color, see HSBKPacked
+     * @return new color
+     */
+    public static HSBKColor fromPacked(long color) {
+        HSBKColor c = getDefault();
+        c.setPacked(color);
+        return c;
     }
 
     public HSBKColor(float hue, float saturation, float brightness, int kelvin) {
@@ -81,6 +71,14 @@ public class HSBKColor {
         mEnableKelvin = true;
     }
 
+    public HSBKColor(HSBKColor color) {
+        mHue = color.mHue;
+        mSaturation = color.mSaturation;
+        mBrightness = color.mBrightness;
+        mKelvin = color.mKelvin;
+        mEnableKelvin = color.mEnableKelvin;
+    }
+
     public HSBKColor(JSONObject json) throws JSONException {
         setHue(json.has("hue") ? (float) json.getDouble("hue") : 0f);
         setSaturation(mSaturation = json.has("saturation") ? (float) json.getDouble("saturation") : 0f);
@@ -94,30 +92,7 @@ public class HSBKColor {
     }
 
     public HSBKColor(int r, int g, int b) {
-        float _r = (r & 0xFF) / 255f;
-        float _g = (g & 0xFF) / 255f;
-        float _b = (b & 0xFF) / 255f;
-
-        float max = Math.max(Math.max(_r, _g), _b);
-        float min = Math.min(Math.min(_r, _g), _b);
-        float diff = max - min;
-
-        mBrightness = max;
-        mSaturation = max != 0 ? diff / max : 0;
-
-        if (diff == 0) {
-            mHue = 0;
-        } else {
-            if (max == _r) {
-                mHue = (_g - _b) / diff + (_g < _b ? 6 : 0);
-            } else if (max == _g) {
-                mHue = (_b - _r) / diff + 2;
-            } else {
-                mHue = (_r - _g) / diff + 4;
-            }
-            mHue *= 60;
-        }
-        mKelvin = DEFAULT_KELVIN;
+        setPacked(HSBKPacked.fromRgb(((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF), DEFAULT_KELVIN));
         mEnableKelvin = false;
     }
 
@@ -149,8 +124,31 @@ public class HSBKColor {
         mKelvin = kelvin;
     }
 
+    /**
+     * Set all the values from a packed color without allocating
+     * @param color packed color, see HSBKPacked
+     */
+    public void setPacked(long color) {
+        mHue = HSBKPacked.hueDegrees(color);
+        mSaturation = HSBKPacked.fromFraction16(HSBKPacked.saturation(color));
+        mBrightness = HSBKPacked.fromFraction16(HSBKPacked.brightness(color));
+        mKelvin = HSBKPacked.kelvin(color);
+    }
+
+    /**
+     * Get the color as the 16 bit values the lightbulbs use
+     * @return packed color, see HSBKPacked
+     */
+    public long toPacked() {
+        return HSBKPacked.fromHSBK(mHue, mSaturation, mBrightness, mKelvin);
+    }
+
     public void enableKelvin(boolean flag) {
+        mEnableKelvin = flag;
+    }
 
+    public boolean isKelvinEnabled() {
+        return mEnableKelvin;
     }
 
     public float hue() {
@@ -177,7 +175,7 @@ public class HSBKColor {
     public String toString() {
         String text = "hue:" + mHue + " saturation:" + mSaturation + " brightness:" + mBrightness;
         if (mEnableKelvin) {
-            text += "kelvin:" + mKelvin;
+            text += " kelvin:" + mKelvin;
         }
         return text;
     }
@@ -0,0 +1,393 @@
+package com.matthewn4444.lifx;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Turns frames of ARGB pixels, such as screen captures or video, into one color for each region
+ * of the frame. Every pixel is read once and added to the sums of the regions it is in. Hues are
+ * averaged around the color wheel using the color vector of each pixel, so red between 350 and
+ * 10 degrees stays red and grey pixels, which have no hue, do not pull the hue towards red.
+ * Large frames can be split into bands of rows that are summed on an executor. A sampler
+ * works on one frame at a time.
+ */
+public class HSBKFrameSampler {
+    public static final int DefaultParallelThreshold = 1 << 18;
+
+    // Sums kept for each region
+    private static final int SumX = 0;
+    private static final int SumY = 1;
+    private static final int SumChroma = 2;
+    private static final int SumMax = 3;
+    private static final int SumCount = 4;
+    private static final int SumSize = 5;
+
+    /**
+     * A rectangle of the frame in pixels
+     */
+    public static final class Region {
+        public final int left;
+        public final int top;
+        public final int right;
+        public final int bottom;
+
+        public Region(int left, int top, int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Invalid region size: " + width + "x" + height);
+            }
+            this.left = left;
+            this.top = top;
+            right = left + width;
+            bottom = top + height;
+        }
+
+        /**
+         * Split a frame into a grid of regions, from left to right and top to bottom
+         * @param width of the frame
+         * @param height of the frame
+         * @param columns number of regions across
+         * @param rows number of regions down
+         * @return regions
+         */
+        public static Region[] grid(int width, int height, int columns, int rows) {
+            Region[] regions = new Region[columns * rows];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    int left = c * width / columns;
+                    int top = r * height / rows;
+                    regions[r * columns + c] = new Region(left, top, (c + 1) * width / columns - left,
+                            (r + 1) * height / rows - top);
+                }
+            }
+            return regions;
+        }
+    }
+
+    /**
+     * Sums the rows of one band of the frame
+     */
+    private final class Band implements Callable<Void> {
+        final long[] sums;
+        final int[] row;
+        int top;
+        int bottom;
+        int[] pixels;
+        int offset;
+        int stride;
+        IntBuffer buffer;
+
+        Band() {
+            sums = new long[mRegionCount * SumSize];
+            row = new int[mWidth];
+        }
+
+        @Override
+        public Void call() {
+            Arrays.fill(sums, 0);
+            for (int y = top; y < bottom; y += mStep) {
+                int[] spans = mRowSpans[y];
+                if (spans.length == 0) {
+                    continue;
+                }
+                int[] line;
+                int start;
+                if (pixels != null) {
+                    line = pixels;
+                    start = offset + y * stride;
+                } else {
+                    buffer.position(offset + y * stride);
+                    buffer.get(row, 0, mWidth);
+                    line = row;
+                    start = 0;
+                }
+                for (int s = 0; s < spans.length; s += 3) {
+                    addPixels(line, start + spans[s], start + spans[s + 1], sums, spans[s + 2] * SumSize);
+                }
+            }
+            return null;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRegionCount;
+
+    // For each row the regions in it as triples of left, right and region, rows that have the
+    // same regions share the array
+    private final int[][] mRowSpans;
+
+    private final List<Band> mBands;
+    private final long[] mTotal;
+    private final long[] mColors;
+    private ExecutorService mExecutor;
+    private int mParallelThreshold;
+    private int mStep;
+    private int mKelvin;
+
+    /**
+     * @param width of the frames in pixels
+     * @param height of the frames in pixels
+     * @param regions to get a color for, they can overlap and are clipped to the frame
+     */
+    public HSBKFrameSampler(int width, int height, Region[] regions) {
+        mWidth = width;
+        mHeight = height;
+        mRegionCount = regions.length;
+        mRowSpans = buildSpans(width, height, regions);
+        mBands = new ArrayList<>();
+        mBands.add(new Band());
+        mTotal = new long[regions.length * SumSize];
+        mColors = new long[regions.length];
+        mParallelThreshold = DefaultParallelThreshold;
+        mStep = 1;
+        mKelvin = HSBKColor.DEFAULT_KELVIN;
+    }
+
+    /**
+     * Sum large frames on an executor
+     * @param executor runs the bands, null to use the calling thread only
+     * @param bands number of bands to split the frame into, usually the number of cores
+     */
+    public void setExecutor(ExecutorService executor, int bands) {
+        if (bands < 1) {
+            throw new IllegalArgumentException("Invalid number of bands: " + bands);
+        }
+        mExecutor = executor;
+        int count = executor != null ? bands : 1;
+        while (mBands.size() < count) {
+            mBands.add(new Band());
+        }
+        while (mBands.size() > count) {
+            mBands.remove(mBands.size() - 1);
+        }
+    }
+
+    /**
+     * @param pixels frames with at least this many pixels are split into bands
+     */
+    public void setParallelThreshold(int pixels) {
+        mParallelThreshold = pixels;
+    }
+
+    /**
+     * Only read every few rows and columns, lighting rarely needs every pixel
+     * @param step 1 reads every pixel, 2 reads a quarter of them
+     */
+    public void setStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Invalid step: " + step);
+        }
+        mStep = step;
+    }
+
+    /**
+     * @param kelvin given to every color, pixels do not have a white point
+     */
+    public void setKelvin(int kelvin) {
+        mKelvin = HSBKPacked.clampKelvin(kelvin);
+    }
+
+    public int getRegionCount() {
+        return mRegionCount;
+    }
+
+    /**
+     * Get the color of each region of a frame
+     * @param pixels ARGB pixels, the alpha is ignored
+     * @param offset of the first pixel
+     * @param stride number of pixels from one row to the next
+     * @param out packed color of each region, black for regions outside the frame
+     * @throws InterruptedException when interrupted waiting for the executor
+     */
+    public void sample(int[] pixels, int offset, int stride, long[] out) throws InterruptedException {
+        if (offset + (mHeight - 1) * stride + mWidth > pixels.length) {
+            throw new IllegalArgumentException("Frame is smaller than " + mWidth + "x" + mHeight);
+        }
+        run(pixels, null, offset, stride, out);
+    }
+
+    /**
+     * Get the color of each region of a frame
+     * @param pixels ARGB pixels from the position of the buffer, it is not moved
+     * @param stride number of pixels from one row to the next
+     * @param out packed color of each region, black for regions outside the frame
+     * @throws InterruptedException when interrupted waiting for the executor
+     */
+    public void sample(IntBuffer pixels, int stride, long[] out) throws InterruptedException {
+        if ((mHeight - 1) * stride + mWidth > pixels.remaining()) {
+            throw new IllegalArgumentException("Frame is smaller than " + mWidth + "x" + mHeight);
+        }
+        if (pixels.hasArray()) {
+            run(pixels.array(), null, pixels.arrayOffset() + pixels.position(), stride, out);
+        } else {
+            run(null, pixels, pixels.position(), stride, out);
+        }
+    }
+
+    /**
+     * Get the color of each region of a frame whose rows follow each other
+     * @param pixels ARGB pixels, the alpha is ignored
+     * @param out color of each region, the colors are changed instead of created
+     * @throws InterruptedException when interrupted waiting for the executor
+     */
+    public void sample(int[] pixels, HSBKColor[] out) throws InterruptedException {
+        sample(pixels, 0, mWidth, mColors);
+        for (int i = 0; i < mRegionCount; i++) {
+            out[i].setPacked(mColors[i]);
+        }
+    }
+
+    private void run(int[] pixels, IntBuffer buffer, int offset, int stride, long[] out)
+            throws InterruptedException {
+        int bands = (long) mWidth * mHeight / ((long) mStep * mStep) >= mParallelThreshold ? mBands.size() : 1;
+        for (int i = 0; i < bands; i++) {
+            Band band = mBands.get(i);
+            band.pixels = pixels;
+            band.buffer = buffer != null ? buffer.duplicate() : null;
+            band.offset = offset;
+            band.stride = stride;
+
+            // Start each band on a sampled row
+            band.top = alignRow(i * mHeight / bands);
+            band.bottom = (i + 1) * mHeight / bands;
+        }
+
+        if (bands == 1) {
+            mBands.get(0).call();
+        } else {
+            try {
+                for (Future<Void> future : mExecutor.invokeAll(mBands.subList(0, bands))) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                        : new IllegalStateException(e.getCause());
+            }
+        }
+
+        Arrays.fill(mTotal, 0);
+        for (int i = 0; i < bands; i++) {
+            Band band = mBands.get(i);
+            long[] sums = band.sums;
+            for (int j = 0; j < mTotal.length; j++) {
+                mTotal[j] += sums[j];
+            }
+            band.pixels = null;
+            band.buffer = null;
+        }
+        for (int r = 0; r < mRegionCount; r++) {
+            out[r] = toColor(mTotal, r * SumSize);
+        }
+    }
+
+    private int alignRow(int y) {
+        return (y + mStep - 1) / mStep * mStep;
+    }
+
+    /**
+     * Add the pixels of one span of a row to the sums of a region. The color vector of a pixel
+     * is 2r-g-b across and g-b up, its length is the chroma of the pixel.
+     */
+    private void addPixels(int[] line, int from, int to, long[] sums, int sum) {
+        long x = 0, y = 0, chroma = 0, max = 0;
+        int count = 0;
+        for (int i = from; i < to; i += mStep) {
+            int pixel = line[i];
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            int high = Math.max(r, Math.max(g, b));
+            x += 2 * r - g - b;
+            y += g - b;
+            chroma += high - Math.min(r, Math.min(g, b));
+            max += high;
+            count++;
+        }
+        sums[sum + SumX] += x;
+        sums[sum + SumY] += y;
+        sums[sum + SumChroma] += chroma;
+        sums[sum + SumMax] += max;
+        sums[sum + SumCount] += count;
+    }
+
+    /**
+     * Turn the sums of a region into a color. The summed vector is the vector of the average
+     * rgb color, which gives the hue, the saturation and brightness are averaged separately so
+     * mixed hues do not wash out the color.
+     */
+    private long toColor(long[] sums, int sum) {
+        long count = sums[sum + SumCount];
+        if (count == 0) {
+            return HSBKPacked.pack(0, 0, 0, mKelvin);
+        }
+        long max = sums[sum + SumMax];
+        int brightness = (int) (max * HSBKPacked.MaxValue / (255 * count));
+        int saturation = max > 0 ? (int) (sums[sum + SumChroma] * HSBKPacked.MaxValue / max) : 0;
+
+        // An rgb color with the summed vector, the smallest channel is moved to 0
+        double x = sums[sum + SumX];
+        double y = sums[sum + SumY];
+        double r = (x + y) / 2;
+        double g = y;
+        double b = 0;
+        double low = Math.min(r, Math.min(g, b));
+        r -= low;
+        g -= low;
+        b -= low;
+        double high = Math.max(r, Math.max(g, b));
+        double diff = high;
+        double hue;
+        if (diff == 0) {
+            hue = 0;
+        } else if (high == r) {
+            hue = (g - b) / diff + (g < b ? 6 : 0);
+        } else if (high == g) {
+            hue = (b - r) / diff + 2;
+        } else {
+            hue = (r - g) / diff + 4;
+        }
+        return HSBKPacked.pack(HSBKPacked.toHue16((float) (hue * 60)), saturation, brightness, mKelvin);
+    }
+
+    private static int[][] buildSpans(int width, int height, Region[] regions) {
+        int[][] rows = new int[height][];
+        int[] empty = new int[0];
+        int[] previous = empty;
+        int[] spans = new int[regions.length * 3];
+        for (int y = 0; y < height; y++) {
+            int length = 0;
+            for (int r = 0; r < regions.length; r++) {
+                Region region = regions[r];
+                int left = Math.max(0, region.left);
+                int right = Math.min(width, region.right);
+                if (y >= region.top && y < region.bottom && left < right) {
+                    spans[length++] = left;
+                    spans[length++] = right;
+                    spans[length++] = r;
+                }
+            }
+            if (length == previous.length && equals(spans, previous, length)) {
+                rows[y] = previous;
+            } else {
+                previous = length == 0 ? empty : Arrays.copyOf(spans, length);
+                rows[y] = previous;
+            }
+        }
+        return rows;
+    }
+
+    private static boolean equals(int[] a, int[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,325 @@
+package com.matthewn4444.lifx;
+
+/**
+ * Colors packed into a long as the 16 bit values the lightbulbs use: hue, saturation,
+ * brightness and kelvin from the highest to the lowest 16 bits. Packed colors are plain
+ * numbers so whole frames can be kept in a long array and mixed without allocating, use
+ * HSBKColor to work with a single color as floats.
+ */
+public final class HSBKPacked {
+    public static final int MaxValue = 0xFFFF;
+
+    // The hue wraps around, 65536 would be 360 degrees which is 0 again
+    private static final int HueSteps = MaxValue + 1;
+    public static final long White = pack(0, 0, MaxValue, HSBKColor.DEFAULT_KELVIN);
+
+    // Number of shorts for each color in a short array
+    public static final int ShortsPerColor = 4;
+
+    private HSBKPacked() {
+    }
+
+    /**
+     * @param hue 0-65535 for 0-360 degrees
+     * @param saturation 0-65535
+     * @param brightness 0-65535
+     * @param kelvin 2500-9000
+     * @return packed color
+     */
+    public static long pack(int hue, int saturation, int brightness, int kelvin) {
+        return ((long) (hue & MaxValue) << 48) | ((long) (saturation & MaxValue) << 32)
+                | ((long) (brightness & MaxValue) << 16) | (kelvin & MaxValue);
+    }
+
+    /**
+     * @param hue 0-360
+     * @param saturation 0.0-1.0
+     * @param brightness 0.0-1.0
+     * @param kelvin 2500-9000
+     * @return packed color
+     */
+    public static long fromHSBK(float hue, float saturation, float brightness, int kelvin) {
+        return pack(toHue16(hue), toFraction16(saturation), toFraction16(brightness), clampKelvin(kelvin));
+    }
+
+    public static int hue(long color) {
+        return (int) (color >>> 48) & MaxValue;
+    }
+
+    public static int saturation(long color) {
+        return (int) (color >>> 32) & MaxValue;
+    }
+
+    public static int brightness(long color) {
+        return (int) (color >>> 16) & MaxValue;
+    }
+
+    public static int kelvin(long color) {
+        return (int) color & MaxValue;
+    }
+
+    /**
+     * @param color packed color
+     * @return hue in degrees 0-360
+     */
+    public static float hueDegrees(long color) {
+        return fromHue16(hue(color));
+    }
+
+    public static long withBrightness(long color, int brightness) {
+        return (color & ~((long) MaxValue << 16)) | ((long) (brightness & MaxValue) << 16);
+    }
+
+    public static long withKelvin(long color, int kelvin) {
+        return (color & ~(long) MaxValue) | (kelvin & MaxValue);
+    }
+
+    /**
+     * Convert hue in degrees to the 16 bit value
+     * @param hue degrees, wrapped into 0-360
+     * @return 0-65535
+     */
+    public static int toHue16(float hue) {
+        float wrapped = hue % 360;
+        if (wrapped < 0) {
+            wrapped += 360;
+        }
+        return Math.round(wrapped * HueSteps / 360) & MaxValue;
+    }
+
+    /**
+     * Convert the 16 bit hue to degrees
+     * @param hue 0-65535
+     * @return degrees 0-360, never 360
+     */
+    public static float fromHue16(int hue) {
+        return (hue & MaxValue) * 360f / HueSteps;
+    }
+
+    /**
+     * Convert saturation or brightness to the 16 bit value
+     * @param value 0.0-1.0, clamped
+     * @return 0-65535
+     */
+    public static int toFraction16(float value) {
+        return Math.round(Math.max(0, Math.min(1, value)) * MaxValue);
+    }
+
+    public static float fromFraction16(int value) {
+        return value / (float) MaxValue;
+    }
+
+    public static int clampKelvin(int kelvin) {
+        return Math.max(HSBKColor.MINIMUM_KELVIN, Math.min(HSBKColor.MAXIMUM_KELVIN, kelvin));
+    }
+
+    /**
+     * Convert an rgb color, the alpha is ignored
+     * @param rgb color as 0xAARRGGBB
+     * @param kelvin white point of the color
+     * @return packed color
+     */
+    public static long fromRgb(int rgb, int kelvin) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int max = Math.max(Math.max(r, g), b);
+        int min = Math.min(Math.min(r, g), b);
+        int diff = max - min;
+
+        float hue;
+        if (diff == 0) {
+            hue = 0;
+        } else if (max == r) {
+            hue = (float) (g - b) / diff + (g < b ? 6 : 0);
+        } else if (max == g) {
+            hue = (float) (b - r) / diff + 2;
+        } else {
+            hue = (float) (r - g) / diff + 4;
+        }
+        int saturation = max != 0 ? diff * MaxValue / max : 0;
+        return pack(toHue16(hue * 60), saturation, max * MaxValue / 255, clampKelvin(kelvin));
+    }
+
+    /**
+     * Convert to an rgb color, kelvin is ignored
+     * @param color packed color
+     * @return color as 0xFFRRGGBB
+     */
+    public static int toRgb(long color) {
+        float h = hue(color) * 6f / HueSteps;
+        float s = fromFraction16(saturation(color));
+        float v = fromFraction16(brightness(color));
+        int sector = (int) h;
+        float f = h - sector;
+        float p = v * (1 - s);
+        float q = v * (1 - s * f);
+        float t = v * (1 - s * (1 - f));
+        float r, g, b;
+        switch (sector) {
+            case 0: r = v; g = t; b = p; break;
+            case 1: r = q; g = v; b = p; break;
+            case 2: r = p; g = v; b = t; break;
+            case 3: r = p; g = q; b = v; break;
+            case 4: r = t; g = p; b = v; break;
+            default: r = v; g = p; b = q; break;
+        }
+        return 0xFF000000 | (Math.round(r * 255) << 16) | (Math.round(g * 255) << 8) | Math.round(b * 255);
+    }
+
+    /**
+     * Mix two colors, the hue goes the short way around
+     * @param from color at 0
+     * @param to color at 1
+     * @param amount 0.0-1.0
+     * @return mixed color
+     */
+    public static long interpolate(long from, long to, float amount) {
+        int fromHue = hue(from);
+        int hueDiff = ((hue(to) - fromHue + 0x8000) & MaxValue) - 0x8000;
+        return pack(fromHue + Math.round(hueDiff * amount),
+                mix(saturation(from), saturation(to), amount),
+                mix(brightness(from), brightness(to), amount),
+                mix(kelvin(from), kelvin(to), amount));
+    }
+
+    /**
+     * Move the white point of a color towards a kelvin
+     * @param color packed color
+     * @param kelvin 2500-9000
+     * @param amount 0.0 keeps the color, 1.0 uses the kelvin
+     * @return color with the new kelvin
+     */
+    public static long blendKelvin(long color, int kelvin, float amount) {
+        return withKelvin(color, mix(kelvin(color), clampKelvin(kelvin), amount));
+    }
+
+    /**
+     * Average colors, hues are averaged around the color wheel so red between 350 and 10
+     * degrees stays red. A kelvin of 0 counts as the default kelvin.
+     * @param colors packed colors
+     * @param offset of the first color
+     * @param count number of colors
+     * @return average color or White if count is 0
+     */
+    public static long average(long[] colors, int offset, int count) {
+        if (count <= 0) {
+            return White;
+        }
+        double x = 0, y = 0;
+        long saturation = 0, brightness = 0, kelvin = 0;
+        for (int i = offset; i < offset + count; i++) {
+            long color = colors[i];
+            double angle = hue(color) * (2 * Math.PI / HueSteps);
+            x += Math.cos(angle);
+            y += Math.sin(angle);
+            saturation += saturation(color);
+            brightness += brightness(color);
+            int k = kelvin(color);
+            kelvin += k != 0 ? k : HSBKColor.DEFAULT_KELVIN;
+        }
+        double angle = Math.atan2(y, x);
+        if (angle < 0) {
+            angle += 2 * Math.PI;
+        }
+        int hue = (int) Math.round(angle * HueSteps / (2 * Math.PI)) & MaxValue;
+        return pack(hue, (int) (saturation / count), (int) (brightness / count), (int) (kelvin / count));
+    }
+
+    /**
+     * Mix two arrays of colors into a third, it can be one of the first two
+     * @param from colors at 0
+     * @param to colors at 1
+     * @param amount 0.0-1.0
+     * @param out mixed colors
+     * @param offset of the first color in all arrays
+     * @param count number of colors
+     */
+    public static void interpolate(long[] from, long[] to, float amount, long[] out, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            out[i] = interpolate(from[i], to[i], amount);
+        }
+    }
+
+    /**
+     * Move the white point of colors towards a kelvin
+     * @param colors packed colors
+     * @param kelvin 2500-9000
+     * @param amount 0.0 keeps the colors, 1.0 uses the kelvin
+     * @param out changed colors, can be the same array
+     * @param offset of the first color in both arrays
+     * @param count number of colors
+     */
+    public static void blendKelvin(long[] colors, int kelvin, float amount, long[] out, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            out[i] = blendKelvin(colors[i], kelvin, amount);
+        }
+    }
+
+    /**
+     * @param rgb colors as 0xAARRGGBB
+     * @param kelvin white point of the colors
+     * @param out packed colors
+     * @param offset of the first color in both arrays
+     * @param count number of colors
+     */
+    public static void fromRgb(int[] rgb, int kelvin, long[] out, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            out[i] = fromRgb(rgb[i], kelvin);
+        }
+    }
+
+    /**
+     * @param colors packed colors
+     * @param out colors as 0xFFRRGGBB
+     * @param offset of the first color in both arrays
+     * @param count number of colors
+     */
+    public static void toRgb(long[] colors, int[] out, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            out[i] = toRgb(colors[i]);
+        }
+    }
+
+    /**
+     * Write colors as hue, saturation, brightness and kelvin shorts, the layout of colors in
+     * lan packets
+     * @param colors packed colors
+     * @param out ShortsPerColor shorts for each color
+     * @param offset of the first color, the first short is at offset * ShortsPerColor
+     * @param count number of colors
+     */
+    public static void toShorts(long[] colors, short[] out, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            long color = colors[i];
+            int s = i * ShortsPerColor;
+            out[s] = (short) hue(color);
+            out[s + 1] = (short) saturation(color);
+            out[s + 2] = (short) brightness(color);
+            out[s + 3] = (short) kelvin(color);
+        }
+    }
+
+    /**
+     * Read colors written by toShorts()
+     * @param hsbk ShortsPerColor shorts for each color
+     * @param out packed colors
+     * @param offset of the first color, the first short is at offset * ShortsPerColor
+     * @param count number of colors
+     */
+    public static void fromShorts(short[] hsbk, long[] out, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            int s = i * ShortsPerColor;
+            out[i] = pack(hsbk[s], hsbk[s + 1], hsbk[s + 2], hsbk[s + 3]);
+        }
+    }
+
+    public static String toString(long color) {
+        return "hue:" + hue(color) + " saturation:" + saturation(color) + " brightness:" + brightness(color)
+                + " kelvin:" + kelvin(color);
+    }
+
+    private static int mix(int from, int to, float amount) {
+        return from + Math.round((to - from) * amount);
+    }
+}
@@ -0,0 +1,168 @@
+package com.matthewn4444.lifx;
+
+/**
+ * An animation that gives the color of each lightbulb at any time, played by LIFXEffectEngine.
+ * Colors are written into a given color so playing an effect does not allocate.
+ */
+public abstract class LIFXEffect {
+    public static final float DefaultPeak = 0.5f;
+
+    // Part of a strobe period the light is on
+    private static final float StrobeFlash = 0.1f;
+
+    public final long period;
+    public final int cycles;
+
+    /**
+     * @param period time in ms of one cycle
+     * @param cycles number of cycles to play, 0 to play until stopped
+     */
+    protected LIFXEffect(long period, int cycles) {
+        if (period <= 0 || cycles < 0) {
+            throw new IllegalArgumentException("Invalid effect: " + period + ", " + cycles);
+        }
+        this.period = period;
+        this.cycles = cycles;
+    }
+
+    /**
+     * Switch between two colors
+     * @param from first color of each cycle
+     * @param to color of the second half of each cycle
+     * @param period time in ms of one cycle
+     * @param cycles number of cycles, 0 for forever
+     * @return effect
+     */
+    public static LIFXEffect pulse(HSBKColor from, HSBKColor to, long period, int cycles) {
+        return new Waveform(from, to, period, cycles, DefaultPeak, false);
+    }
+
+    /**
+     * Fade smoothly between two colors
+     * @param from first color of each cycle
+     * @param to color at the peak of each cycle
+     * @param period time in ms of one cycle
+     * @param cycles number of cycles, 0 for forever
+     * @param peak where in a cycle the to color is reached from 0.0 to 1.0
+     * @return effect
+     */
+    public static LIFXEffect breathe(HSBKColor from, HSBKColor to, long period, int cycles, float peak) {
+        return new Waveform(from, to, period, cycles, peak, true);
+    }
+
+    /**
+     * Go around all the hues
+     * @param saturation 0.0-1.0
+     * @param brightness 0.0-1.0
+     * @param period time in ms to go around once
+     * @param cycles number of cycles, 0 for forever
+     * @param spread start each lightbulb at a different hue so they make a rainbow
+     * @return effect
+     */
+    public static LIFXEffect colorCycle(float saturation, float brightness, long period, int cycles, boolean spread) {
+        return new ColorCycle(saturation, brightness, period, cycles, spread);
+    }
+
+    /**
+     * Flash a color briefly once every period and stay dark in between
+     * @param color to flash
+     * @param period time in ms between flashes
+     * @param cycles number of flashes, 0 for forever
+     * @return effect
+     */
+    public static LIFXEffect strobe(HSBKColor color, long period, int cycles) {
+        HSBKColor dark = new HSBKColor(color);
+        dark.setBrightness(0);
+        return new Waveform(color, dark, period, cycles, StrobeFlash, false);
+    }
+
+    /**
+     * Get the color of a lightbulb at a time of the effect
+     * @param time in ms since the effect started
+     * @param index of the lightbulb in the effect
+     * @param count number of lightbulbs in the effect
+     * @param out color to write into
+     */
+    public abstract void colorAt(long time, int index, int count, HSBKColor out);
+
+    /**
+     * @param time in ms since the effect started
+     * @return if all the cycles were played
+     */
+    public boolean isFinished(long time) {
+        return cycles > 0 && time >= period * cycles;
+    }
+
+    /**
+     * @param time in ms since the effect started
+     * @return how far into the current cycle from 0.0 to 1.0
+     */
+    protected float phase(long time) {
+        return (float) (time % period) / period;
+    }
+
+    /**
+     * Mix two colors, the hue goes the short way around
+     * @param from color at 0
+     * @param to color at 1
+     * @param amount 0.0-1.0
+     * @param out color to write into
+     */
+    protected static void blend(HSBKColor from, HSBKColor to, float amount, HSBKColor out) {
+        out.setPacked(HSBKPacked.interpolate(from.toPacked(), to.toPacked(), amount));
+    }
+
+    private static final class Waveform extends LIFXEffect {
+        private final long mFrom;
+        private final long mTo;
+        private final float mPeak;
+        private final boolean mSmooth;
+
+        Waveform(HSBKColor from, HSBKColor to, long period, int cycles, float peak, boolean smooth) {
+            super(period, cycles);
+            mFrom = from.toPacked();
+            mTo = to.toPacked();
+            mPeak = Math.max(0, Math.min(1, peak));
+            mSmooth = smooth;
+        }
+
+        @Override
+        public void colorAt(long time, int index, int count, HSBKColor out) {
+            float phase = phase(time);
+            float amount;
+            if (mSmooth) {
+                // Rise until the peak and fall after it, following a cosine
+                float x = phase < mPeak ? phase / mPeak * 0.5f : 0.5f + (phase - mPeak) / (1 - mPeak) * 0.5f;
+                amount = (float) (1 - Math.cos(2 * Math.PI * x)) / 2;
+            } else {
+                amount = phase < mPeak ? 0 : 1;
+            }
+            out.setPacked(HSBKPacked.interpolate(mFrom, mTo, amount));
+        }
+    }
+
+    private static final class ColorCycle extends LIFXEffect {
+        private final float mSaturation;
+        private final float mBrightness;
+        private final boolean mSpread;
+
+        ColorCycle(float saturation, float brightness, long period, int cycles, boolean spread) {
+            super(period, cycles);
+            mSaturation = saturation;
+            mBrightness = brightness;
+            mSpread = spread;
+        }
+
+        @Override
+        public void colorAt(long time, int index, int count, HSBKColor out) {
+            float hue = phase(time) * 360;
+            if (mSpread && count > 0) {
+                hue += index * 360f / count;
+            }
+            out.setHue(hue % 360);
+            out.setSaturation(mSaturation);
+            out.setBrightness(mBrightness);
+            out.setKelvin(HSBKColor.DEFAULT_KELVIN);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.matthewn4444.lifx;
+
+import android.util.Log;
+
+import com.matthewn4444.lifx.lan.LIFXLanClient;
+import com.matthewn4444.lifx.lan.LIFXLanDevice;
+import com.matthewn4444.lifx.remote.LIFXBulbRegistry;
+import com.matthewn4444.lifx.remote.LIFXCommandFuture;
+import com.matthewn4444.lifx.remote.LIFXRemote;
+import com.matthewn4444.lifx.remote.LIFXState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays effects on lightbulbs at a fixed frame rate on its own thread. Every frame the color of
+ * each lightbulb is computed and only the lightbulbs whose color changed are given to the
+ * output. When the output is still busy with an earlier frame, or the thread wakes up later
+ * than a whole frame, frames are dropped instead of sent late so the effect keeps its timing.
+ * Use LanOutput for smooth effects, the cloud is limited to a few requests a second.
+ */
+public class LIFXEffectEngine {
+    private static final String TAG = "LIFXEffectEngine";
+    public static final int DefaultFrameRate = 20;
+    public static final int MaxFrameRate = 100;
+
+    /**
+     * Sends the colors of a frame to the lightbulbs
+     */
+    public interface FrameOutput {
+        /**
+         * The arrays are reused for the next frame so they must not be kept
+         * @param ids of the lightbulbs that changed
+         * @param colors new color of each lightbulb
+         * @param count number of lightbulbs in the arrays
+         * @param duration time in ms to fade to the colors, the length of a frame
+         * @return false if the output cannot take the frame yet, then it is dropped
+         */
+        boolean sendFrame(String[] ids, HSBKColor[] colors, int count, long duration);
+    }
+
+    /**
+     * Listener for effects that played all their cycles
+     */
+    public interface OnEffectFinishedListener {
+        /**
+         * Called from the frame thread
+         * @param effect that finished
+         */
+        void onEffectFinished(LIFXEffect effect);
+    }
+
+    /**
+     * Sends frames over the local network without waiting for answers and without allocating
+     */
+    public static class LanOutput implements FrameOutput {
+        private final LIFXLanClient mLan;
+        private final Map<String, LIFXLanDevice> mDevices;
+
+        /**
+         * @param lan started client
+         * @param devices lightbulbs the effects are played on
+         */
+        public LanOutput(LIFXLanClient lan, Collection<LIFXLanDevice> devices) {
+            mLan = lan;
+            mDevices = new HashMap<>();
+            for (LIFXLanDevice device : devices) {
+                mDevices.put(device.id(), device);
+            }
+        }
+
+        @Override
+        public boolean sendFrame(String[] ids, HSBKColor[] colors, int count, long duration) {
+            for (int i = 0; i < count; i++) {
+                LIFXLanDevice device = mDevices.get(ids[i]);
+                if (device != null) {
+                    long color = colors[i].toPacked();
+                    if (!mLan.sendColor(device, HSBKPacked.hue(color), HSBKPacked.saturation(color),
+                            HSBKPacked.brightness(color), HSBKPacked.kelvin(color), duration)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends frames through the remote as one request of states, the next frame is only taken
+     * once the server answered the last one
+     */
+    public static class CloudOutput implements FrameOutput {
+        private final LIFXRemote mRemote;
+        private LIFXCommandFuture mLast;
+
+        public CloudOutput(LIFXRemote remote) {
+            mRemote = remote;
+        }
+
+        @Override
+        public boolean sendFrame(String[] ids, HSBKColor[] colors, int count, long duration) {
+            if (mLast != null && !mLast.isDone()) {
+                return false;
+            }
+            for (int start = 0; start < count; start += LIFXState.MaxStateSize) {
+                int end = Math.min(count, start + LIFXState.MaxStateSize);
+                LIFXState[] states = new LIFXState[end - start];
+                for (int i = start; i < end; i++) {
+                    states[i - start] = new LIFXState(LIFXBulbRegistry.SelectorId + ids[i],
+                            LIFXState.PowerNoChange, new HSBKColor(colors[i]),
+                            LIFXState.BrightnessNoChange, duration);
+                }
+                mLast = mRemote.setStates(states);
+            }
+            return true;
+        }
+    }
+
+    private static final class Track {
+        final LIFXEffect effect;
+        final long start;
+        final int count;
+        int playing;
+
+        Track(LIFXEffect effect, long start, int count) {
+            this.effect = effect;
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    private static final class Slot {
+        final String id;
+        final HSBKColor color;
+        Track track;
+        int index;
+        boolean finished;
+        long sent = -1;
+        long pending;
+
+        Slot(String id) {
+            this.id = id;
+            color = HSBKColor.getDefault();
+        }
+    }
+
+    private final class FrameLoop implements Runnable {
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                long frameLength = getFrameLength();
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+
+                // Skip the frames that were missed instead of sending them late
+                long late = now - next;
+                long missed = late / frameLength;
+                next += (missed + 1) * frameLength;
+                synchronized (LIFXEffectEngine.this) {
+                    mTicks++;
+                    mJitterTotal += late % frameLength;
+                    mMaxJitter = Math.max(mMaxJitter, late % frameLength);
+                    mDroppedFrames += missed;
+                }
+                renderFrame(now, frameLength);
+            }
+        }
+    }
+
+    private final FrameOutput mOutput;
+
+    // Lightbulbs that play an effect by id, guarded by this
+    private final Map<String, Slot> mSlots;
+
+    // Reused to give the changed lightbulbs to the output, grown by play()
+    private String[] mFrameIds;
+    private HSBKColor[] mFrameColors;
+
+    // Effects that finished in the current frame, only used by the frame thread
+    private final List<LIFXEffect> mFinished;
+
+    private int mFrameRate;
+    private Thread mThread;
+    private volatile OnEffectFinishedListener mListener;
+
+    private long mFrames;
+    private long mDroppedFrames;
+    private long mSentColors;
+    private long mTicks;
+    private long mJitterTotal;
+    private long mMaxJitter;
+
+    /**
+     * @param output where frames are sent
+     */
+    public LIFXEffectEngine(FrameOutput output) {
+        mOutput = output;
+        mSlots = new HashMap<>();
+        mFrameIds = new String[0];
+        mFrameColors = new HSBKColor[0];
+        mFinished = new ArrayList<>();
+        mFrameRate = DefaultFrameRate;
+    }
+
+    public void setOnEffectFinishedListener(OnEffectFinishedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param frameRate frames per second, 1 to MaxFrameRate
+     */
+    public synchronized void setFrameRate(int frameRate) {
+        if (frameRate < 1 || frameRate > MaxFrameRate) {
+            throw new IllegalArgumentException("Invalid frame rate: " + frameRate);
+        }
+        mFrameRate = frameRate;
+    }
+
+    public synchronized int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Start the frame thread
+     */
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(new FrameLoop(), TAG);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop the frame thread and all the effects, the lightbulbs keep their last color
+     */
+    public void destroy() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mSlots.clear();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Play an effect on lightbulbs from the next frame, it replaces what they were playing
+     * @param effect to play
+     * @param ids of the lightbulbs, the order is the index given to the effect
+     */
+    public synchronized void play(LIFXEffect effect, List<String> ids) {
+        Track track = new Track(effect, System.nanoTime(), ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            String id = key(ids.get(i));
+            Slot slot = mSlots.get(id);
+            if (slot == null) {
+                slot = new Slot(id);
+                mSlots.put(id, slot);
+            } else if (!slot.finished) {
+                // A finished lightbulb was already taken off the count of its effect
+                slot.track.playing--;
+            }
+            slot.track = track;
+            slot.index = i;
+            slot.finished = false;
+            track.playing++;
+        }
+        if (mFrameIds.length < mSlots.size()) {
+            growFrame(mSlots.size());
+        }
+    }
+
+    /**
+     * Stop the effect of a lightbulb, it keeps its last color
+     * @param id of the lightbulb
+     */
+    public synchronized void stop(String id) {
+        Slot slot = mSlots.remove(key(id));
+        if (slot != null && !slot.finished) {
+            slot.track.playing--;
+        }
+    }
+
+    public synchronized void stopAll() {
+        mSlots.clear();
+    }
+
+    /**
+     * Get the number of lightbulbs playing an effect
+     * @return number of lightbulbs
+     */
+    public synchronized int getPlayingCount() {
+        return mSlots.size();
+    }
+
+    /**
+     * Get the number of frames that were given to the output
+     * @return number of frames
+     */
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Get the number of frames that were not sent because the output was busy or the frame
+     * thread woke up too late
+     * @return number of frames
+     */
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Get the number of colors sent to lightbulbs, unchanged colors are not sent
+     * @return number of colors
+     */
+    public synchronized long getSentColorCount() {
+        return mSentColors;
+    }
+
+    /**
+     * Get how late frames start on average
+     * @return time in ns
+     */
+    public synchronized long getAverageJitter() {
+        return mTicks > 0 ? mJitterTotal / mTicks : 0;
+    }
+
+    /**
+     * @return longest time in ns a frame started late
+     */
+    public synchronized long getMaxJitter() {
+        return mMaxJitter;
+    }
+
+    public synchronized void resetStats() {
+        mFrames = mDroppedFrames = mSentColors = mTicks = mJitterTotal = mMaxJitter = 0;
+    }
+
+    private synchronized long getFrameLength() {
+        return 1000000000L / mFrameRate;
+    }
+
+    private void renderFrame(long now, long frameLength) {
+        String[] ids;
+        HSBKColor[] colors;
+        int count = 0;
+        synchronized (this) {
+            if (mSlots.isEmpty()) {
+                return;
+            }
+            ids = mFrameIds;
+            colors = mFrameColors;
+            for (Slot slot : mSlots.values()) {
+                Track track = slot.track;
+                long time = (now - track.start) / 1000000;
+                if (!slot.finished && track.effect.isFinished(time)) {
+                    slot.finished = true;
+                    if (--track.playing == 0) {
+                        mFinished.add(track.effect);
+                    }
+                }
+                if (slot.finished) {
+                    // End on the first color of the effect
+                    time = 0;
+                }
+                track.effect.colorAt(time, slot.index, track.count, slot.color);
+
+                // Compare the 16 bit values so colors that look the same to the lightbulb are not sent
+                slot.pending = slot.color.toPacked();
+                if (slot.pending != slot.sent) {
+                    ids[count] = slot.id;
+                    colors[count] = slot.color;
+                    count++;
+                }
+            }
+        }
+
+        boolean sent = count == 0;
+        if (count > 0) {
+            try {
+                sent = mOutput.sendFrame(ids, colors, count, frameLength / 1000000);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to send frame", e);
+            }
+        }
+        Arrays.fill(colors, 0, count, null);
+        synchronized (this) {
+            if (sent) {
+                mFrames++;
+                mSentColors += count;
+
+                // Finished lightbulbs are kept until their last color was sent
+                Iterator<Slot> it = mSlots.values().iterator();
+                while (it.hasNext()) {
+                    Slot slot = it.next();
+                    slot.sent = slot.pending;
+                    if (slot.finished) {
+                        it.remove();
+                    }
+                }
+            } else {
+                mDroppedFrames++;
+            }
+        }
+
+        OnEffectFinishedListener listener = mListener;
+        if (listener != null) {
+            for (LIFXEffect effect : mFinished) {
+                listener.onEffectFinished(effect);
+            }
+        }
+        mFinished.clear();
+    }
+
+    private void growFrame(int size) {
+        mFrameIds = new String[size];
+        mFrameColors = new HSBKColor[size];
+    }
+
+    private static String key(String id) {
+        return id.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,500 @@
+package com.matthewn4444.lifx;
+
+import com.matthewn4444.lifx.lan.LIFXLanClient;
+import com.matthewn4444.lifx.lan.LIFXLanDevice;
+import com.matthewn4444.lifx.lan.LIFXLanDiscovery;
+import com.matthewn4444.lifx.lan.LIFXLanException;
+import com.matthewn4444.lifx.lan.LIFXLanMessage;
+import com.matthewn4444.lifx.lan.LIFXLanRequest;
+import com.matthewn4444.lifx.remote.LIFXBulb;
+import com.matthewn4444.lifx.remote.LIFXBulbRegistry;
+import com.matthewn4444.lifx.remote.LIFXCommandFuture;
+import com.matthewn4444.lifx.remote.LIFXRemote;
+import com.matthewn4444.lifx.remote.LIFXRemoteResponse;
+import com.matthewn4444.lifx.remote.LIFXResponseException;
+import com.matthewn4444.lifx.remote.LIFXState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends each command over the local network when the lightbulb can be reached there and over
+ * the cloud api otherwise. Lightbulbs become reachable on the local network when they answer
+ * discovery and stop being reachable after they do not answer a few times, then the command
+ * is sent again over the cloud unless the cloud also says the lightbulb is not connected.
+ * The path, fallbacks and latency of every command are recorded. Lightbulbs used over the local
+ * network are added to the cache of the remote by id so selectors find them before the cloud
+ * lists them.
+ */
+public class LIFXRouter implements LIFXLanClient.OnLanMessageListener {
+    public static final int DefaultMaxLanFailures = 2;
+    public static final long DefaultLanRetryTime = 60000;
+
+    public enum Path { LAN, CLOUD }
+
+    /**
+     * Listener for every routed command
+     */
+    public interface OnRouteListener {
+        /**
+         * @param selector lightbulbs of the command
+         * @param path the command was sent over
+         * @param fallback the command was sent over the cloud after failing on the local network
+         * @param latency time in ns until the command was answered
+         * @param error null if the command succeeded
+         */
+        void onRouted(String selector, Path path, boolean fallback, long latency, LIFXException error);
+    }
+
+    /**
+     * Number of commands and their latency for one path
+     */
+    public static final class PathStats {
+        private long mCount;
+        private long mFailures;
+        private long mTotalLatency;
+        private long mMaxLatency;
+
+        private PathStats() {
+        }
+
+        private PathStats(PathStats other) {
+            mCount = other.mCount;
+            mFailures = other.mFailures;
+            mTotalLatency = other.mTotalLatency;
+            mMaxLatency = other.mMaxLatency;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getFailureCount() {
+            return mFailures;
+        }
+
+        /**
+         * @return average time in ns of the successful commands, 0 if there were none
+         */
+        public long getAverageLatency() {
+            long succeeded = mCount - mFailures;
+            return succeeded > 0 ? mTotalLatency / succeeded : 0;
+        }
+
+        /**
+         * @return longest time in ns of a successful command
+         */
+        public long getMaxLatency() {
+            return mMaxLatency;
+        }
+
+        private void add(long latency, boolean failed) {
+            mCount++;
+            if (failed) {
+                mFailures++;
+            } else {
+                mTotalLatency += latency;
+                mMaxLatency = Math.max(mMaxLatency, latency);
+            }
+        }
+    }
+
+    private static final class LanEntry {
+        LIFXLanDevice device;
+        int failures;
+        long retryTime;
+    }
+
+    private final class Command {
+        final boolean toggle;
+        final int powerState;
+        final HSBKColor color;
+        final float brightness;
+        final long duration;
+
+        Command(boolean toggle, int powerState, HSBKColor color, float brightness, long duration) {
+            this.toggle = toggle;
+            this.powerState = powerState;
+            this.color = color;
+            this.brightness = brightness;
+            this.duration = duration;
+        }
+
+        LIFXLanRequest sendLan(LIFXLanDevice device) {
+            return mLan.setState(device, powerState, color, brightness, duration);
+        }
+
+        /**
+         * Get the toggle as a command that sets the power, so a fallback after it was sent
+         * cannot toggle the lightbulb twice
+         * @param on power read from the lightbulb before the toggle
+         * @return command to set the opposite power
+         */
+        Command toSetPower(boolean on) {
+            return new Command(false, on ? LIFXState.PowerOff : LIFXState.PowerOn, null,
+                    LIFXState.BrightnessNoChange, duration);
+        }
+
+        LIFXCommandFuture sendCloud(String selector) {
+            return toggle ? mRemote.togglePower(selector, duration)
+                    : mRemote.setState(selector, powerState, color, brightness, duration);
+        }
+    }
+
+    private final LIFXRemote mRemote;
+    private final LIFXLanClient mLan;
+    private final LIFXLanDiscovery mDiscovery;
+    private final Map<String, LanEntry> mLanDevices;
+    private final PathStats mLanStats;
+    private final PathStats mCloudStats;
+    private long mFallbacks;
+
+    private int mMaxLanFailures;
+    private long mLanRetryTime;
+    private OnRouteListener mRouteListener;
+    private LIFXLanClient.OnLanMessageListener mLanListener;
+
+    /**
+     * Create the router, it becomes the listener of the lan client
+     * @param remote cloud remote, its cache gives the cloud status of each lightbulb
+     * @param lan local network client
+     */
+    public LIFXRouter(LIFXRemote remote, LIFXLanClient lan) {
+        this(remote, lan, null);
+        lan.setListener(this);
+    }
+
+    /**
+     * Create the router with the lightbulbs of a discovery table, lightbulbs are added and
+     * removed as the table changes
+     * @param remote cloud remote, its cache gives the cloud status of each lightbulb
+     * @param discovery table of lightbulbs on the local network
+     */
+    public LIFXRouter(LIFXRemote remote, LIFXLanDiscovery discovery) {
+        this(remote, discovery.getClient(), discovery);
+        discovery.setLanListener(this);
+        discovery.setOnDeviceListener(new LIFXLanDiscovery.OnDeviceListener() {
+            @Override
+            public void onDeviceFound(LIFXLanDevice device) {
+                addLanDevice(device);
+            }
+
+            @Override
+            public void onDeviceLost(LIFXLanDevice device) {
+                removeLanDevice(device.id());
+            }
+        });
+        List<String> ids = new ArrayList<>();
+        synchronized (this) {
+            for (LIFXLanDevice device : discovery.getDevices()) {
+                putLanDevice(device);
+                ids.add(device.id());
+            }
+        }
+        remote.getBulbRegistry().addIds(ids);
+    }
+
+    private LIFXRouter(LIFXRemote remote, LIFXLanClient lan, LIFXLanDiscovery discovery) {
+        mRemote = remote;
+        mLan = lan;
+        mDiscovery = discovery;
+        mLanDevices = new HashMap<>();
+        mLanStats = new PathStats();
+        mCloudStats = new PathStats();
+        mMaxLanFailures = DefaultMaxLanFailures;
+        mLanRetryTime = DefaultLanRetryTime;
+    }
+
+    public void setOnRouteListener(OnRouteListener listener) {
+        mRouteListener = listener;
+    }
+
+    /**
+     * Get the messages of the lan client that the router does not use
+     * @param listener callback
+     */
+    public void setLanListener(LIFXLanClient.OnLanMessageListener listener) {
+        mLanListener = listener;
+    }
+
+    /**
+     * Set when a lightbulb stops being used over the local network
+     * @param maxFailures number of failed commands in a row
+     * @param retryTime time in ms until the local network is tried again
+     */
+    public synchronized void setLanFailurePolicy(int maxFailures, long retryTime) {
+        mMaxLanFailures = Math.max(1, maxFailures);
+        mLanRetryTime = retryTime;
+    }
+
+    /**
+     * Find lightbulbs on the local network, the ones that answer are used over the lan
+     */
+    public void discover() {
+        if (mDiscovery != null) {
+            mDiscovery.discover();
+        } else {
+            mLan.discover();
+        }
+    }
+
+    /**
+     * Use a lightbulb over the local network, it is added to the cache of the remote if the
+     * cloud has not listed it yet
+     * @param device found by discovery or from a saved table
+     */
+    public void addLanDevice(LIFXLanDevice device) {
+        synchronized (this) {
+            putLanDevice(device);
+        }
+        mRemote.getBulbRegistry().addIds(Collections.singletonList(device.id()));
+    }
+
+    public synchronized void removeLanDevice(String id) {
+        mLanDevices.remove(key(id));
+    }
+
+    /**
+     * See which path a command for the lightbulb would take right now
+     * @param id lightbulb id
+     * @return path
+     */
+    public Path getPath(String id) {
+        return getLanDevice(id) != null ? Path.LAN : Path.CLOUD;
+    }
+
+    /**
+     * See if the cloud thinks the lightbulb is connected, lightbulbs the cloud has not listed
+     * are thought to be connected
+     * @param id lightbulb id
+     * @return if the lightbulb can be reached over the cloud
+     */
+    public boolean isCloudReachable(String id) {
+        LIFXBulb bulb = mRemote.getBulb(id);
+        return bulb == null || !bulb.isListed() || (bulb.connected && bulb.status() != LIFXBulb.Status.OFFLINE
+                && bulb.status() != LIFXBulb.Status.TIMED_OUT);
+    }
+
+    public synchronized PathStats getStats(Path path) {
+        return new PathStats(path == Path.LAN ? mLanStats : mCloudStats);
+    }
+
+    /**
+     * Get the number of commands sent over the cloud after failing on the local network
+     * @return number of fallbacks
+     */
+    public synchronized long getFallbackCount() {
+        return mFallbacks;
+    }
+
+    public void turnOn(String selector, long duration) {
+        setState(selector, LIFXState.PowerOn, null, LIFXState.BrightnessNoChange, duration);
+    }
+
+    public void turnOff(String selector, long duration) {
+        setState(selector, LIFXState.PowerOff, null, LIFXState.BrightnessNoChange, duration);
+    }
+
+    public void setBrightness(String selector, float brightness, long duration) {
+        setState(selector, LIFXState.PowerNoChange, null, brightness, duration);
+    }
+
+    public void setColor(String selector, HSBKColor color, long duration) {
+        setState(selector, LIFXState.PowerNoChange, color, LIFXState.BrightnessNoChange, duration);
+    }
+
+    /**
+     * Set the state of the selected lightbulbs, each lightbulb that can be reached on the local
+     * network gets its own lan message and the rest are sent together over the cloud
+     * @param selector of which your lights to set
+     * @param powerState on, off or no change
+     * @param color HSBKColor color
+     * @param brightness level between 0.0 to 1.0
+     * @param duration time in ms
+     */
+    public void setState(String selector, int powerState, HSBKColor color, float brightness, long duration) {
+        route(new Command(false, powerState, color, brightness, duration), selector);
+    }
+
+    /**
+     * Toggle the selected lightbulbs from on to off and vice versa. The power of lightbulbs on
+     * the local network is read first and the opposite power is set, a fallback to the cloud
+     * sets that power instead of toggling again.
+     * @param selector of which your lights to toggle
+     * @param duration time in ms
+     */
+    public void togglePower(String selector, long duration) {
+        route(new Command(true, LIFXState.PowerNoChange, null, LIFXState.BrightnessNoChange, duration), selector);
+    }
+
+    @Override
+    public void onLanMessage(LIFXLanDevice device, LIFXLanMessage message) {
+        if (message.type() == LIFXLanMessage.StateService && message.service() == LIFXLanMessage.ServiceUdp) {
+            addLanDevice(device);
+        }
+        LIFXLanClient.OnLanMessageListener listener = mLanListener;
+        if (listener != null) {
+            listener.onLanMessage(device, message);
+        }
+    }
+
+    @Override
+    public void onLIFXError(LIFXLanException e) {
+        LIFXLanClient.OnLanMessageListener listener = mLanListener;
+        if (listener != null) {
+            listener.onLIFXError(e);
+        }
+    }
+
+    private void route(Command command, String selector) {
+        List<LIFXBulb> bulbs = mRemote.findBulbs(selector);
+        if (bulbs == null) {
+            // Cannot tell which lightbulbs the selector is for, let the cloud decide
+            sendCloud(command, selector, false);
+            return;
+        }
+        List<String> cloudIds = new ArrayList<>();
+        for (LIFXBulb bulb : bulbs) {
+            LIFXLanDevice device = getLanDevice(bulb.id());
+            if (device != null) {
+                sendLan(command, device);
+            } else {
+                cloudIds.add(bulb.id());
+            }
+        }
+        if (cloudIds.size() == bulbs.size()) {
+            sendCloud(command, selector, false);
+        } else if (!cloudIds.isEmpty()) {
+            sendCloud(command, idSelector(cloudIds), false);
+        }
+    }
+
+    private void sendLan(final Command command, final LIFXLanDevice device) {
+        final long start = System.nanoTime();
+        if (!command.toggle) {
+            sendLan(command, device, start);
+            return;
+        }
+        // Read the power first so the set that follows can fall back to the cloud as it is,
+        // if reading fails nothing was changed and the cloud can toggle
+        mLan.getPower(device).addCallback(new LIFXLanRequest.Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                sendLan(command.toSetPower(response.isOn()), device, start);
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+                lanFailed(device, command, start, e);
+            }
+        });
+    }
+
+    private void sendLan(final Command command, final LIFXLanDevice device, final long start) {
+        command.sendLan(device).addCallback(new LIFXLanRequest.Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                synchronized (LIFXRouter.this) {
+                    LanEntry entry = mLanDevices.get(device.id());
+                    if (entry != null) {
+                        entry.failures = 0;
+                    }
+                }
+                record(LIFXBulbRegistry.SelectorId + device.id(), Path.LAN, false, System.nanoTime() - start, null);
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+                lanFailed(device, command, start, e);
+            }
+        });
+    }
+
+    private void sendCloud(Command command, final String selector, final boolean fallback) {
+        final long start = System.nanoTime();
+        if (fallback) {
+            synchronized (this) {
+                mFallbacks++;
+            }
+        }
+        command.sendCloud(selector).addCallback(new LIFXCommandFuture.Callback() {
+            @Override
+            public void onFinished(LIFXRemoteResponse response) {
+                record(selector, Path.CLOUD, fallback, System.nanoTime() - start, null);
+            }
+
+            @Override
+            public void onError(LIFXResponseException e) {
+                record(selector, Path.CLOUD, fallback, System.nanoTime() - start, e);
+            }
+        });
+    }
+
+    private void putLanDevice(LIFXLanDevice device) {
+        LanEntry entry = mLanDevices.get(device.id());
+        if (entry == null) {
+            entry = new LanEntry();
+            mLanDevices.put(device.id(), entry);
+        }
+        entry.device = device;
+        entry.failures = 0;
+        entry.retryTime = 0;
+    }
+
+    private synchronized LIFXLanDevice getLanDevice(String id) {
+        LanEntry entry = mLanDevices.get(key(id));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.failures >= mMaxLanFailures) {
+            if (System.currentTimeMillis() < entry.retryTime && isCloudReachable(id)) {
+                return null;
+            }
+            // Give the local network another chance
+            entry.failures = mMaxLanFailures - 1;
+        }
+        return entry.device;
+    }
+
+    private void lanFailed(LIFXLanDevice device, Command command, long start, LIFXLanException e) {
+        synchronized (this) {
+            LanEntry entry = mLanDevices.get(device.id());
+            if (entry != null && ++entry.failures >= mMaxLanFailures) {
+                entry.retryTime = System.currentTimeMillis() + mLanRetryTime;
+            }
+        }
+        record(LIFXBulbRegistry.SelectorId + device.id(), Path.LAN, false, System.nanoTime() - start, e);
+        if (isCloudReachable(device.id())) {
+            sendCloud(command, LIFXBulbRegistry.SelectorId + device.id(), true);
+        }
+    }
+
+    private void record(String selector, Path path, boolean fallback, long latency, LIFXException error) {
+        synchronized (this) {
+            (path == Path.LAN ? mLanStats : mCloudStats).add(latency, error != null);
+        }
+        OnRouteListener listener = mRouteListener;
+        if (listener != null) {
+            listener.onRouted(selector, path, fallback, latency, error);
+        }
+    }
+
+    private static String idSelector(List<String> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (String id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(LIFXBulbRegistry.SelectorId).append(id);
+        }
+        return sb.toString();
+    }
+
+    private static String key(String id) {
+        return id.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,54 @@
+package com.matthewn4444.lifx.lan;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Keeps direct buffers to write packets into so sending does not allocate. Buffers are given
+ * out and taken back from a fixed size stack, when it is empty a new buffer is made and when
+ * it is full a returned buffer is dropped.
+ */
+class LIFXLanBufferPool {
+    private final ByteBuffer[] mFree;
+    private final int mBufferSize;
+    private int mCount;
+    private long mCreated;
+
+    /**
+     * @param capacity number of buffers kept
+     * @param bufferSize size of each buffer in bytes
+     */
+    LIFXLanBufferPool(int capacity, int bufferSize) {
+        mFree = new ByteBuffer[capacity];
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Get a cleared little endian buffer, give it back with release() when it was sent
+     * @return buffer
+     */
+    synchronized ByteBuffer acquire() {
+        if (mCount == 0) {
+            mCreated++;
+            return ByteBuffer.allocateDirect(mBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buffer = mFree[--mCount];
+        mFree[mCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        if (mCount < mFree.length) {
+            mFree[mCount++] = buffer;
+        }
+    }
+
+    /**
+     * Get the number of buffers that had to be made because the pool was empty
+     * @return number of buffers
+     */
+    synchronized long getCreatedCount() {
+        return mCreated;
+    }
+}
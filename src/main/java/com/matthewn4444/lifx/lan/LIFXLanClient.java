@@ -0,0 +1,687 @@
+package com.matthewn4444.lifx.lan;
+
+import android.util.Log;
+
+import com.matthewn4444.lifx.HSBKColor;
+import com.matthewn4444.lifx.remote.LIFXState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls lightbulbs on the local network with the LIFX LAN protocol over UDP, without going
+ * through the cloud api. Messages are sent from the calling thread and answers are read on
+ * one thread using a non-blocking channel. Messages that are not answered in time are sent
+ * again, see setRetry().
+ */
+public class LIFXLanClient {
+    private static final String TAG = "LIFXLanClient";
+    public static final long DefaultRetryTimeout = 250;
+    public static final int DefaultMaxAttempts = 3;
+
+    private static final int SequenceCount = 256;
+
+    // Sequence of broadcasts and messages sent without waiting, send() never uses it so their
+    // answers cannot be taken for the answer of a request
+    private static final int UnmatchedSequence = 0;
+    private static final int ReceiveBufferSize = 1024;
+    private static final int PooledBuffers = 16;
+
+    /**
+     * Listener for messages that did not answer a request, such as answers to broadcasts,
+     * and for errors that are not from a request
+     */
+    public interface OnLanMessageListener {
+        void onLanMessage(LIFXLanDevice device, LIFXLanMessage message);
+        void onLIFXError(LIFXLanException e);
+    }
+
+    private final class Receiver implements Runnable {
+        private final DatagramChannel mChannel;
+        private final Selector mSelector;
+
+        Receiver(DatagramChannel channel, Selector selector) {
+            mChannel = channel;
+            mSelector = selector;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(ReceiveBufferSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    long wait = resendExpired(mChannel);
+                    mSelector.select(wait);
+                    mSelector.selectedKeys().clear();
+
+                    SocketAddress from;
+                    buffer.clear();
+                    while ((from = mChannel.receive(buffer)) != null) {
+                        buffer.flip();
+                        if (LIFXLanCodec.isValid(buffer)) {
+                            dispatch(buffer, (InetSocketAddress) from);
+                        }
+                        buffer.clear();
+                    }
+                } catch (ClosedChannelException | ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to receive", e);
+                    notifyError(new LIFXLanException(e.getMessage()));
+                }
+            }
+        }
+    }
+
+    private final int mSource;
+    private final int mLocalPort;
+    private final InetSocketAddress mBroadcastAddress;
+    private final LIFXLanBufferPool mBufferPool;
+
+    // Requests waiting for an answer by sequence number, guarded by itself
+    private final LIFXLanRequest[] mPending;
+    private int mNextSequence;
+
+    private volatile DatagramChannel mChannel;
+    private Selector mSelector;
+    private Thread mThread;
+    private OnLanMessageListener mListener;
+    private volatile long mRetryTimeout;
+    private volatile int mMaxAttempts;
+
+    public LIFXLanClient() {
+        this(0, new InetSocketAddress("255.255.255.255", LIFXLanCodec.Port));
+    }
+
+    /**
+     * @param localPort port to receive answers on, 0 for any free port
+     * @param broadcastAddress where to send messages for all lightbulbs
+     */
+    public LIFXLanClient(int localPort, InetSocketAddress broadcastAddress) {
+        mLocalPort = localPort;
+        mBroadcastAddress = broadcastAddress;
+        mPending = new LIFXLanRequest[SequenceCount];
+        mBufferPool = new LIFXLanBufferPool(PooledBuffers, LIFXLanCodec.MaxPacketSize);
+        mRetryTimeout = DefaultRetryTimeout;
+        mMaxAttempts = DefaultMaxAttempts;
+
+        // Lightbulbs answer sources 0 and 1 by broadcast, use anything else
+        mSource = (new Random().nextInt() & 0x7FFFFFFF) | 2;
+    }
+
+    /**
+     * Get messages that did not answer a request and errors
+     * @param listener callback, called from the receiving thread
+     */
+    public void setListener(OnLanMessageListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set how long to wait for an answer before sending a message again
+     * @param timeout time in ms to wait for each attempt
+     * @param maxAttempts number of times to send a message before the request fails
+     */
+    public void setRetry(long timeout, int maxAttempts) {
+        if (timeout <= 0 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid retry: " + timeout + ", " + maxAttempts);
+        }
+        mRetryTimeout = timeout;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Open the socket and start receiving
+     * @throws IOException when the socket cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        DatagramChannel channel = DatagramChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setBroadcast(true);
+            channel.socket().bind(new InetSocketAddress(mLocalPort));
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            if (selector != null) {
+                selector.close();
+            }
+            channel.close();
+            throw e;
+        }
+        mChannel = channel;
+        mSelector = selector;
+        mThread = new Thread(new Receiver(channel, selector), TAG);
+        mThread.start();
+    }
+
+    /**
+     * Close the socket, requests still waiting for an answer fail
+     */
+    public void destroy() {
+        synchronized (this) {
+            if (mThread == null) {
+                return;
+            }
+            mThread.interrupt();
+            mThread = null;
+            try {
+                mSelector.close();
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the socket", e);
+            }
+            mSelector = null;
+            mChannel = null;
+        }
+        List<LIFXLanRequest> waiting = new ArrayList<>();
+        synchronized (mPending) {
+            for (int i = 0; i < mPending.length; i++) {
+                if (mPending[i] != null) {
+                    waiting.add(mPending[i]);
+                    mPending[i] = null;
+                }
+            }
+        }
+        for (LIFXLanRequest request : waiting) {
+            request.fail(new LIFXLanException("Client was destroyed"));
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Get the port answers are received on
+     * @return port or -1 if not running
+     */
+    public synchronized int getLocalPort() {
+        return mChannel != null ? mChannel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Send a message to a lightbulb and wait for the answer. Queries are answered with their
+     * state message, other messages with an acknowledgement.
+     * @param device lightbulb to send to
+     * @param message to send, it should not be reused
+     * @return request that finishes with the answer
+     */
+    public LIFXLanRequest send(LIFXLanDevice device, LIFXLanMessage message) {
+        message.mTarget = device.target;
+        message.mSource = mSource;
+        message.mTagged = false;
+        message.mResRequired = message.isQuery();
+        message.mAckRequired = !message.mResRequired;
+        LIFXLanRequest request = new LIFXLanRequest(this, device, message);
+
+        DatagramChannel channel;
+        Selector selector;
+        synchronized (this) {
+            channel = mChannel;
+            selector = mSelector;
+        }
+        if (channel == null) {
+            request.fail(new LIFXLanException("Client is not running"));
+            return request;
+        }
+        synchronized (mPending) {
+            int sequence = -1;
+            for (int i = 0; i < SequenceCount; i++) {
+                int s = (mNextSequence + i) % SequenceCount;
+                if (s != UnmatchedSequence && mPending[s] == null) {
+                    sequence = s;
+                    break;
+                }
+            }
+            if (sequence < 0) {
+                request.fail(new LIFXLanException("Too many requests waiting for an answer"));
+                return request;
+            }
+            mNextSequence = (sequence + 1) % SequenceCount;
+            message.mSequence = sequence;
+            mPending[sequence] = request;
+            try {
+                write(channel, request);
+            } catch (IOException e) {
+                mPending[sequence] = null;
+                request.fail(new LIFXLanException("Failed to send: " + e.getMessage()));
+                return request;
+            }
+        }
+        // Let the receiver know about the new deadline
+        selector.wakeup();
+        return request;
+    }
+
+    /**
+     * Send a message to all the lightbulbs on the network without waiting for answers.
+     * Answers are given to the listener.
+     * @param message to send
+     */
+    public void broadcast(LIFXLanMessage message) {
+        message.mTarget = 0;
+        message.mSource = mSource;
+        message.mTagged = true;
+        message.mSequence = UnmatchedSequence;
+        message.mResRequired = message.isQuery();
+        message.mAckRequired = false;
+        DatagramChannel channel;
+        synchronized (this) {
+            channel = mChannel;
+        }
+        try {
+            if (channel == null) {
+                throw new IOException("Client is not running");
+            }
+            sendPacket(channel, message, mBroadcastAddress);
+        } catch (IOException e) {
+            notifyError(new LIFXLanException("Failed to broadcast: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Ask all the lightbulbs on the network to say where they are, the answers are given to
+     * the listener as StateService messages
+     */
+    public void discover() {
+        broadcast(LIFXLanMessage.getService());
+    }
+
+    /**
+     * Send a color without waiting for an answer and without allocating, made for animations
+     * where a lost frame is replaced by the next one
+     * @param device lightbulb
+     * @param hue 0-65535 for 0-360 degrees
+     * @param saturation 0-65535
+     * @param brightness 0-65535
+     * @param kelvin 2500-9000
+     * @param duration time in ms
+     * @return false if the client is not running or the packet could not be sent
+     */
+    public boolean sendColor(LIFXLanDevice device, int hue, int saturation, int brightness, int kelvin, long duration) {
+        DatagramChannel channel = mChannel;
+        if (channel == null) {
+            return false;
+        }
+        ByteBuffer packet = mBufferPool.acquire();
+        try {
+            LIFXLanCodec.encodeSetColor(packet, device.target, mSource, UnmatchedSequence, false,
+                    hue, saturation, brightness, kelvin, duration);
+            packet.flip();
+            return channel.send(packet, device.address) > 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            mBufferPool.release(packet);
+        }
+    }
+
+    /**
+     * Send the power without waiting for an answer and without allocating
+     * @param device lightbulb
+     * @param on power
+     * @param duration time in ms
+     * @return false if the client is not running or the packet could not be sent
+     */
+    public boolean sendPower(LIFXLanDevice device, boolean on, long duration) {
+        DatagramChannel channel = mChannel;
+        if (channel == null) {
+            return false;
+        }
+        ByteBuffer packet = mBufferPool.acquire();
+        try {
+            LIFXLanCodec.encodeSetPower(packet, device.target, mSource, UnmatchedSequence, false,
+                    on ? LIFXLanMessage.PowerOn : LIFXLanMessage.PowerOff, duration);
+            packet.flip();
+            return channel.send(packet, device.address) > 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            mBufferPool.release(packet);
+        }
+    }
+
+    /**
+     * Ask a lightbulb for its service and port
+     * @param device lightbulb
+     * @return request that finishes with StateService
+     */
+    public LIFXLanRequest getService(LIFXLanDevice device) {
+        return send(device, LIFXLanMessage.getService());
+    }
+
+    /**
+     * Turn off all your lights
+     */
+    public void turnAllOff() {
+        turnAllOff(0);
+    }
+
+    /**
+     * Turn off all the lights with duration
+     * @param duration time in ms
+     */
+    public void turnAllOff(long duration) {
+        broadcast(LIFXLanMessage.setPower(false, duration));
+    }
+
+    /**
+     * Turn on all your lights
+     */
+    public void turnAllOn() {
+        turnAllOn(0);
+    }
+
+    /**
+     * Turn on all the lights with duration
+     * @param duration time in ms
+     */
+    public void turnAllOn(long duration) {
+        broadcast(LIFXLanMessage.setPower(true, duration));
+    }
+
+    public LIFXLanRequest turnOff(LIFXLanDevice device) {
+        return turnOff(device, 0);
+    }
+
+    /**
+     * Turn off a lightbulb with duration
+     * @param device lightbulb
+     * @param duration time in ms
+     * @return request
+     */
+    public LIFXLanRequest turnOff(LIFXLanDevice device, long duration) {
+        return send(device, LIFXLanMessage.setPower(false, duration));
+    }
+
+    public LIFXLanRequest turnOn(LIFXLanDevice device) {
+        return turnOn(device, 0);
+    }
+
+    /**
+     * Turn on a lightbulb with duration
+     * @param device lightbulb
+     * @param duration time in ms
+     * @return request
+     */
+    public LIFXLanRequest turnOn(LIFXLanDevice device, long duration) {
+        return send(device, LIFXLanMessage.setPower(true, duration));
+    }
+
+    /**
+     * Toggle a lightbulb from on to off and vice versa, the power is asked for first
+     * @param device lightbulb
+     * @param duration time in ms
+     * @return request that finishes when the power was set
+     */
+    public LIFXLanRequest togglePower(final LIFXLanDevice device, final long duration) {
+        final LIFXLanMessage message = LIFXLanMessage.getPower();
+        final LIFXLanRequest result = new LIFXLanRequest(null, device, message);
+        send(device, message).addCallback(new LIFXLanRequest.Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                if (!result.isDone()) {
+                    send(device, LIFXLanMessage.setPower(!response.isOn(), duration)).forwardTo(result);
+                }
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Ask a lightbulb for its color, power and label
+     * @param device lightbulb
+     * @return request that finishes with LightState
+     */
+    public LIFXLanRequest getColor(LIFXLanDevice device) {
+        return send(device, LIFXLanMessage.getColor());
+    }
+
+    /**
+     * Ask a lightbulb for its power
+     * @param device lightbulb
+     * @return request that finishes with StatePower
+     */
+    public LIFXLanRequest getPower(LIFXLanDevice device) {
+        return send(device, LIFXLanMessage.getPower());
+    }
+
+    /**
+     * Set the color of a lightbulb
+     * @param device lightbulb
+     * @param color HSBKColor color
+     * @param duration time in ms
+     * @return request
+     */
+    public LIFXLanRequest setColor(LIFXLanDevice device, HSBKColor color, long duration) {
+        return send(device, LIFXLanMessage.setColor(color, duration));
+    }
+
+    /**
+     * Set the brightness of a lightbulb, the color is asked for first to keep it
+     * @param device lightbulb
+     * @param brightness level between 0.0 to 1.0
+     * @param duration time in ms
+     * @return request that finishes when the color was set
+     */
+    public LIFXLanRequest setBrightness(final LIFXLanDevice device, final float brightness, final long duration) {
+        final LIFXLanMessage message = LIFXLanMessage.getColor();
+        final LIFXLanRequest result = new LIFXLanRequest(null, device, message);
+        send(device, message).addCallback(new LIFXLanRequest.Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                if (!result.isDone()) {
+                    send(device, LIFXLanMessage.setColor(response.hue(), response.saturation(),
+                            LIFXLanCodec.toLanFraction(brightness), response.kelvin(), duration))
+                            .forwardTo(result);
+                }
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Set the power and color of a lightbulb like LIFXRemote.setState()
+     * @param device lightbulb
+     * @param powerState LIFXState.PowerOn, PowerOff or PowerNoChange
+     * @param color HSBKColor color or null to keep the color
+     * @param brightness level between 0.0 to 1.0 or LIFXState.BrightnessNoChange
+     * @param duration time in ms
+     * @return request that finishes when the last message is answered
+     */
+    public LIFXLanRequest setState(LIFXLanDevice device, int powerState, HSBKColor color, float brightness, long duration) {
+        LIFXLanRequest colorRequest = null;
+        if (color != null) {
+            HSBKColor newColor = new HSBKColor(color);
+            if (brightness != LIFXState.BrightnessNoChange) {
+                newColor.setBrightness(brightness);
+            }
+            colorRequest = setColor(device, newColor, duration);
+        } else if (brightness != LIFXState.BrightnessNoChange) {
+            colorRequest = setBrightness(device, brightness, duration);
+        }
+        if (powerState == LIFXState.PowerNoChange) {
+            return colorRequest != null ? colorRequest : LIFXLanRequest.failed(device, null,
+                    new LIFXLanException("Nothing to change"));
+        }
+        LIFXLanRequest powerRequest = send(device, LIFXLanMessage.setPower(powerState == LIFXState.PowerOn, duration));
+        if (colorRequest == null) {
+            return powerRequest;
+        }
+        // Finish when both are answered and fail if either fails
+        final LIFXLanRequest result = new LIFXLanRequest(null, device, powerRequest.message);
+        final LIFXLanRequest other = colorRequest;
+        powerRequest.addCallback(new LIFXLanRequest.Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                other.forwardTo(result);
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    void remove(LIFXLanRequest request) {
+        synchronized (mPending) {
+            int sequence = request.message.mSequence;
+            if (mPending[sequence] == request) {
+                mPending[sequence] = null;
+            }
+        }
+    }
+
+    /**
+     * Give the packet to the request it answers or to the listener. The header is read first
+     * so packets nobody wants are not decoded.
+     * @param packet valid packet from the position of the buffer
+     * @param from address of the lightbulb
+     */
+    private void dispatch(ByteBuffer packet, InetSocketAddress from) {
+        LIFXLanRequest request = null;
+        if (LIFXLanCodec.source(packet) == mSource) {
+            int sequence = LIFXLanCodec.sequence(packet);
+            synchronized (mPending) {
+                request = mPending[sequence];
+                if (request != null && isAnswer(request.message, LIFXLanCodec.type(packet),
+                        LIFXLanCodec.target(packet))) {
+                    mPending[sequence] = null;
+                } else {
+                    request = null;
+                }
+            }
+        }
+        if (request != null) {
+            long latency = System.nanoTime() - request.mSentTime;
+            request.complete(LIFXLanCodec.decode(packet), latency);
+        } else {
+            OnLanMessageListener listener = mListener;
+            if (listener != null) {
+                LIFXLanMessage message = LIFXLanCodec.decode(packet);
+                try {
+                    listener.onLanMessage(new LIFXLanDevice(message.mTarget, from), message);
+                } catch (RuntimeException e) {
+                    // Keep the receiving thread alive for the other answers
+                    Log.w(TAG, "Lan message listener failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send again the messages that were not answered in time and fail the requests that
+     * used all their attempts
+     * @param channel to send with
+     * @return time in ms until the next message is due, 0 if nothing is waiting
+     */
+    private long resendExpired(DatagramChannel channel) {
+        List<LIFXLanRequest> expired = null;
+        long next = Long.MAX_VALUE;
+        synchronized (mPending) {
+            long now = System.nanoTime();
+            for (int i = 0; i < mPending.length; i++) {
+                LIFXLanRequest request = mPending[i];
+                if (request == null) {
+                    continue;
+                }
+                if (request.mDeadline - now <= 0) {
+                    boolean resent = false;
+                    if (request.mAttempts < mMaxAttempts) {
+                        try {
+                            write(channel, request);
+                            resent = true;
+                        } catch (IOException e) {
+                            Log.w(TAG, "Failed to send again", e);
+                        }
+                    }
+                    if (!resent) {
+                        mPending[i] = null;
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(request);
+                        continue;
+                    }
+                }
+                next = Math.min(next, request.mDeadline - now);
+            }
+        }
+        if (expired != null) {
+            for (LIFXLanRequest request : expired) {
+                request.fail(new LIFXLanException("No answer from " + request.device + " after "
+                        + request.mAttempts + " attempts"));
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    // Must be called with the pending lock held
+    private void write(DatagramChannel channel, LIFXLanRequest request) throws IOException {
+        request.mSentTime = System.nanoTime();
+        request.mDeadline = request.mSentTime + TimeUnit.MILLISECONDS.toNanos(mRetryTimeout);
+        request.mAttempts++;
+        if (!sendPacket(channel, request.message, request.device.address)) {
+            // The socket buffer is full, it counts as a lost packet and will be sent again
+            Log.w(TAG, "Socket buffer is full, " + request.message + " will be sent again");
+        }
+    }
+
+    private boolean sendPacket(DatagramChannel channel, LIFXLanMessage message, InetSocketAddress address)
+            throws IOException {
+        ByteBuffer packet = mBufferPool.acquire();
+        try {
+            LIFXLanCodec.encode(message, packet);
+            packet.flip();
+            return channel.send(packet, address) > 0;
+        } finally {
+            mBufferPool.release(packet);
+        }
+    }
+
+    private static boolean isAnswer(LIFXLanMessage request, int type, long target) {
+        if (request.mTarget != 0 && request.mTarget != target) {
+            return false;
+        }
+        return type == request.answerType();
+    }
+
+    private void notifyError(LIFXLanException error) {
+        OnLanMessageListener listener = mListener;
+        if (listener != null) {
+            try {
+                listener.onLIFXError(error);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Lan error listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.matthewn4444.lifx.lan;
+
+import com.matthewn4444.lifx.HSBKPacked;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Writes and reads the binary packets of the LIFX LAN protocol. Every packet has a 36 byte
+ * header (frame, frame address and protocol header) followed by the payload of the message
+ * type, all in little endian. The methods that take primitive values write straight into the
+ * buffer and do not allocate, so they can be used for every frame of an animation.
+ */
+public final class LIFXLanCodec {
+    public static final int Port = 56700;
+    public static final int HeaderSize = 36;
+    public static final int MaxPacketSize = HeaderSize + 52;
+
+    private static final int Protocol = 1024;
+    private static final int Addressable = 1 << 12;
+    private static final int Tagged = 1 << 13;
+    private static final int ResRequired = 1;
+    private static final int AckRequired = 1 << 1;
+    private static final int LabelSize = 32;
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    // Offsets of the header fields from the start of a packet
+    private static final int SourceOffset = 4;
+    private static final int TargetOffset = 8;
+    private static final int SequenceOffset = 23;
+    private static final int TypeOffset = 32;
+
+    private LIFXLanCodec() {
+    }
+
+    /**
+     * Get the size of the packet of a message
+     * @param type message type
+     * @return size in bytes including the header
+     */
+    public static int packetSize(int type) {
+        return HeaderSize + payloadSize(type);
+    }
+
+    /**
+     * Write a message at the position of the buffer
+     * @param message to write
+     * @param out buffer with enough room for the packet, its byte order is set to little endian
+     */
+    public static void encode(LIFXLanMessage message, ByteBuffer out) {
+        encodeHeader(out, message.mType, message.mTarget, message.mSource, message.mSequence,
+                message.mTagged, message.mAckRequired, message.mResRequired);
+        switch (message.mType) {
+            case LIFXLanMessage.StateService:
+                out.put((byte) message.mService);
+                out.putInt((int) message.mPort);
+                break;
+            case LIFXLanMessage.SetPower:
+            case LIFXLanMessage.StatePower:
+            case LIFXLanMessage.StateLightPower:
+                out.putShort((short) message.mLevel);
+                break;
+            case LIFXLanMessage.SetLightPower:
+                out.putShort((short) message.mLevel);
+                out.putInt((int) message.mDuration);
+                break;
+            case LIFXLanMessage.SetColor:
+                putSetColor(out, message.mHue, message.mSaturation, message.mBrightness,
+                        message.mKelvin, message.mDuration);
+                break;
+            case LIFXLanMessage.LightState:
+                putColor(out, message.mHue, message.mSaturation, message.mBrightness, message.mKelvin);
+                out.putShort((short) 0);
+                out.putShort((short) message.mLevel);
+                byte[] label = message.label() != null ? message.label().getBytes(Utf8) : new byte[0];
+                int length = Math.min(label.length, LabelSize);
+                out.put(label, 0, length);
+                putZeros(out, LabelSize - length);
+                out.putLong(0);
+                break;
+        }
+    }
+
+    /**
+     * Write the header of a packet, the payload of the type has to be written after it
+     * @param out buffer with enough room for the packet, its byte order is set to little endian
+     * @param type message type
+     * @param target lightbulb or 0 for all lightbulbs
+     * @param source id of the sender that is given back in answers
+     * @param sequence number given back in answers, 0-255
+     * @param tagged true when sent to all lightbulbs
+     * @param ackRequired ask for an acknowledgement
+     * @param resRequired ask for a state message
+     */
+    public static void encodeHeader(ByteBuffer out, int type, long target, int source, int sequence,
+                                    boolean tagged, boolean ackRequired, boolean resRequired) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Frame
+        out.putShort((short) packetSize(type));
+        out.putShort((short) (Protocol | Addressable | (tagged ? Tagged : 0)));
+        out.putInt(source);
+
+        // Frame address
+        out.putLong(target);
+        putZeros(out, 6);
+        out.put((byte) ((resRequired ? ResRequired : 0) | (ackRequired ? AckRequired : 0)));
+        out.put((byte) sequence);
+
+        // Protocol header
+        out.putLong(0);
+        out.putShort((short) type);
+        out.putShort((short) 0);
+    }
+
+    /**
+     * Write a SetColor packet without creating a message
+     * @param out buffer with enough room for the packet, its byte order is set to little endian
+     * @param target lightbulb or 0 for all lightbulbs
+     * @param source id of the sender
+     * @param sequence number given back in answers
+     * @param ackRequired ask for an acknowledgement
+     * @param hue 0-65535
+     * @param saturation 0-65535
+     * @param brightness 0-65535
+     * @param kelvin 2500-9000
+     * @param duration time in ms
+     */
+    public static void encodeSetColor(ByteBuffer out, long target, int source, int sequence, boolean ackRequired,
+                                      int hue, int saturation, int brightness, int kelvin, long duration) {
+        encodeHeader(out, LIFXLanMessage.SetColor, target, source, sequence, target == 0, ackRequired, false);
+        putSetColor(out, hue, saturation, brightness, kelvin, duration);
+    }
+
+    /**
+     * Write a SetLightPower packet without creating a message
+     * @param out buffer with enough room for the packet, its byte order is set to little endian
+     * @param target lightbulb or 0 for all lightbulbs
+     * @param source id of the sender
+     * @param sequence number given back in answers
+     * @param ackRequired ask for an acknowledgement
+     * @param level LIFXLanMessage.PowerOn or PowerOff
+     * @param duration time in ms
+     */
+    public static void encodeSetPower(ByteBuffer out, long target, int source, int sequence, boolean ackRequired,
+                                      int level, long duration) {
+        encodeHeader(out, LIFXLanMessage.SetLightPower, target, source, sequence, target == 0, ackRequired, false);
+        out.putShort((short) level);
+        out.putInt((int) duration);
+    }
+
+    /**
+     * Read a message from the position to the limit of the buffer
+     * @param in buffer with a packet, its byte order is set to little endian
+     * @return the message or null if the packet is not a valid LIFX packet
+     */
+    public static LIFXLanMessage decode(ByteBuffer in) {
+        LIFXLanMessage message = new LIFXLanMessage();
+        return decode(in, message) ? message : null;
+    }
+
+    /**
+     * Read a message into an existing message so nothing is allocated, the label of a
+     * LightState is only made into a string when it is asked for
+     * @param in buffer with a packet, its byte order is set to little endian
+     * @param message to fill, all its fields are replaced
+     * @return false if the packet is not a valid LIFX packet
+     */
+    public static boolean decode(ByteBuffer in, LIFXLanMessage message) {
+        if (!isValid(in)) {
+            return false;
+        }
+        int start = in.position();
+        int size = in.getShort() & 0xFFFF;
+        int protocol = in.getShort() & 0xFFFF;
+        message.mTagged = (protocol & Tagged) != 0;
+        message.mSource = in.getInt();
+        message.mTarget = in.getLong();
+        in.position(in.position() + 6);
+        int flags = in.get();
+        message.mResRequired = (flags & ResRequired) != 0;
+        message.mAckRequired = (flags & AckRequired) != 0;
+        message.mSequence = in.get() & 0xFF;
+        in.position(in.position() + 8);
+        message.mType = in.getShort() & 0xFFFF;
+        in.position(in.position() + 2);
+
+        message.mService = 0;
+        message.mPort = 0;
+        message.mLevel = 0;
+        message.mHue = message.mSaturation = message.mBrightness = message.mKelvin = 0;
+        message.mDuration = 0;
+        message.setLabel(null);
+        switch (message.mType) {
+            case LIFXLanMessage.StateService:
+                message.mService = in.get() & 0xFF;
+                message.mPort = in.getInt() & 0xFFFFFFFFL;
+                break;
+            case LIFXLanMessage.SetPower:
+            case LIFXLanMessage.StatePower:
+            case LIFXLanMessage.StateLightPower:
+                message.mLevel = in.getShort() & 0xFFFF;
+                break;
+            case LIFXLanMessage.SetLightPower:
+                message.mLevel = in.getShort() & 0xFFFF;
+                message.mDuration = in.getInt() & 0xFFFFFFFFL;
+                break;
+            case LIFXLanMessage.SetColor:
+                in.get();
+                getColor(message, in);
+                message.mDuration = in.getInt() & 0xFFFFFFFFL;
+                break;
+            case LIFXLanMessage.LightState:
+                getColor(message, in);
+                in.getShort();
+                message.mLevel = in.getShort() & 0xFFFF;
+                byte[] label = message.labelBuffer(LabelSize);
+                in.get(label, 0, LabelSize);
+                int length = 0;
+                while (length < LabelSize && label[length] != 0) {
+                    length++;
+                }
+                message.mLabelLength = length;
+                break;
+        }
+        in.position(start + size);
+        return true;
+    }
+
+    /**
+     * Check that the buffer has a whole LIFX packet from its position
+     * @param in buffer with a packet
+     * @return if the packet can be decoded
+     */
+    public static boolean isValid(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < HeaderSize) {
+            return false;
+        }
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        int size = in.getShort(start) & 0xFFFF;
+        int protocol = in.getShort(start + 2) & 0xFFFF;
+        return (protocol & 0xFFF) == Protocol && size <= in.remaining()
+                && size >= packetSize(type(in));
+    }
+
+    /**
+     * Read the type of the packet at the position of the buffer without moving it
+     * @param in buffer with a packet
+     * @return message type
+     */
+    public static int type(ByteBuffer in) {
+        return in.order(ByteOrder.LITTLE_ENDIAN).getShort(in.position() + TypeOffset) & 0xFFFF;
+    }
+
+    public static int source(ByteBuffer in) {
+        return in.order(ByteOrder.LITTLE_ENDIAN).getInt(in.position() + SourceOffset);
+    }
+
+    public static long target(ByteBuffer in) {
+        return in.order(ByteOrder.LITTLE_ENDIAN).getLong(in.position() + TargetOffset);
+    }
+
+    public static int sequence(ByteBuffer in) {
+        return in.get(in.position() + SequenceOffset) & 0xFF;
+    }
+
+    /**
+     * Convert hue in degrees to the 16 bit value
+     * @param hue 0-360
+     * @return 0-65535
+     */
+    public static int toLanHue(float hue) {
+        return HSBKPacked.toHue16(hue);
+    }
+
+    public static float fromLanHue(int hue) {
+        return HSBKPacked.fromHue16(hue);
+    }
+
+    /**
+     * Convert saturation or brightness to the 16 bit value
+     * @param value 0.0-1.0
+     * @return 0-65535
+     */
+    public static int toLanFraction(float value) {
+        return HSBKPacked.toFraction16(value);
+    }
+
+    public static float fromLanFraction(int value) {
+        return HSBKPacked.fromFraction16(value);
+    }
+
+    public static int toLanKelvin(int kelvin) {
+        return HSBKPacked.clampKelvin(kelvin);
+    }
+
+    private static int payloadSize(int type) {
+        switch (type) {
+            case LIFXLanMessage.StateService:
+                return 5;
+            case LIFXLanMessage.SetPower:
+            case LIFXLanMessage.StatePower:
+            case LIFXLanMessage.StateLightPower:
+                return 2;
+            case LIFXLanMessage.SetLightPower:
+                return 6;
+            case LIFXLanMessage.SetColor:
+                return 13;
+            case LIFXLanMessage.LightState:
+                return 52;
+            default:
+                return 0;
+        }
+    }
+
+    private static void putSetColor(ByteBuffer out, int hue, int saturation, int brightness, int kelvin, long duration) {
+        out.put((byte) 0);
+        putColor(out, hue, saturation, brightness, kelvin);
+        out.putInt((int) duration);
+    }
+
+    private static void putColor(ByteBuffer out, int hue, int saturation, int brightness, int kelvin) {
+        out.putShort((short) hue);
+        out.putShort((short) saturation);
+        out.putShort((short) brightness);
+        out.putShort((short) kelvin);
+    }
+
+    private static void getColor(LIFXLanMessage message, ByteBuffer in) {
+        message.mHue = in.getShort() & 0xFFFF;
+        message.mSaturation = in.getShort() & 0xFFFF;
+        message.mBrightness = in.getShort() & 0xFFFF;
+        message.mKelvin = in.getShort() & 0xFFFF;
+    }
+
+    private static void putZeros(ByteBuffer out, int count) {
+        for (int i = 0; i < count; i++) {
+            out.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.matthewn4444.lifx.lan;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * A lightbulb on the local network. The id is the mac address in hex, the same id the cloud
+ * api gives for the lightbulb.
+ */
+public class LIFXLanDevice {
+    public final long target;
+    public final InetSocketAddress address;
+
+    public LIFXLanDevice(long target, InetSocketAddress address) {
+        this.target = target;
+        this.address = address;
+    }
+
+    /**
+     * @param id mac address in hex such as "d073d5000000"
+     * @param address ip address and port of the lightbulb
+     */
+    public LIFXLanDevice(String id, InetSocketAddress address) {
+        this(toTarget(id), address);
+    }
+
+    public String id() {
+        return toId(target);
+    }
+
+    /**
+     * Convert the target of a packet to a lightbulb id
+     * @param target mac address as a little endian number
+     * @return mac address in lowercase hex
+     */
+    public static String toId(long target) {
+        StringBuilder sb = new StringBuilder(12);
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (target >>> (i * 8)) & 0xFF;
+            if (octet < 0x10) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(octet));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Convert a lightbulb id to the target of a packet
+     * @param id mac address in hex, separators are ignored
+     * @return mac address as a little endian number
+     */
+    public static long toTarget(String id) {
+        String hex = id.replace(":", "").replace("-", "").toLowerCase(Locale.US);
+        if (hex.length() != 12) {
+            throw new IllegalArgumentException("Invalid lightbulb id: " + id);
+        }
+        long target = 0;
+        for (int i = 0; i < 6; i++) {
+            long octet = Long.parseLong(hex.substring(i * 2, i * 2 + 2), 16);
+            target |= octet << (i * 8);
+        }
+        return target;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LIFXLanDevice)) {
+            return false;
+        }
+        LIFXLanDevice other = (LIFXLanDevice) o;
+        return target == other.target && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (target ^ (target >>> 32)) * 31 + address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id() + "@" + address;
+    }
+}
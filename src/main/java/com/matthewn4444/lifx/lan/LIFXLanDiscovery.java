@@ -0,0 +1,409 @@
+package com.matthewn4444.lifx.lan;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds lightbulbs on the local network by broadcasting GetService and keeps the address of
+ * each lightbulb that answers. Lightbulbs that have not answered within the time to live are
+ * removed. The table can be saved to a file so the next start can use the known lightbulbs
+ * right away instead of waiting for them to answer.
+ */
+public class LIFXLanDiscovery implements LIFXLanClient.OnLanMessageListener {
+    private static final String TAG = "LIFXLanDiscovery";
+    public static final long DefaultInterval = 5 * 60000;
+    public static final long DefaultTimeToLive = 24 * 60 * 60000;
+
+    private static final String FileHeader = "LIFXLanDiscovery";
+    private static final int FileVersion = 1;
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    /**
+     * Listener for lightbulbs added to and removed from the table
+     */
+    public interface OnDeviceListener {
+        /**
+         * Called when a lightbulb answers for the first time, its address changed or it was
+         * loaded from the file
+         * @param device lightbulb
+         */
+        void onDeviceFound(LIFXLanDevice device);
+
+        /**
+         * Called when a lightbulb did not answer within the time to live
+         * @param device lightbulb
+         */
+        void onDeviceLost(LIFXLanDevice device);
+    }
+
+    private static final class Entry {
+        final LIFXLanDevice device;
+        long lastSeen;
+
+        Entry(LIFXLanDevice device, long lastSeen) {
+            this.device = device;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final class Broadcaster implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                long wait;
+                synchronized (LIFXLanDiscovery.this) {
+                    if (mThread != Thread.currentThread()) {
+                        break;
+                    }
+                    wait = mInterval;
+                }
+                discover();
+                expire(System.currentTimeMillis());
+                saveIfChanged();
+                synchronized (LIFXLanDiscovery.this) {
+                    try {
+                        if (mThread == Thread.currentThread()) {
+                            LIFXLanDiscovery.this.wait(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private final LIFXLanClient mClient;
+    private final File mFile;
+
+    // Lightbulb target to its entry, guarded by this
+    private final Map<Long, Entry> mDevices;
+    private boolean mChanged;
+    private boolean mLoaded;
+
+    private long mInterval;
+    private long mTimeToLive;
+    private Thread mThread;
+    private volatile OnDeviceListener mDeviceListener;
+    private volatile LIFXLanClient.OnLanMessageListener mLanListener;
+
+    /**
+     * Create discovery for a client, it becomes the listener of the client
+     * @param client used to broadcast, has to be started to find lightbulbs
+     * @param file to keep the table in between starts, null to not save it
+     */
+    public LIFXLanDiscovery(LIFXLanClient client, File file) {
+        mClient = client;
+        mFile = file;
+        mDevices = new LinkedHashMap<>();
+        mInterval = DefaultInterval;
+        mTimeToLive = DefaultTimeToLive;
+        client.setListener(this);
+    }
+
+    public LIFXLanClient getClient() {
+        return mClient;
+    }
+
+    public void setOnDeviceListener(OnDeviceListener listener) {
+        mDeviceListener = listener;
+    }
+
+    /**
+     * Get the messages of the client that are not discovery answers
+     * @param listener callback
+     */
+    public void setLanListener(LIFXLanClient.OnLanMessageListener listener) {
+        mLanListener = listener;
+    }
+
+    /**
+     * Set how often to broadcast and how long lightbulbs are kept without answering
+     * @param interval time in ms between broadcasts
+     * @param timeToLive time in ms a lightbulb is kept after its last answer
+     */
+    public synchronized void setIntervals(long interval, long timeToLive) {
+        if (interval <= 0 || timeToLive < interval) {
+            throw new IllegalArgumentException("Invalid discovery intervals: " + interval + ", " + timeToLive);
+        }
+        mInterval = interval;
+        mTimeToLive = timeToLive;
+        notifyAll();
+    }
+
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    public synchronized long getTimeToLive() {
+        return mTimeToLive;
+    }
+
+    /**
+     * Load the saved table and start broadcasting on its own thread, the loaded lightbulbs
+     * are given to the listener before the first broadcast
+     */
+    public void start() {
+        load();
+        synchronized (this) {
+            if (mThread == null) {
+                mThread = new Thread(new Broadcaster(), TAG);
+                mThread.start();
+            }
+        }
+    }
+
+    /**
+     * Stop broadcasting and save the table
+     */
+    public void stop() {
+        synchronized (this) {
+            if (mThread != null) {
+                mThread.interrupt();
+                mThread = null;
+            }
+        }
+        saveIfChanged();
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Broadcast now instead of waiting for the next interval
+     */
+    public void discover() {
+        mClient.discover();
+    }
+
+    /**
+     * Get the lightbulbs in the table
+     * @return copy of the devices
+     */
+    public synchronized List<LIFXLanDevice> getDevices() {
+        List<LIFXLanDevice> devices = new ArrayList<>(mDevices.size());
+        for (Entry entry : mDevices.values()) {
+            devices.add(entry.device);
+        }
+        return devices;
+    }
+
+    /**
+     * @param id lightbulb id
+     * @return the device or null if it is not in the table
+     */
+    public synchronized LIFXLanDevice getDevice(String id) {
+        Entry entry = mDevices.get(LIFXLanDevice.toTarget(id));
+        return entry != null ? entry.device : null;
+    }
+
+    /**
+     * @param id lightbulb id
+     * @return time in ms the lightbulb last answered or -1 if it is not in the table
+     */
+    public synchronized long getLastSeen(String id) {
+        Entry entry = mDevices.get(LIFXLanDevice.toTarget(id));
+        return entry != null ? entry.lastSeen : -1;
+    }
+
+    public synchronized int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * Add a lightbulb to the table as if it answered now
+     * @param device lightbulb
+     */
+    public void put(LIFXLanDevice device) {
+        put(device, System.currentTimeMillis());
+    }
+
+    /**
+     * Remove the lightbulbs that have not answered within the time to live
+     * @param now current time in ms
+     */
+    public void expire(long now) {
+        List<LIFXLanDevice> lost = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = mDevices.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (now - entry.lastSeen > mTimeToLive) {
+                    it.remove();
+                    lost.add(entry.device);
+                }
+            }
+            mChanged |= !lost.isEmpty();
+        }
+        OnDeviceListener listener = mDeviceListener;
+        if (listener != null) {
+            for (LIFXLanDevice device : lost) {
+                listener.onDeviceLost(device);
+            }
+        }
+    }
+
+    /**
+     * Read the saved table once, lightbulbs already in the table are kept if they were seen
+     * later. Lightbulbs that expired while not running and invalid lines are not loaded.
+     */
+    public void load() {
+        synchronized (this) {
+            if (mLoaded || mFile == null) {
+                return;
+            }
+            mLoaded = true;
+        }
+        if (!mFile.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long timeToLive = getTimeToLive();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), Utf8));
+            String header = reader.readLine();
+            if (header == null || !header.equals(FileHeader + " " + FileVersion)) {
+                Log.w(TAG, "Ignoring table with unknown version: " + header);
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A bad line only loses its own lightbulb
+                try {
+                    String[] parts = line.split(" ");
+                    if (parts.length != 4) {
+                        throw new IOException("Expected 4 fields");
+                    }
+                    long lastSeen = Long.parseLong(parts[3]);
+                    if (now - lastSeen <= timeToLive) {
+                        // Only ip addresses are saved so this does not look up a host name
+                        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(parts[1]),
+                                Integer.parseInt(parts[2]));
+                        put(new LIFXLanDevice(parts[0], address), lastSeen);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.w(TAG, "Skipping invalid line in table: " + line, e);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load the table from " + mFile, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the table to the file if it changed since it was last saved. It is written to a
+     * temporary file first so a failed write does not lose the old table.
+     */
+    public void saveIfChanged() {
+        List<Entry> entries;
+        synchronized (this) {
+            if (!mChanged || mFile == null) {
+                return;
+            }
+            mChanged = false;
+            entries = new ArrayList<>(mDevices.size());
+            for (Entry entry : mDevices.values()) {
+                entries.add(new Entry(entry.device, entry.lastSeen));
+            }
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Utf8));
+            writer.write(FileHeader + " " + FileVersion);
+            writer.newLine();
+            for (Entry entry : entries) {
+                InetSocketAddress address = entry.device.address;
+                writer.write(entry.device.id() + " " + address.getAddress().getHostAddress() + " "
+                        + address.getPort() + " " + entry.lastSeen);
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mFile) && !(mFile.delete() && temp.renameTo(mFile))) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the table to " + mFile, e);
+            synchronized (this) {
+                mChanged = true;
+            }
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onLanMessage(LIFXLanDevice device, LIFXLanMessage message) {
+        if (message.type() == LIFXLanMessage.StateService) {
+            if (message.service() == LIFXLanMessage.ServiceUdp && message.port() > 0) {
+                put(new LIFXLanDevice(device.target, new InetSocketAddress(device.address.getAddress(),
+                        (int) message.port())), System.currentTimeMillis());
+            }
+            return;
+        }
+        LIFXLanClient.OnLanMessageListener listener = mLanListener;
+        if (listener != null) {
+            listener.onLanMessage(device, message);
+        }
+    }
+
+    @Override
+    public void onLIFXError(LIFXLanException e) {
+        LIFXLanClient.OnLanMessageListener listener = mLanListener;
+        if (listener != null) {
+            listener.onLIFXError(e);
+        }
+    }
+
+    private void put(LIFXLanDevice device, long lastSeen) {
+        boolean found;
+        synchronized (this) {
+            Entry entry = mDevices.get(device.target);
+            if (entry != null && entry.lastSeen >= lastSeen) {
+                return;
+            }
+            found = entry == null || !entry.device.address.equals(device.address);
+            if (found) {
+                mDevices.put(device.target, new Entry(device, lastSeen));
+            } else {
+                entry.lastSeen = lastSeen;
+            }
+            mChanged = true;
+        }
+        OnDeviceListener listener = mDeviceListener;
+        if (found && listener != null) {
+            listener.onDeviceFound(device);
+        }
+    }
+}
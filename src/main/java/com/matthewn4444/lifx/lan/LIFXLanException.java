@@ -0,0 +1,11 @@
+package com.matthewn4444.lifx.lan;
+
+import com.matthewn4444.lifx.LIFXException;
+
+public class LIFXLanException extends LIFXException {
+    private static final long serialVersionUID = 1L;
+
+    public LIFXLanException(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,271 @@
+package com.matthewn4444.lifx.lan;
+
+import com.matthewn4444.lifx.HSBKColor;
+import com.matthewn4444.lifx.HSBKPacked;
+
+import java.nio.charset.Charset;
+
+/**
+ * A message of the LIFX LAN protocol. The header and payload are kept as primitive fields and
+ * only the fields of the message type are used. Colors are kept as the 16 bit values the
+ * lightbulbs use, see LIFXLanCodec to convert them.
+ */
+public class LIFXLanMessage {
+    public static final int GetService = 2;
+    public static final int StateService = 3;
+    public static final int GetPower = 20;
+    public static final int SetPower = 21;
+    public static final int StatePower = 22;
+    public static final int Acknowledgement = 45;
+    public static final int GetColor = 101;
+    public static final int SetColor = 102;
+    public static final int LightState = 107;
+    public static final int GetLightPower = 116;
+    public static final int SetLightPower = 117;
+    public static final int StateLightPower = 118;
+
+    public static final int ServiceUdp = 1;
+    public static final int PowerOn = 65535;
+    public static final int PowerOff = 0;
+
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    // Header
+    int mType;
+    long mTarget;
+    int mSource;
+    int mSequence;
+    boolean mTagged;
+    boolean mAckRequired;
+    boolean mResRequired;
+
+    // Payload
+    int mService;
+    long mPort;
+    int mLevel;
+    int mHue;
+    int mSaturation;
+    int mBrightness;
+    int mKelvin;
+    long mDuration;
+
+    // Label bytes of a decoded LightState, made into a string when it is asked for
+    private String mLabel;
+    private byte[] mLabelBytes;
+    int mLabelLength;
+
+    /**
+     * Empty message to decode packets into with LIFXLanCodec.decode(ByteBuffer, LIFXLanMessage)
+     */
+    public LIFXLanMessage() {
+    }
+
+    LIFXLanMessage(int type) {
+        mType = type;
+    }
+
+    /**
+     * Ask lightbulbs for the port they listen on, usually broadcasted to find lightbulbs
+     * @return message
+     */
+    public static LIFXLanMessage getService() {
+        return new LIFXLanMessage(GetService);
+    }
+
+    /**
+     * Ask for the power of a lightbulb, answered with StatePower
+     * @return message
+     */
+    public static LIFXLanMessage getPower() {
+        return new LIFXLanMessage(GetPower);
+    }
+
+    /**
+     * Turn a lightbulb on or off
+     * @param on power
+     * @param duration time in ms, 0 changes it right away
+     * @return message
+     */
+    public static LIFXLanMessage setPower(boolean on, long duration) {
+        LIFXLanMessage message;
+        if (duration > 0) {
+            message = new LIFXLanMessage(SetLightPower);
+            message.mDuration = duration;
+        } else {
+            message = new LIFXLanMessage(SetPower);
+        }
+        message.mLevel = on ? PowerOn : PowerOff;
+        return message;
+    }
+
+    /**
+     * Ask for the color, power and label of a lightbulb, answered with LightState
+     * @return message
+     */
+    public static LIFXLanMessage getColor() {
+        return new LIFXLanMessage(GetColor);
+    }
+
+    /**
+     * Set the color of a lightbulb
+     * @param color color, the brightness of the color is used
+     * @param duration time in ms
+     * @return message
+     */
+    public static LIFXLanMessage setColor(HSBKColor color, long duration) {
+        long packed = color.toPacked();
+        return setColor(HSBKPacked.hue(packed), HSBKPacked.saturation(packed), HSBKPacked.brightness(packed),
+                HSBKPacked.kelvin(packed), duration);
+    }
+
+    /**
+     * Set the color of a lightbulb with the 16 bit values
+     * @param hue 0-65535 for 0-360 degrees
+     * @param saturation 0-65535
+     * @param brightness 0-65535
+     * @param kelvin 2500-9000
+     * @param duration time in ms
+     * @return message
+     */
+    public static LIFXLanMessage setColor(int hue, int saturation, int brightness, int kelvin, long duration) {
+        LIFXLanMessage message = new LIFXLanMessage(SetColor);
+        message.mHue = hue;
+        message.mSaturation = saturation;
+        message.mBrightness = brightness;
+        message.mKelvin = kelvin;
+        message.mDuration = duration;
+        return message;
+    }
+
+    public int type() {
+        return mType;
+    }
+
+    /**
+     * Get the lightbulb this message was sent to or came from
+     * @return mac address of the lightbulb as a little endian number, 0 for all lightbulbs
+     */
+    public long target() {
+        return mTarget;
+    }
+
+    public int sequence() {
+        return mSequence;
+    }
+
+    public int service() {
+        return mService;
+    }
+
+    public long port() {
+        return mPort;
+    }
+
+    public int level() {
+        return mLevel;
+    }
+
+    public boolean isOn() {
+        return mLevel != PowerOff;
+    }
+
+    public int hue() {
+        return mHue;
+    }
+
+    public int saturation() {
+        return mSaturation;
+    }
+
+    public int brightness() {
+        return mBrightness;
+    }
+
+    public int kelvin() {
+        return mKelvin;
+    }
+
+    public long duration() {
+        return mDuration;
+    }
+
+    public String label() {
+        if (mLabel == null && mLabelLength > 0) {
+            mLabel = new String(mLabelBytes, 0, mLabelLength, Utf8);
+        }
+        return mLabel;
+    }
+
+    void setLabel(String label) {
+        mLabel = label;
+        mLabelLength = 0;
+    }
+
+    /**
+     * Get the array to decode the label into, it is kept to decode the next label
+     * @param size bytes needed
+     * @return label bytes
+     */
+    byte[] labelBuffer(int size) {
+        if (mLabelBytes == null || mLabelBytes.length < size) {
+            mLabelBytes = new byte[size];
+        }
+        return mLabelBytes;
+    }
+
+    /**
+     * Get the color of SetColor or LightState messages
+     * @return color
+     */
+    public HSBKColor color() {
+        return HSBKColor.fromPacked(packed());
+    }
+
+    /**
+     * Get the color of SetColor or LightState messages without allocating
+     * @return packed color, see HSBKPacked
+     */
+    public long packed() {
+        return HSBKPacked.pack(mHue, mSaturation, mBrightness, mKelvin);
+    }
+
+    /**
+     * See if this message needs an answer from the lightbulb
+     * @return true for messages that ask for a state
+     */
+    boolean isQuery() {
+        switch (mType) {
+            case GetService:
+            case GetPower:
+            case GetColor:
+            case GetLightPower:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the type of message the lightbulb answers this message with
+     * @return state message type for queries, Acknowledgement for other messages
+     */
+    int answerType() {
+        switch (mType) {
+            case GetService:
+                return StateService;
+            case GetPower:
+                return StatePower;
+            case GetColor:
+                return LightState;
+            case GetLightPower:
+                return StateLightPower;
+            default:
+                return Acknowledgement;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "type:" + mType + " target:" + LIFXLanDevice.toId(mTarget) + " sequence:" + mSequence;
+    }
+}
@@ -0,0 +1,238 @@
+package com.matthewn4444.lifx.lan;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A message sent to a lightbulb waiting for its answer. Finishes with the state message for
+ * queries or the acknowledgement for changes. The message is sent again when the lightbulb
+ * does not answer in time, after the last attempt the request fails.
+ */
+public class LIFXLanRequest implements Future<LIFXLanMessage> {
+
+    /**
+     * Called from the receiving thread when the request finishes, or right away if it had
+     * already finished when the callback was added
+     */
+    public interface Callback {
+        void onResponse(LIFXLanMessage response);
+        void onError(LIFXLanException e);
+    }
+
+    private static final String TAG = "LIFXLanRequest";
+
+    private static final int Pending = 0;
+    private static final int Finished = 1;
+    private static final int Failed = 2;
+    private static final int Cancelled = 3;
+
+    final LIFXLanDevice device;
+    final LIFXLanMessage message;
+
+    // Only changed by the client with its lock held
+    volatile int mAttempts;
+    long mDeadline;
+    long mSentTime;
+
+    private final LIFXLanClient mClient;
+    private int mState;
+    private LIFXLanMessage mResponse;
+    private LIFXLanException mException;
+    private long mLatency;
+    private List<Callback> mCallbacks;
+
+    LIFXLanRequest(LIFXLanClient client, LIFXLanDevice device, LIFXLanMessage message) {
+        mClient = client;
+        this.device = device;
+        this.message = message;
+        mLatency = -1;
+    }
+
+    /**
+     * Get a request that has already failed
+     * @param device lightbulb the request was for
+     * @param message that could not be sent
+     * @param e the error
+     * @return failed request
+     */
+    static LIFXLanRequest failed(LIFXLanDevice device, LIFXLanMessage message, LIFXLanException e) {
+        LIFXLanRequest request = new LIFXLanRequest(null, device, message);
+        request.fail(e);
+        return request;
+    }
+
+    public LIFXLanDevice getDevice() {
+        return device;
+    }
+
+    public LIFXLanMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the time between the last send and the answer
+     * @param unit unit of the time
+     * @return time or -1 if it has not been answered
+     */
+    public synchronized long getLatency(TimeUnit unit) {
+        return mLatency < 0 ? -1 : unit.convert(mLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the number of times the message was sent
+     * @return number of attempts
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * Stop waiting for the answer and stop sending the message again. The lightbulb may
+     * already have received it.
+     * @param mayInterruptIfRunning ignored
+     * @return true if the request was still waiting
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (mClient != null) {
+            mClient.remove(this);
+        }
+        return finish(Cancelled, null, new LIFXLanException("Request was cancelled"), -1);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == Cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != Pending;
+    }
+
+    @Override
+    public synchronized LIFXLanMessage get() throws InterruptedException, ExecutionException {
+        while (mState == Pending) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized LIFXLanMessage get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == Pending) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Request did not finish in " + timeout + " " + unit);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    /**
+     * Get told when the request finishes
+     * @param callback called once
+     * @return this request
+     */
+    public LIFXLanRequest addCallback(Callback callback) {
+        synchronized (this) {
+            if (mState == Pending) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<>();
+                }
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        call(callback);
+        return this;
+    }
+
+    /**
+     * @param response from the lightbulb
+     * @param latency time in ns from the last send to the response
+     */
+    void complete(LIFXLanMessage response, long latency) {
+        finish(Finished, response, null, latency);
+    }
+
+    void fail(LIFXLanException e) {
+        finish(Failed, null, e, -1);
+    }
+
+    /**
+     * Finish another request the same way this one finishes, used for operations that need
+     * more than one message
+     * @param other request to finish
+     */
+    void forwardTo(final LIFXLanRequest other) {
+        addCallback(new Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                other.complete(response, getLatency(TimeUnit.NANOSECONDS));
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+                other.fail(e);
+            }
+        });
+    }
+
+    private boolean finish(int state, LIFXLanMessage response, LIFXLanException e, long latency) {
+        List<Callback> callbacks;
+        synchronized (this) {
+            if (mState != Pending) {
+                return false;
+            }
+            mState = state;
+            mResponse = response;
+            mException = e;
+            mLatency = latency;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                call(callback);
+            }
+        }
+        return true;
+    }
+
+    private void call(Callback callback) {
+        // Callbacks run on the receiving thread of the client, one that throws must not stop it
+        try {
+            if (mState == Finished) {
+                callback.onResponse(mResponse);
+            } else {
+                callback.onError(mException);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Request callback failed", e);
+        }
+    }
+
+    // Must be called with the lock held
+    private LIFXLanMessage result() throws ExecutionException {
+        switch (mState) {
+            case Cancelled:
+                throw new CancellationException();
+            case Failed:
+                throw new ExecutionException(mException);
+            default:
+                return mResponse;
+        }
+    }
+}
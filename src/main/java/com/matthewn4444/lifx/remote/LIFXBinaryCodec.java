@@ -0,0 +1,418 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+import com.matthewn4444.lifx.remote.LIFXResponseException.ErrorField;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format for bulbs, states, colors and responses, much smaller and faster to
+ * read than json. Each stream starts with a version, numbers are written as varints and a
+ * string is written once per stream then referred to by index, so the group, location and
+ * product of many bulbs only take a few bytes each.
+ */
+public final class LIFXBinaryCodec {
+    public static final int Version = 1;
+
+    // First bytes of every stream, "LX"
+    private static final int Magic = 0x4C58;
+
+    // Strings remembered per stream, after that new strings are written in full every time
+    private static final int MaxStrings = 4096;
+
+    // String references, other values are an index into the strings + FirstStringRef
+    private static final int StringNull = 0;
+    private static final int StringNew = 1;
+    private static final int FirstStringRef = 2;
+
+    // Flags of a bulb
+    private static final int FlagConnected = 1;
+    private static final int FlagGroup = 1 << 1;
+    private static final int FlagLocation = 1 << 2;
+    private static final int FlagProduct = 1 << 3;
+    private static final int FlagLastSeen = 1 << 4;
+    private static final int FlagColor = 1 << 5;
+
+    private LIFXBinaryCodec() {
+    }
+
+    /**
+     * Writes values to a stream, write them back in the same order with a Reader
+     */
+    public static final class Writer {
+        private final DataOutputStream mOut;
+        private final Map<String, Integer> mStrings = new HashMap<>();
+
+        /**
+         * Start a stream by writing the version
+         * @param out stream to write to, buffer it for speed
+         */
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeShort(Magic);
+            mOut.writeByte(Version);
+        }
+
+        public void writeBulb(LIFXBulb bulb) throws IOException {
+            HSBKColor color = bulb.color();
+            int flags = (bulb.connected ? FlagConnected : 0)
+                    | (bulb.group != null ? FlagGroup : 0)
+                    | (bulb.location != null ? FlagLocation : 0)
+                    | (bulb.product != null ? FlagProduct : 0)
+                    | (bulb.lastSeen != null ? FlagLastSeen : 0)
+                    | (color != null ? FlagColor : 0);
+            mOut.writeByte(flags);
+            writeString(bulb.id());
+            writeString(bulb.label());
+            mOut.writeByte(bulb.status().ordinal());
+            writeString(bulb.uuid);
+            if (bulb.group != null) {
+                writeString(bulb.group[0]);
+                writeString(bulb.group[1]);
+            }
+            if (bulb.location != null) {
+                writeString(bulb.location[0]);
+                writeString(bulb.location[1]);
+            }
+            if (bulb.product != null) {
+                writeString(bulb.product.name);
+                writeString(bulb.product.identifier);
+                writeString(bulb.product.company);
+                writeVarLong(bulb.product.capabilities.size());
+                for (Map.Entry<String, Boolean> entry : bulb.product.capabilities.entrySet()) {
+                    writeString(entry.getKey());
+                    mOut.writeBoolean(entry.getValue());
+                }
+            }
+            if (bulb.lastSeen != null) {
+                writeVarLong(bulb.lastSeen.getTimeInMillis());
+            }
+            mOut.writeDouble(bulb.secLastSeen);
+            mOut.writeFloat(bulb.brightness());
+            mOut.writeBoolean(bulb.isOn());
+            if (color != null) {
+                writeColor(color);
+            }
+        }
+
+        public void writeBulbs(LIFXBulb[] bulbs) throws IOException {
+            writeCount(bulbs);
+            if (bulbs != null) {
+                for (LIFXBulb bulb : bulbs) {
+                    writeBulb(bulb);
+                }
+            }
+        }
+
+        public void writeState(LIFXState state) throws IOException {
+            writeString(state.selector);
+            mOut.writeByte(state.powerState);
+            mOut.writeFloat(state.brightness);
+            writeVarLong(state.duration);
+            mOut.writeBoolean(state.color != null);
+            if (state.color != null) {
+                writeColor(state.color);
+            }
+        }
+
+        public void writeColor(HSBKColor color) throws IOException {
+            mOut.writeFloat(color.hue());
+            mOut.writeFloat(color.saturation());
+            mOut.writeFloat(color.brightness());
+            writeVarLong(color.kelvin());
+            mOut.writeBoolean(color.isKelvinEnabled());
+        }
+
+        public void writeResponse(LIFXRemoteResponse response) throws IOException {
+            writeVarLong(response.responseCode);
+            writeString(response.errorMessage);
+            writeCount(response.errors);
+            if (response.errors != null) {
+                for (ErrorField error : response.errors) {
+                    writeString(error.field);
+                    writeCount(error.messages);
+                    if (error.messages != null) {
+                        for (String message : error.messages) {
+                            writeString(message);
+                        }
+                    }
+                }
+            }
+            writeCount(response.warnings);
+            if (response.warnings != null) {
+                for (LIFXRemoteResponse.Warning warning : response.warnings) {
+                    writeString(warning.message);
+                    Map<String, String> parameters = warning.unknownParameters;
+                    writeVarLong(parameters != null ? parameters.size() + 1 : 0);
+                    if (parameters != null) {
+                        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                            writeString(entry.getKey());
+                            writeString(entry.getValue());
+                        }
+                    }
+                }
+            }
+            writeCount(response.operations);
+            if (response.operations != null) {
+                for (LIFXRemoteResponse.Operation operation : response.operations) {
+                    mOut.writeBoolean(operation.state != null);
+                    if (operation.state != null) {
+                        writeState(operation.state);
+                    }
+                    writeBulbs(operation.mResults);
+                }
+            }
+        }
+
+        /**
+         * Write a string, strings already written to this stream only take the bytes of their index
+         * @param s string or null
+         */
+        public void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarLong(StringNull);
+                return;
+            }
+            Integer index = mStrings.get(s);
+            if (index != null) {
+                writeVarLong(index + FirstStringRef);
+                return;
+            }
+            writeVarLong(StringNew);
+            mOut.writeUTF(s);
+            if (mStrings.size() < MaxStrings) {
+                mStrings.put(s, mStrings.size());
+            }
+        }
+
+        /**
+         * Write a number in 1 to 10 bytes, small positive numbers take the least
+         * @param value number
+         */
+        public void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                mOut.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        // Arrays are written with their length + 1 so null is 0
+        private void writeCount(Object[] array) throws IOException {
+            writeVarLong(array != null ? array.length + 1 : 0);
+        }
+    }
+
+    /**
+     * Reads values written by a Writer, repeated strings are read as the same string
+     */
+    public static final class Reader {
+        private final DataInputStream mIn;
+        private final List<String> mStrings = new ArrayList<>();
+
+        /**
+         * Start reading a stream
+         * @param in stream to read from, buffer it for speed
+         * @throws IOException if the stream is not from a Writer or from another version
+         */
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            int magic = mIn.readUnsignedShort();
+            int version = mIn.readUnsignedByte();
+            if (magic != Magic || version != Version) {
+                throw new IOException("Unknown binary format " + Integer.toHexString(magic) + " version " + version);
+            }
+        }
+
+        public LIFXBulb readBulb() throws IOException {
+            int flags = mIn.readUnsignedByte();
+            LIFXBulb.Fields fields = new LIFXBulb.Fields();
+            fields.id = readString();
+            fields.label = readString();
+            int status = mIn.readUnsignedByte();
+            if (status >= LIFXBulb.Status.values().length) {
+                throw new IOException("Unknown status " + status);
+            }
+            fields.status = LIFXBulb.Status.values()[status];
+            fields.uuid = readString();
+            fields.connected = (flags & FlagConnected) != 0;
+            if ((flags & FlagGroup) != 0) {
+                fields.group = new String[] { readString(), readString() };
+            }
+            if ((flags & FlagLocation) != 0) {
+                fields.location = new String[] { readString(), readString() };
+            }
+            if ((flags & FlagProduct) != 0) {
+                String name = readString();
+                String identifier = readString();
+                String company = readString();
+                int count = readCount(false);
+                Map<String, Boolean> capabilities = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    capabilities.put(readString(), mIn.readBoolean());
+                }
+                fields.product = new LIFXBulb.Product(name, identifier, company, capabilities);
+            }
+            if ((flags & FlagLastSeen) != 0) {
+                fields.lastSeen = Calendar.getInstance();
+                fields.lastSeen.setTimeInMillis(readVarLong());
+            }
+            fields.secLastSeen = mIn.readDouble();
+            fields.brightness = mIn.readFloat();
+            fields.powerState = mIn.readBoolean() ? LIFXState.PowerOn : LIFXState.PowerOff;
+            if ((flags & FlagColor) != 0) {
+                fields.color = readColor();
+            }
+            return fields.toBulb();
+        }
+
+        /**
+         * @return bulbs or null if null was written
+         */
+        public LIFXBulb[] readBulbs() throws IOException {
+            int count = readCount(true);
+            if (count < 0) {
+                return null;
+            }
+            LIFXBulb[] bulbs = new LIFXBulb[count];
+            for (int i = 0; i < count; i++) {
+                bulbs[i] = readBulb();
+            }
+            return bulbs;
+        }
+
+        public LIFXState readState() throws IOException {
+            String selector = readString();
+            int powerState = mIn.readUnsignedByte();
+            float brightness = mIn.readFloat();
+            long duration = readVarLong();
+            HSBKColor color = mIn.readBoolean() ? readColor() : null;
+            return new LIFXState(selector, powerState, color, brightness, duration);
+        }
+
+        public HSBKColor readColor() throws IOException {
+            float hue = mIn.readFloat();
+            float saturation = mIn.readFloat();
+            float brightness = mIn.readFloat();
+            long kelvin = readVarLong();
+            HSBKColor color;
+            try {
+                color = new HSBKColor(hue, saturation, brightness, (int) kelvin);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid color", e);
+            }
+            color.enableKelvin(mIn.readBoolean());
+            return color;
+        }
+
+        public LIFXRemoteResponse readResponse() throws IOException {
+            int responseCode = (int) readVarLong();
+            String errorMessage = readString();
+            ErrorField[] errors = null;
+            int count = readCount(true);
+            if (count >= 0) {
+                errors = new ErrorField[count];
+                for (int i = 0; i < count; i++) {
+                    String field = readString();
+                    String[] messages = null;
+                    int messageCount = readCount(true);
+                    if (messageCount >= 0) {
+                        messages = new String[messageCount];
+                        for (int j = 0; j < messageCount; j++) {
+                            messages[j] = readString();
+                        }
+                    }
+                    errors[i] = new ErrorField(field, messages);
+                }
+            }
+            LIFXRemoteResponse.Warning[] warnings = null;
+            count = readCount(true);
+            if (count >= 0) {
+                warnings = new LIFXRemoteResponse.Warning[count];
+                for (int i = 0; i < count; i++) {
+                    String message = readString();
+                    Map<String, String> parameters = null;
+                    int parameterCount = readCount(true);
+                    if (parameterCount >= 0) {
+                        parameters = new HashMap<>();
+                        for (int j = 0; j < parameterCount; j++) {
+                            parameters.put(readString(), readString());
+                        }
+                    }
+                    warnings[i] = new LIFXRemoteResponse.Warning(message, parameters);
+                }
+            }
+            LIFXRemoteResponse.Operation[] operations = null;
+            count = readCount(true);
+            if (count >= 0) {
+                operations = new LIFXRemoteResponse.Operation[count];
+                for (int i = 0; i < count; i++) {
+                    LIFXState state = mIn.readBoolean() ? readState() : null;
+                    operations[i] = new LIFXRemoteResponse.Operation(state, readBulbs());
+                }
+            }
+            return new LIFXRemoteResponse(responseCode, errorMessage, errors, warnings, operations);
+        }
+
+        public String readString() throws IOException {
+            long ref = readVarLong();
+            if (ref == StringNull) {
+                return null;
+            } else if (ref == StringNew) {
+                String s = mIn.readUTF();
+                if (mStrings.size() < MaxStrings) {
+                    mStrings.add(s);
+                }
+                return s;
+            } else if (ref >= FirstStringRef && ref - FirstStringRef < mStrings.size()) {
+                return mStrings.get((int) (ref - FirstStringRef));
+            }
+            throw new IOException("Unknown string " + ref);
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Number is too long");
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        /**
+         * @param nullable if the count was written as length + 1
+         * @return count or -1 for null
+         */
+        private int readCount(boolean nullable) throws IOException {
+            long count = readVarLong() - (nullable ? 1 : 0);
+            if (count < (nullable ? -1 : 0) || count > Integer.MAX_VALUE) {
+                throw new IOException("Invalid count " + count);
+            }
+            return (int) count;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.matthewn4444.lifx.HSBKColor;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -23,6 +24,13 @@ public class LIFXBulb {
         public final String company;
         public final Map<String, Boolean> capabilities;
 
+        Product(String name, String identifier, String company, Map<String, Boolean> capabilities) {
+            this.name = name;
+            this.identifier = identifier;
+            this.company = company;
+            this.capabilities = capabilities;
+        }
+
         Product(JSONObject data) throws JSONException {
             name = data.getString("name");
             identifier = data.getString("identifier");
@@ -38,9 +46,9 @@ public class LIFXBulb {
     }
 
     // Light response
-    private String mId;
-    private String mLabel;
-    private Status mStatus;
+    private final String mId;
+    private final String mLabel;
+    private final Status mStatus;
 
     // State response
     public final String uuid;
@@ -51,28 +59,15 @@ public class LIFXBulb {
     public final Calendar lastSeen;
     public final double secLastSeen;
 
-    private float mBrightness;
-    private int mPowerState;
-    private HSBKColor mColor;
+    private final float mBrightness;
+    private final int mPowerState;
+    private final HSBKColor mColor;
 
     LIFXBulb(JSONObject data) throws JSONException, ParseException {
         // Basic response
         mId = data.getString("id");
         mLabel = data.getString("label");
-        if (data.has("status")) {
-            String s = data.getString("status");
-            if (s.equals("ok")) {
-                mStatus = Status.OK;
-            } else if (s.equals("timed_out")) {
-                mStatus = Status.TIMED_OUT;
-            } else if (s.equals("offline")) {
-                mStatus = Status.OFFLINE;
-            } else {
-                throw new IllegalStateException("Unknown state: " + s);
-            }
-        } else {
-            mStatus = Status.UNKNOWN;
-        }
+        mStatus = data.has("status") ? parseStatus(data.getString("status")) : Status.UNKNOWN;
 
         // State response when calling list of lights
         if (data.has("uuid")) {
@@ -88,7 +83,7 @@ public class LIFXBulb {
             mColor = new HSBKColor(data.getJSONObject("color"));
             mColor.setBrightness((float) mBrightness);
             lastSeen = parseTime(data.getString("last_seen"));
-            secLastSeen = -1;
+            secLastSeen = data.has("seconds_since_seen") ? data.getDouble("seconds_since_seen") : -1;
         } else {
             mPowerState = LIFXState.PowerOff;
             uuid = null;
@@ -103,6 +98,42 @@ public class LIFXBulb {
         }
     }
 
+    private LIFXBulb(Fields fields) {
+        mId = fields.id;
+        mLabel = fields.label;
+        mStatus = fields.status;
+        uuid = fields.uuid;
+        connected = fields.connected;
+        group = fields.group;
+        location = fields.location;
+        product = fields.product;
+        lastSeen = fields.lastSeen;
+        secLastSeen = fields.secLastSeen;
+        mBrightness = fields.brightness;
+        mPowerState = fields.powerState;
+        mColor = fields.color;
+        if (uuid != null && mColor != null) {
+            mColor.setBrightness(mBrightness);
+        }
+    }
+
+    private LIFXBulb(LIFXBulb bulb, String label, Status status, int powerState, HSBKColor color,
+                     float brightness) {
+        mId = bulb.mId;
+        mLabel = label;
+        mStatus = status;
+        uuid = bulb.uuid;
+        connected = bulb.connected;
+        group = bulb.group;
+        location = bulb.location;
+        product = bulb.product;
+        lastSeen = bulb.lastSeen;
+        secLastSeen = bulb.secLastSeen;
+        mPowerState = powerState;
+        mColor = color;
+        mBrightness = brightness;
+    }
+
     public boolean isOn() {
         return mPowerState == LIFXState.PowerOn;
     }
@@ -123,35 +154,224 @@ public class LIFXBulb {
         return mStatus;
     }
 
+    /**
+     * See if the cloud has listed this bulb, bulbs that were only found on the local network
+     * have just an id until the next list of lights
+     * @return false if only the id is known
+     */
+    public boolean isListed() {
+        return uuid != null;
+    }
+
+    /**
+     * Get the color of the bulb, the bulb never changes so this is a copy
+     * @return color or null if unknown
+     */
     public HSBKColor color() {
-        return mColor;
+        return mColor != null ? new HSBKColor(mColor) : null;
     }
 
-    void updateState(LIFXState state, String id, String label, Status status) {
-        int power = state.powerState;
-        HSBKColor color = state.color;
-        float brightness = state.brightness;
-        if (power != LIFXState.PowerNoChange) {
-            mPowerState = power;
-        }
-        if (color != null) {
-            mColor = color;
-        }
-        if (brightness != LIFXState.BrightnessNoChange) {
-            mBrightness = brightness;
+    /**
+     * Create a bulb that only has an id, for bulbs found somewhere else than the cloud
+     * @param id of the bulb
+     * @return bulb that is not listed
+     */
+    static LIFXBulb unlisted(String id) {
+        Fields fields = new Fields();
+        fields.id = id;
+        return new LIFXBulb(fields);
+    }
+
+    boolean hasSameColor(LIFXBulb bulb) {
+        if (mColor == null || bulb.mColor == null) {
+            return mColor == bulb.mColor;
         }
-        mId = id;
-        mLabel = label;
-        if (status != Status.UNKNOWN) {
-            mStatus = status;
+        return mColor.hue() == bulb.mColor.hue() && mColor.saturation() == bulb.mColor.saturation()
+                && mColor.kelvin() == bulb.mColor.kelvin();
+    }
+
+    /**
+     * Bulbs are not changed once created so they can be shared between threads, this creates
+     * a new bulb with the state applied
+     * @param state that was sent to the bulb
+     * @param label of the bulb from the response
+     * @param status of the bulb from the response
+     * @return new bulb with the changes
+     */
+    LIFXBulb withState(LIFXState state, String label, Status status) {
+        return new LIFXBulb(this, label != null ? label : mLabel,
+                status != Status.UNKNOWN ? status : mStatus,
+                state.powerState != LIFXState.PowerNoChange ? state.powerState : mPowerState,
+                state.color != null ? new HSBKColor(state.color) : mColor,
+                state.brightness != LIFXState.BrightnessNoChange ? state.brightness : mBrightness);
+    }
+
+    static Status parseStatus(String s) {
+        if (s.equals("ok")) {
+            return Status.OK;
+        } else if (s.equals("timed_out")) {
+            return Status.TIMED_OUT;
+        } else if (s.equals("offline")) {
+            return Status.OFFLINE;
         }
+        throw new IllegalStateException("Unknown state: " + s);
     }
 
-    private Calendar parseTime(String text) throws ParseException {
+    static Calendar parseTime(String text) throws ParseException {
         text = text.substring(0, text.length() - 6);        // TEMP until move to android?
         Calendar c = Calendar.getInstance();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.getDefault());
         c.setTime(sdf.parse(text));
         return c;
     }
+
+    /**
+     * Collects the fields of a bulb while it is read from a json stream, the fields can come in
+     * any order so the bulb is only created at the end
+     */
+    static final class Fields {
+        String id;
+        String label;
+        Status status = Status.UNKNOWN;
+        String uuid;
+        boolean connected;
+        String[] group;
+        String[] location;
+        Product product;
+        Calendar lastSeen;
+        double secLastSeen = -1;
+        float brightness = -1;
+        int powerState = LIFXState.PowerOff;
+        HSBKColor color;
+
+        /**
+         * Read the value of a field of the bulb
+         * @param name of the field
+         * @param reader positioned at the value
+         */
+        void read(String name, LIFXJsonReader reader) throws IOException, ParseException {
+            if (reader.peek() == LIFXJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (name.equals("id")) {
+                id = reader.nextString();
+            } else if (name.equals("label")) {
+                label = reader.nextString();
+            } else if (name.equals("status")) {
+                status = parseStatus(reader.nextString());
+            } else if (name.equals("uuid")) {
+                uuid = reader.nextString();
+            } else if (name.equals("connected")) {
+                connected = reader.nextBoolean();
+            } else if (name.equals("power")) {
+                powerState = reader.nextString().equals("on") ? LIFXState.PowerOn : LIFXState.PowerOff;
+            } else if (name.equals("brightness")) {
+                brightness = (float) reader.nextDouble();
+            } else if (name.equals("color")) {
+                color = readColor(reader);
+            } else if (name.equals("group")) {
+                group = readIdName(reader);
+            } else if (name.equals("location")) {
+                location = readIdName(reader);
+            } else if (name.equals("product")) {
+                product = readProduct(reader);
+            } else if (name.equals("last_seen")) {
+                lastSeen = parseTime(reader.nextString());
+            } else if (name.equals("seconds_since_seen")) {
+                secLastSeen = reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        LIFXBulb toBulb() throws IOException {
+            if (id == null) {
+                throw new IOException("Bulb in response has no id");
+            }
+            return new LIFXBulb(this);
+        }
+
+        static LIFXBulb readBulb(LIFXJsonReader reader) throws IOException, ParseException {
+            Fields fields = new Fields();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                fields.read(reader.nextName(), reader);
+            }
+            reader.endObject();
+            return fields.toBulb();
+        }
+
+        private static HSBKColor readColor(LIFXJsonReader reader) throws IOException {
+            float hue = 0, saturation = 0, brightness = 1;
+            int kelvin = HSBKColor.DEFAULT_KELVIN;
+            boolean hasKelvin = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("hue")) {
+                    hue = (float) reader.nextDouble();
+                } else if (name.equals("saturation")) {
+                    saturation = (float) reader.nextDouble();
+                } else if (name.equals("brightness")) {
+                    brightness = (float) reader.nextDouble();
+                } else if (name.equals("kelvin")) {
+                    kelvin = reader.nextInt();
+                    hasKelvin = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            HSBKColor color = new HSBKColor(hue, saturation, brightness, kelvin);
+            color.enableKelvin(hasKelvin);
+            return color;
+        }
+
+        private static String[] readIdName(LIFXJsonReader reader) throws IOException {
+            String[] idName = new String[2];
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("id")) {
+                    idName[0] = reader.nextString();
+                } else if (name.equals("name")) {
+                    idName[1] = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return idName;
+        }
+
+        private static Product readProduct(LIFXJsonReader reader) throws IOException {
+            String productName = null, identifier = null, company = null;
+            Map<String, Boolean> capabilities = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("name")) {
+                    productName = reader.nextString();
+                } else if (name.equals("identifier")) {
+                    identifier = reader.nextString();
+                } else if (name.equals("company")) {
+                    company = reader.nextString();
+                } else if (name.equals("capabilities")) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        if (reader.peek() == LIFXJsonReader.Token.BOOLEAN) {
+                            capabilities.put(key, reader.nextBoolean());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return new Product(productName, identifier, company, capabilities);
+        }
+    }
 }
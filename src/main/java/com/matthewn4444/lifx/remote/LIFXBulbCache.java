@@ -0,0 +1,363 @@
+package com.matthewn4444.lifx.remote;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the cached bulbs in a binary file so they can be shown right away on the next start,
+ * before the cloud lists them. Changed bulbs are appended to the file as a block written with
+ * LIFXBinaryCodec and the last record of each bulb wins, the file is rewritten as one block
+ * without the old records once they take up most of it. Changes given to saveLater() are kept
+ * in memory and written together on a background thread after the save delay, so the thread
+ * that changed the bulbs never waits for the file.
+ */
+public class LIFXBulbCache {
+    private static final String TAG = "LIFXBulbCache";
+    public static final long DefaultSaveDelay = 2000;
+    private static final int FileMagic = 0x4C584243;        // LXBC
+    private static final int FileVersion = 2;
+
+    private static final int RecordBulb = 1;
+    private static final int RecordRemoved = 2;
+
+    // Rewrite the file when it has this many more records than bulbs
+    private static final int CompactSlack = 32;
+
+    private final class Writer implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (mDirty) {
+                    if (mDirty.isEmpty()) {
+                        mWriter = null;
+                        return;
+                    }
+                    // Wait for more changes to write them in the same block
+                    long deadline = System.currentTimeMillis() + mSaveDelay;
+                    long wait;
+                    try {
+                        while ((wait = deadline - System.currentTimeMillis()) > 0) {
+                            mDirty.wait(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        mWriter = null;
+                        return;
+                    }
+                }
+                flush();
+            }
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, LIFXBulb> mBulbs = new LinkedHashMap<>();
+    private int mRecordCount;
+    private long mSavedAt;
+    private boolean mLoaded;
+    private boolean mNeedsCompact;
+
+    // Latest state of the bulbs changed since the last write by id, null for removed bulbs,
+    // guarded by itself so adding to it never waits for the file
+    private final Map<String, LIFXBulb> mDirty = new LinkedHashMap<>();
+    private Thread mWriter;
+    private volatile long mSaveDelay = DefaultSaveDelay;
+
+    /**
+     * @param file to keep the bulbs in between starts
+     */
+    public LIFXBulbCache(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Get when the cache was last written, bulbs loaded from it are only as new as this
+     * @return time in ms since epoch or 0 if nothing was saved
+     */
+    public synchronized long getSavedAt() {
+        return mSavedAt;
+    }
+
+    /**
+     * Set how long changes are kept before they are written, more changes in that time are
+     * written together
+     * @param delay time in ms
+     */
+    public void setSaveDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Invalid save delay: " + delay);
+        }
+        mSaveDelay = delay;
+    }
+
+    public long getSaveDelay() {
+        return mSaveDelay;
+    }
+
+    /**
+     * Read the whole file in one go. A file from another version is ignored and a block cut
+     * short by a crash is dropped.
+     * @return saved bulbs, empty if there are none
+     */
+    public synchronized LIFXBulb[] load() {
+        mBulbs.clear();
+        mRecordCount = 0;
+        mSavedAt = 0;
+        mLoaded = true;
+        mNeedsCompact = !mFile.exists();
+        if (mNeedsCompact) {
+            return new LIFXBulb[0];
+        }
+        DataInputStream in = null;
+        try {
+            byte[] data = new byte[(int) mFile.length()];
+            in = new DataInputStream(new FileInputStream(mFile));
+            in.readFully(data);
+            in.close();
+            in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != FileMagic || in.readInt() != FileVersion) {
+                Log.w(TAG, "Ignoring cache with unknown version: " + mFile);
+                mNeedsCompact = true;
+                return new LIFXBulb[0];
+            }
+            mSavedAt = in.readLong();
+            try {
+                while (in.available() > 0) {
+                    readBlock(in);
+                }
+            } catch (EOFException e) {
+                Log.w(TAG, "Dropping the end of the cache that was not fully written: " + mFile);
+                mNeedsCompact = true;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load the cache from " + mFile, e);
+            mNeedsCompact = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return mBulbs.values().toArray(new LIFXBulb[mBulbs.size()]);
+    }
+
+    /**
+     * Remember the latest state of bulbs and write them on a background thread after the save
+     * delay, together with the other changes made meanwhile
+     * @param ids of the bulbs that changed
+     * @param registry to get the latest state of the bulbs from, bulbs not in it are removed
+     */
+    public void saveLater(Collection<String> ids, LIFXBulbRegistry registry) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        synchronized (mDirty) {
+            // The bulbs are read while holding the lock so the last change has the latest state
+            for (String id : ids) {
+                mDirty.put(id, registry.get(id));
+            }
+            if (mWriter == null) {
+                mWriter = new Thread(new Writer(), TAG);
+                mWriter.start();
+            }
+        }
+    }
+
+    /**
+     * Write the changes given to saveLater() now instead of after the save delay, e.g. before
+     * the bulbs are cleared
+     */
+    public synchronized void flush() {
+        Map<String, LIFXBulb> changed;
+        synchronized (mDirty) {
+            if (mDirty.isEmpty()) {
+                return;
+            }
+            changed = new LinkedHashMap<>(mDirty);
+            mDirty.clear();
+        }
+        write(changed);
+    }
+
+    /**
+     * Append the latest state of bulbs to the file right away
+     * @param ids of the bulbs that changed
+     * @param registry to get the latest state of the bulbs from, bulbs not in it are removed
+     */
+    public synchronized void save(Collection<String> ids, LIFXBulbRegistry registry) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        // The bulbs are read while holding the lock so the last write has the latest state
+        Map<String, LIFXBulb> changed = new LinkedHashMap<>();
+        for (String id : ids) {
+            changed.put(id, registry.get(id));
+        }
+        synchronized (mDirty) {
+            // Do not write older states of these bulbs after this
+            mDirty.keySet().removeAll(changed.keySet());
+        }
+        write(changed);
+    }
+
+    /**
+     * Remove the file, e.g. when the token changes to another account
+     */
+    public synchronized void delete() {
+        synchronized (mDirty) {
+            mDirty.clear();
+        }
+        mBulbs.clear();
+        mRecordCount = 0;
+        mSavedAt = 0;
+        mLoaded = true;
+        mNeedsCompact = true;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Failed to delete the cache " + mFile);
+        }
+    }
+
+    // Must be called with the lock held
+    private void write(Map<String, LIFXBulb> changed) {
+        if (!mLoaded) {
+            // Compacting before loading would lose the saved bulbs
+            load();
+        }
+        for (Map.Entry<String, LIFXBulb> entry : changed.entrySet()) {
+            if (entry.getValue() != null) {
+                mBulbs.put(entry.getKey(), entry.getValue());
+            } else {
+                mBulbs.remove(entry.getKey());
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (mNeedsCompact || mRecordCount + changed.size() > mBulbs.size() * 2 + CompactSlack) {
+            compact(now);
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            writeBlock(out, changed, now);
+            out.close();
+            out = null;
+            mRecordCount += changed.size();
+            mSavedAt = now;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the cache to " + mFile, e);
+            mNeedsCompact = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write only the latest record of each bulb. It is written to a temporary file first so a
+     * failed write does not lose the old cache.
+     */
+    private void compact(long now) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FileMagic);
+            out.writeInt(FileVersion);
+            out.writeLong(now);
+            writeBlock(out, mBulbs, now);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile) && !(mFile.delete() && temp.renameTo(mFile))) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+            mRecordCount = mBulbs.size();
+            mSavedAt = now;
+            mNeedsCompact = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the cache to " + mFile, e);
+            mNeedsCompact = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void readBlock(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new EOFException("Block of " + length + " bytes is cut short");
+        }
+        byte[] block = new byte[length];
+        in.readFully(block);
+        LIFXBinaryCodec.Reader reader = new LIFXBinaryCodec.Reader(new ByteArrayInputStream(block));
+        long time = reader.readVarLong();
+        long count = reader.readVarLong();
+        for (long i = 0; i < count; i++) {
+            String id = reader.readString();
+            if (id == null) {
+                throw new IOException("Record without an id");
+            }
+            long type = reader.readVarLong();
+            if (type == RecordBulb) {
+                mBulbs.put(id, reader.readBulb());
+            } else if (type == RecordRemoved) {
+                mBulbs.remove(id);
+            } else {
+                throw new IOException("Unknown record " + type);
+            }
+        }
+        mRecordCount += count;
+        mSavedAt = Math.max(mSavedAt, time);
+    }
+
+    /**
+     * Write the bulbs as one block, the strings they share are only written once per block
+     * @param out stream to write to
+     * @param bulbs by id, null for bulbs that were removed
+     * @param time the bulbs were saved
+     */
+    private static void writeBlock(DataOutputStream out, Map<String, LIFXBulb> bulbs, long time) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        LIFXBinaryCodec.Writer writer = new LIFXBinaryCodec.Writer(block);
+        writer.writeVarLong(time);
+        writer.writeVarLong(bulbs.size());
+        for (Map.Entry<String, LIFXBulb> entry : bulbs.entrySet()) {
+            writer.writeString(entry.getKey());
+            if (entry.getValue() != null) {
+                writer.writeVarLong(RecordBulb);
+                writer.writeBulb(entry.getValue());
+            } else {
+                writer.writeVarLong(RecordRemoved);
+            }
+        }
+        writer.flush();
+        out.writeInt(block.size());
+        block.writeTo(out);
+    }
+}
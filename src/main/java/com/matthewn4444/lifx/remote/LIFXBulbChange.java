@@ -0,0 +1,52 @@
+package com.matthewn4444.lifx.remote;
+
+import java.util.List;
+
+/**
+ * Something that changed about a bulb in the cache
+ */
+public class LIFXBulbChange {
+
+    public enum Type { ADDED, REMOVED, POWER, COLOR, STATUS, LABEL }
+
+    public final Type type;
+
+    // The bulb after the change, for removed bulbs this is the bulb that was removed
+    public final LIFXBulb bulb;
+
+    // The bulb before the change, null when the bulb was added
+    public final LIFXBulb previous;
+
+    LIFXBulbChange(Type type, LIFXBulb bulb, LIFXBulb previous) {
+        this.type = type;
+        this.bulb = bulb;
+        this.previous = previous;
+    }
+
+    /**
+     * Add the changes between two versions of the same bulb
+     * @param previous bulb before
+     * @param bulb bulb after
+     * @param changes list to add to
+     */
+    static void compare(LIFXBulb previous, LIFXBulb bulb, List<LIFXBulbChange> changes) {
+        if (previous == bulb) {
+            return;
+        }
+        if (previous.isOn() != bulb.isOn()) {
+            changes.add(new LIFXBulbChange(Type.POWER, bulb, previous));
+        }
+        if (previous.brightness() != bulb.brightness() || !previous.hasSameColor(bulb)) {
+            changes.add(new LIFXBulbChange(Type.COLOR, bulb, previous));
+        }
+        // Listing lights does not give a status, only count it when both bulbs know it
+        boolean statusKnown = previous.status() != LIFXBulb.Status.UNKNOWN
+                && bulb.status() != LIFXBulb.Status.UNKNOWN;
+        if ((statusKnown && previous.status() != bulb.status()) || previous.connected != bulb.connected) {
+            changes.add(new LIFXBulbChange(Type.STATUS, bulb, previous));
+        }
+        if (previous.label() == null ? bulb.label() != null : !previous.label().equals(bulb.label())) {
+            changes.add(new LIFXBulbChange(Type.LABEL, bulb, previous));
+        }
+    }
+}
@@ -0,0 +1,700 @@
+package com.matthewn4444.lifx.remote;
+
+import android.util.Log;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Cache of all the bulbs with indexes on id, uuid, label, group and location so that bulbs can
+ * be found and selectors can be resolved without going through every bulb.
+ *
+ * Every change publishes a new immutable Snapshot, so any number of threads can read the bulbs
+ * without locking while the cache is being updated. Snapshots share the chunks of bulbs and the
+ * index buckets that did not change with the previous version.
+ */
+public class LIFXBulbRegistry {
+    private static final String TAG = "LIFXBulbRegistry";
+    public static final String SelectorId = "id:";
+    public static final String SelectorLabel = "label:";
+    public static final String SelectorGroupId = "group_id:";
+    public static final String SelectorGroup = "group:";
+    public static final String SelectorLocationId = "location_id:";
+    public static final String SelectorLocation = "location:";
+
+    private static final int IndexUuid = 0;
+    private static final int IndexLabel = 1;
+    private static final int IndexGroupId = 2;
+    private static final int IndexGroupName = 3;
+    private static final int IndexLocationId = 4;
+    private static final int IndexLocationName = 5;
+    private static final int IndexCount = 6;
+
+    private static final int ChunkShift = 5;
+    private static final int ChunkSize = 1 << ChunkShift;
+    private static final int ChunkMask = ChunkSize - 1;
+
+    /**
+     * Listener to find out what changed in the cache without comparing all the bulbs
+     */
+    public interface OnBulbsChangedListener {
+        /**
+         * Called from the thread that updated the cache after the new snapshot is published
+         * @param changes what changed, never empty
+         * @param snapshot the snapshot with the changes
+         */
+        void onBulbsChanged(List<LIFXBulbChange> changes, Snapshot snapshot);
+    }
+
+    /**
+     * Growable list of positions that starts with the positions already in an index
+     */
+    private static final class PositionList {
+        private int[] mPositions;
+        private int mSize;
+        private boolean mSorted = true;
+
+        PositionList(int[] existing) {
+            mPositions = existing != null ? Arrays.copyOf(existing, existing.length + 4) : new int[4];
+            mSize = existing != null ? existing.length : 0;
+        }
+
+        void add(int position) {
+            if (mSize == mPositions.length) {
+                mPositions = Arrays.copyOf(mPositions, mSize * 2);
+            }
+            if (mSize > 0 && mPositions[mSize - 1] > position) {
+                mSorted = false;
+            }
+            mPositions[mSize++] = position;
+        }
+
+        void remove(int position) {
+            for (int i = 0; i < mSize; i++) {
+                if (mPositions[i] == position) {
+                    System.arraycopy(mPositions, i + 1, mPositions, i, mSize - i - 1);
+                    mSize--;
+                    return;
+                }
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int[] toArray() {
+            int[] positions = mSize == mPositions.length ? mPositions : Arrays.copyOf(mPositions, mSize);
+            if (!mSorted) {
+                // Bulbs are always listed in the order they are stored
+                Arrays.sort(positions);
+            }
+            return positions;
+        }
+    }
+
+    /**
+     * Changes to one index, only the buckets whose positions changed are copied
+     */
+    private static final class IndexPatch {
+        private final Map<String, int[]> mPrevious;
+        private final Map<String, PositionList> mBuckets = new HashMap<>();
+
+        IndexPatch(Map<String, int[]> previous) {
+            mPrevious = previous;
+        }
+
+        /**
+         * Move a bulb from one key to another
+         * @param position of the bulb
+         * @param before key the bulb had or null if it had none or was just added
+         * @param after key the bulb has now or null if it has none
+         */
+        void move(int position, String before, String after) {
+            if (sameKey(before, after)) {
+                return;
+            }
+            if (before != null) {
+                bucket(key(before)).remove(position);
+            }
+            if (after != null) {
+                bucket(key(after)).add(position);
+            }
+        }
+
+        private PositionList bucket(String key) {
+            PositionList list = mBuckets.get(key);
+            if (list == null) {
+                list = new PositionList(mPrevious.get(key));
+                mBuckets.put(key, list);
+            }
+            return list;
+        }
+
+        /**
+         * @return the previous index if nothing moved, otherwise a new index sharing the
+         *         buckets that did not change
+         */
+        Map<String, int[]> apply() {
+            if (mBuckets.isEmpty()) {
+                return mPrevious;
+            }
+            Map<String, int[]> map = new HashMap<>(mPrevious);
+            for (Map.Entry<String, PositionList> entry : mBuckets.entrySet()) {
+                if (entry.getValue().size() > 0) {
+                    map.put(entry.getKey(), entry.getValue().toArray());
+                } else {
+                    map.remove(entry.getKey());
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Changes that make the next snapshot. The bulbs are stored in chunks, only the chunks
+     * with changed bulbs are copied and the rest are shared with the previous snapshot.
+     */
+    private static final class Edit {
+        private final Snapshot mPrevious;
+        private final IndexPatch[] mIndexes = new IndexPatch[IndexCount];
+        private LIFXBulb[][] mChunks;
+        private boolean[] mCopied;
+        private int mSize;
+        private Map<String, Integer> mById;
+
+        Edit(Snapshot previous) {
+            mPrevious = previous;
+            mChunks = previous.mChunks.clone();
+            mCopied = new boolean[mChunks.length];
+            mSize = previous.mSize;
+            mById = previous.mById;
+            for (int i = 0; i < IndexCount; i++) {
+                mIndexes[i] = new IndexPatch(previous.mIndexes[i]);
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        Integer position(String id) {
+            return mById.get(key(id));
+        }
+
+        LIFXBulb get(int position) {
+            return mChunks[position >> ChunkShift][position & ChunkMask];
+        }
+
+        void set(int position, LIFXBulb bulb) {
+            LIFXBulb before = get(position);
+            for (int i = 0; i < IndexCount; i++) {
+                mIndexes[i].move(position, indexKey(before, i), indexKey(bulb, i));
+            }
+            chunk(position)[position & ChunkMask] = bulb;
+        }
+
+        void add(LIFXBulb bulb) {
+            int position = mSize++;
+            int chunk = position >> ChunkShift;
+            if (chunk == mChunks.length) {
+                mChunks = Arrays.copyOf(mChunks, Math.max(mChunks.length * 2, 1));
+                mCopied = Arrays.copyOf(mCopied, mChunks.length);
+            }
+            if (mChunks[chunk] == null) {
+                mChunks[chunk] = new LIFXBulb[ChunkSize];
+                mCopied[chunk] = true;
+            }
+            if (mById == mPrevious.mById) {
+                mById = new HashMap<>(mById);
+            }
+            mById.put(key(bulb.id()), position);
+            for (int i = 0; i < IndexCount; i++) {
+                mIndexes[i].move(position, null, indexKey(bulb, i));
+            }
+            chunk(position)[position & ChunkMask] = bulb;
+        }
+
+        private LIFXBulb[] chunk(int position) {
+            int chunk = position >> ChunkShift;
+            if (!mCopied[chunk]) {
+                mChunks[chunk] = mChunks[chunk].clone();
+                mCopied[chunk] = true;
+            }
+            return mChunks[chunk];
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Snapshot build(long version) {
+            Map<String, int[]>[] indexes = new Map[IndexCount];
+            for (int i = 0; i < IndexCount; i++) {
+                indexes[i] = mIndexes[i].apply();
+            }
+            return new Snapshot(version, mChunks, mSize, mById, indexes);
+        }
+    }
+
+    /**
+     * State of all the bulbs at one point in time, it never changes
+     */
+    public static final class Snapshot {
+        public final long version;
+        private final LIFXBulb[][] mChunks;
+        private final int mSize;
+        private final List<LIFXBulb> mList;
+        private final Map<String, Integer> mById;
+        private final Map<String, int[]>[] mIndexes;
+
+        /**
+         * Create a version without any bulbs
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Snapshot(long version) {
+            this(version, new LIFXBulb[0][], 0, Collections.<String, Integer>emptyMap(),
+                    new Map[IndexCount]);
+            Arrays.fill(mIndexes, Collections.<String, int[]>emptyMap());
+        }
+
+        private Snapshot(long version, LIFXBulb[][] chunks, int size, Map<String, Integer> byId,
+                         Map<String, int[]>[] indexes) {
+            this.version = version;
+            mChunks = chunks;
+            mSize = size;
+            mList = new BulbList();
+            mById = byId;
+            mIndexes = indexes;
+        }
+
+        /**
+         * View of the chunks as one list, it cannot be modified
+         */
+        private final class BulbList extends AbstractList<LIFXBulb> implements RandomAccess {
+            @Override
+            public LIFXBulb get(int location) {
+                if (location < 0 || location >= mSize) {
+                    throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + mSize);
+                }
+                return bulb(location);
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        }
+
+        /**
+         * Get all the bulbs
+         * @return list of bulbs that cannot be modified
+         */
+        public List<LIFXBulb> getAll() {
+            return mList;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public LIFXBulb get(String id) {
+            Integer position = id != null ? mById.get(key(id)) : null;
+            return position != null ? bulb(position) : null;
+        }
+
+        public LIFXBulb getByUuid(String uuid) {
+            List<LIFXBulb> bulbs = lookup(IndexUuid, uuid);
+            return bulbs.isEmpty() ? null : bulbs.get(0);
+        }
+
+        public List<LIFXBulb> findByLabel(String label) {
+            return lookup(IndexLabel, label);
+        }
+
+        public List<LIFXBulb> findByGroupId(String groupId) {
+            return lookup(IndexGroupId, groupId);
+        }
+
+        public List<LIFXBulb> findByGroup(String groupName) {
+            return lookup(IndexGroupName, groupName);
+        }
+
+        public List<LIFXBulb> findByLocationId(String locationId) {
+            return lookup(IndexLocationId, locationId);
+        }
+
+        public List<LIFXBulb> findByLocation(String locationName) {
+            return lookup(IndexLocationName, locationName);
+        }
+
+        /**
+         * Find the bulbs a selector would control, for example "all", "id:d073d5000000",
+         * "label:Kitchen" or "group:Bedroom,location_id:1c8de82b81f445e7cfaafae49b259c71".
+         * Zones after "|" are ignored.
+         * @param selector to resolve
+         * @return matching bulbs or null if the selector cannot be resolved locally
+         */
+        public List<LIFXBulb> find(String selector) {
+            if (selector == null) {
+                return null;
+            }
+            String[] parts = selector.split(",");
+            if (parts.length == 1) {
+                if (isAll(parts[0])) {
+                    return mList;
+                }
+                int[] positions = resolve(parts[0]);
+                return positions != null ? toList(positions) : null;
+            }
+
+            // Several selectors can match the same bulb, only add it once
+            boolean[] matched = new boolean[mSize];
+            for (String part : parts) {
+                if (isAll(part)) {
+                    return mList;
+                }
+                int[] positions = resolve(part);
+                if (positions == null) {
+                    return null;
+                }
+                for (int position : positions) {
+                    matched[position] = true;
+                }
+            }
+            List<LIFXBulb> result = new ArrayList<>();
+            for (int i = 0; i < matched.length; i++) {
+                if (matched[i]) {
+                    result.add(bulb(i));
+                }
+            }
+            return Collections.unmodifiableList(result);
+        }
+
+        private static boolean isAll(String part) {
+            return part.trim().equalsIgnoreCase(LIFXState.SelectorAll);
+        }
+
+        /**
+         * Find the positions of the bulbs of one selector
+         * @param part single selector
+         * @return positions or null if it cannot be resolved locally
+         */
+        private int[] resolve(String part) {
+            int zone = part.indexOf('|');
+            if (zone >= 0) {
+                part = part.substring(0, zone);
+            }
+            part = part.trim();
+            int[] positions;
+            if (startsWith(part, SelectorId)) {
+                Integer position = mById.get(key(part.substring(SelectorId.length())));
+                positions = position != null ? new int[] { position } : null;
+            } else if (startsWith(part, SelectorLabel)) {
+                positions = positions(IndexLabel, part.substring(SelectorLabel.length()));
+            } else if (startsWith(part, SelectorGroupId)) {
+                positions = positions(IndexGroupId, part.substring(SelectorGroupId.length()));
+            } else if (startsWith(part, SelectorGroup)) {
+                positions = positions(IndexGroupName, part.substring(SelectorGroup.length()));
+            } else if (startsWith(part, SelectorLocationId)) {
+                positions = positions(IndexLocationId, part.substring(SelectorLocationId.length()));
+            } else if (startsWith(part, SelectorLocation)) {
+                positions = positions(IndexLocationName, part.substring(SelectorLocation.length()));
+            } else {
+                // Scenes and random selectors need the server
+                return null;
+            }
+            return positions != null ? positions : new int[0];
+        }
+
+        private int[] positions(int index, String value) {
+            return value != null ? mIndexes[index].get(key(value)) : null;
+        }
+
+        private List<LIFXBulb> lookup(int index, String value) {
+            int[] positions = positions(index, value);
+            if (positions == null) {
+                return Collections.emptyList();
+            }
+            return toList(positions);
+        }
+
+        private List<LIFXBulb> toList(int[] positions) {
+            LIFXBulb[] bulbs = new LIFXBulb[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                bulbs[i] = bulb(positions[i]);
+            }
+            return Collections.unmodifiableList(Arrays.asList(bulbs));
+        }
+
+        private LIFXBulb bulb(int position) {
+            return mChunks[position >> ChunkShift][position & ChunkMask];
+        }
+    }
+
+    private volatile Snapshot mSnapshot;
+    private volatile OnBulbsChangedListener mListener;
+
+    public LIFXBulbRegistry() {
+        mSnapshot = new Snapshot(0);
+    }
+
+    /**
+     * Get told when bulbs are added, removed or their state changes
+     * @param listener callback
+     */
+    public void setOnBulbsChangedListener(OnBulbsChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Get the current state of all the bulbs, it will not change when the cache updates
+     * @return latest snapshot
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Get all the bulbs in the cache
+     * @return list of bulbs that will not change
+     */
+    public List<LIFXBulb> getAll() {
+        return mSnapshot.getAll();
+    }
+
+    public int size() {
+        return mSnapshot.size();
+    }
+
+    public LIFXBulb get(String id) {
+        return mSnapshot.get(id);
+    }
+
+    public LIFXBulb getByUuid(String uuid) {
+        return mSnapshot.getByUuid(uuid);
+    }
+
+    public List<LIFXBulb> findByLabel(String label) {
+        return mSnapshot.findByLabel(label);
+    }
+
+    public List<LIFXBulb> findByGroupId(String groupId) {
+        return mSnapshot.findByGroupId(groupId);
+    }
+
+    public List<LIFXBulb> findByGroup(String groupName) {
+        return mSnapshot.findByGroup(groupName);
+    }
+
+    public List<LIFXBulb> findByLocationId(String locationId) {
+        return mSnapshot.findByLocationId(locationId);
+    }
+
+    public List<LIFXBulb> findByLocation(String locationName) {
+        return mSnapshot.findByLocation(locationName);
+    }
+
+    /**
+     * @see Snapshot#find(String)
+     */
+    public List<LIFXBulb> find(String selector) {
+        return mSnapshot.find(selector);
+    }
+
+    /**
+     * Replace all the bulbs in the cache
+     * @param bulbs new bulbs
+     * @return the changes to the cache, empty if nothing changed
+     */
+    public synchronized List<LIFXBulbChange> replaceAll(LIFXBulb[] bulbs) {
+        Snapshot current = mSnapshot;
+        Map<String, LIFXBulb> unique = new LinkedHashMap<>();
+        for (LIFXBulb bulb : bulbs) {
+            unique.put(key(bulb.id()), bulb);
+        }
+        LIFXBulb[] updated = unique.values().toArray(new LIFXBulb[unique.size()]);
+
+        // When the same bulbs come back in the same order only the changed buckets are patched
+        boolean sameBulbs = updated.length == current.mSize;
+        for (int i = 0; sameBulbs && i < updated.length; i++) {
+            sameBulbs = key(updated[i].id()).equals(key(current.bulb(i).id()));
+        }
+        Edit edit = new Edit(sameBulbs ? current : new Snapshot(current.version));
+        for (int i = 0; i < updated.length; i++) {
+            if (sameBulbs) {
+                edit.set(i, updated[i]);
+            } else {
+                edit.add(updated[i]);
+            }
+        }
+        mSnapshot = edit.build(current.version + 1);
+
+        List<LIFXBulbChange> changes = new ArrayList<>();
+        for (LIFXBulb bulb : updated) {
+            LIFXBulb previous = current.get(bulb.id());
+            if (previous == null) {
+                changes.add(new LIFXBulbChange(LIFXBulbChange.Type.ADDED, bulb, null));
+            } else {
+                LIFXBulbChange.compare(previous, bulb, changes);
+            }
+        }
+        for (LIFXBulb previous : current.mList) {
+            if (!unique.containsKey(key(previous.id()))) {
+                changes.add(new LIFXBulbChange(LIFXBulbChange.Type.REMOVED, previous, null));
+            }
+        }
+        return notifyChanges(changes);
+    }
+
+    /**
+     * Add the bulbs or replace the bulbs with the same ids
+     * @param bulbs to add
+     * @return the changes to the cache, empty if nothing changed
+     */
+    public synchronized List<LIFXBulbChange> putAll(LIFXBulb[] bulbs) {
+        Snapshot current = mSnapshot;
+        Edit edit = new Edit(current);
+        List<LIFXBulbChange> changes = new ArrayList<>();
+        for (LIFXBulb bulb : bulbs) {
+            Integer position = edit.position(bulb.id());
+            if (position == null) {
+                edit.add(bulb);
+                changes.add(new LIFXBulbChange(LIFXBulbChange.Type.ADDED, bulb, null));
+            } else if (position < current.mSize) {
+                LIFXBulbChange.compare(edit.get(position), bulb, changes);
+                edit.set(position, bulb);
+            }
+            // The same new bulb given twice is only added once
+        }
+        mSnapshot = edit.build(current.version + 1);
+        return notifyChanges(changes);
+    }
+
+    /**
+     * Add bulbs that were found somewhere else than the cloud, such as the local network, so
+     * they can be selected by id before the cloud lists them. Ids already in the cache are
+     * not changed.
+     * @param ids of the bulbs
+     * @return the changes to the cache, empty if all the ids were known
+     */
+    public synchronized List<LIFXBulbChange> addIds(Collection<String> ids) {
+        Snapshot current = mSnapshot;
+        List<LIFXBulb> added = new ArrayList<>();
+        for (String id : ids) {
+            if (!current.mById.containsKey(key(id)) && !containsId(added, id)) {
+                added.add(LIFXBulb.unlisted(id));
+            }
+        }
+        if (added.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return putAll(added.toArray(new LIFXBulb[added.size()]));
+    }
+
+    public void put(LIFXBulb bulb) {
+        putAll(new LIFXBulb[] { bulb });
+    }
+
+    /**
+     * Apply a state that was sent to the cached bulbs
+     * @param statusBulbs bulbs from the response of the state
+     * @param state that was sent
+     * @return the updated cached bulbs in the same order or null if any bulb is not in the cache,
+     *         then nothing is changed
+     */
+    public synchronized LIFXBulb[] update(LIFXBulb[] statusBulbs, LIFXState state) {
+        Snapshot current = mSnapshot;
+        Edit edit = new Edit(current);
+        LIFXBulb[] result = new LIFXBulb[statusBulbs.length];
+        List<LIFXBulbChange> changes = new ArrayList<>();
+        for (int i = 0; i < statusBulbs.length; i++) {
+            Integer position = edit.position(statusBulbs[i].id());
+            if (position == null) {
+                return null;
+            }
+            LIFXBulb previous = edit.get(position);
+            LIFXBulb bulb = previous.withState(state, statusBulbs[i].label(), statusBulbs[i].status());
+            LIFXBulbChange.compare(previous, bulb, changes);
+            edit.set(position, bulb);
+            result[i] = bulb;
+        }
+        if (statusBulbs.length > 0) {
+            mSnapshot = edit.build(current.version + 1);
+        }
+        notifyChanges(changes);
+        return result;
+    }
+
+    public synchronized void clear() {
+        Snapshot current = mSnapshot;
+        mSnapshot = new Snapshot(current.version + 1);
+        if (mListener != null) {
+            List<LIFXBulbChange> changes = new ArrayList<>();
+            for (LIFXBulb previous : current.mList) {
+                changes.add(new LIFXBulbChange(LIFXBulbChange.Type.REMOVED, previous, null));
+            }
+            notifyChanges(changes);
+        }
+    }
+
+    // Called with the lock held so changes are given in the same order as the snapshots
+    private List<LIFXBulbChange> notifyChanges(List<LIFXBulbChange> changes) {
+        List<LIFXBulbChange> result = Collections.unmodifiableList(changes);
+        OnBulbsChangedListener listener = mListener;
+        if (listener != null && !changes.isEmpty()) {
+            // The snapshot is already published, a listener that throws must not undo the update
+            try {
+                listener.onBulbsChanged(result, mSnapshot);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Bulbs changed listener failed", e);
+            }
+        }
+        return result;
+    }
+
+    private static boolean containsId(List<LIFXBulb> bulbs, String id) {
+        for (LIFXBulb bulb : bulbs) {
+            if (bulb.id().equalsIgnoreCase(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String indexKey(LIFXBulb bulb, int index) {
+        switch (index) {
+            case IndexUuid:
+                return bulb.uuid;
+            case IndexLabel:
+                return bulb.label();
+            case IndexGroupId:
+                return bulb.group != null ? bulb.group[0] : null;
+            case IndexGroupName:
+                return bulb.group != null ? bulb.group[1] : null;
+            case IndexLocationId:
+                return bulb.location != null ? bulb.location[0] : null;
+            case IndexLocationName:
+                return bulb.location != null ? bulb.location[1] : null;
+        }
+        throw new IllegalArgumentException("Invalid index: " + index);
+    }
+
+    private static boolean startsWith(String text, String prefix) {
+        return text.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private static boolean sameKey(String a, String b) {
+        return a == null ? b == null : b != null && key(a).equals(key(b));
+    }
+
+    private static String key(String value) {
+        return value.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,152 @@
+package com.matthewn4444.lifx.remote;
+
+import android.util.Log;
+
+/**
+ * Stops sending requests while the server is unreachable so commands fail right away instead of
+ * each waiting for its own timeouts. After a number of network or server errors in a row the
+ * circuit opens and commands fail fast. Once the open time passed one request is let through
+ * to probe the server, if it succeeds the circuit closes again, otherwise it stays open.
+ */
+public class LIFXCircuitBreaker {
+    private static final String TAG = "LIFXCircuitBreaker";
+    public static final int DefaultFailureThreshold = 5;
+    public static final long DefaultOpenTime = 30000;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Listener for when the server becomes unreachable or recovers
+     */
+    public interface OnStateChangedListener {
+        /**
+         * Called from the request thread
+         * @param state new state of the circuit
+         */
+        void onCircuitStateChanged(State state);
+    }
+
+    private int mFailureThreshold;
+    private long mOpenTime;
+    private State mState;
+    private int mFailures;
+    private long mOpenedAt;
+    private long mProbeStartedAt;
+    private long mRejected;
+    private volatile OnStateChangedListener mListener;
+
+    public LIFXCircuitBreaker() {
+        mFailureThreshold = DefaultFailureThreshold;
+        mOpenTime = DefaultOpenTime;
+        mState = State.CLOSED;
+    }
+
+    /**
+     * @param failureThreshold number of failures in a row that open the circuit
+     * @param openTime time in ms to fail fast before probing the server
+     */
+    public synchronized void setThresholds(int failureThreshold, long openTime) {
+        if (failureThreshold < 1 || openTime < 0) {
+            throw new IllegalArgumentException("Invalid thresholds: " + failureThreshold + ", " + openTime);
+        }
+        mFailureThreshold = failureThreshold;
+        mOpenTime = openTime;
+    }
+
+    public void setOnStateChangedListener(OnStateChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Check if a request can be sent, the first call after the open time starts a probe
+     * @return false if the request should fail fast
+     */
+    public boolean allowRequest() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            switch (mState) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - mOpenedAt < mOpenTime) {
+                        mRejected++;
+                        return false;
+                    }
+                    mState = State.HALF_OPEN;
+                    mProbeStartedAt = now;
+                    break;
+                default:
+                    // Only one probe at a time, unless the last one never finished
+                    if (now - mProbeStartedAt < mOpenTime) {
+                        mRejected++;
+                        return false;
+                    }
+                    mProbeStartedAt = now;
+                    return true;
+            }
+        }
+        notifyChanged(State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * See if commands should be rejected before they are queued, does not start a probe
+     * @return true while the circuit is open and the open time has not passed
+     */
+    public synchronized boolean isOpen() {
+        return mState == State.OPEN && System.currentTimeMillis() - mOpenedAt < mOpenTime;
+    }
+
+    /**
+     * The server answered a request
+     */
+    public void onSuccess() {
+        synchronized (this) {
+            mFailures = 0;
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+        }
+        notifyChanged(State.CLOSED);
+    }
+
+    /**
+     * A request failed from a network error or a server error
+     */
+    public void onFailure() {
+        synchronized (this) {
+            mFailures++;
+            if (mState == State.OPEN || (mState == State.CLOSED && mFailures < mFailureThreshold)) {
+                return;
+            }
+            mState = State.OPEN;
+            mOpenedAt = System.currentTimeMillis();
+        }
+        notifyChanged(State.OPEN);
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Get the number of requests that failed fast
+     * @return number of requests
+     */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    private void notifyChanged(State state) {
+        OnStateChangedListener listener = mListener;
+        if (listener != null) {
+            // Called from the workers, a failing listener must not stop the command
+            try {
+                listener.onCircuitStateChanged(state);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Circuit state listener failed", e);
+            }
+        }
+    }
+}
@@ -4,42 +4,204 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.URL;
 import java.text.ParseException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Set;
 
 public class LIFXCommand {
-    private static final String ApiUrl = "https://api.lifx.com/v1/lights/";
+    public static final String DefaultApiUrl = "https://api.lifx.com/v1/lights/";
+    private static LIFXTransport sDefaultTransport;
 
     public static final int ListLights = 1;
     public static final int SetState = 2;
     public static final int SetStates = 3;
     public static final int TogglePower = 4;
+    public static final int Pulse = 5;
+    public static final int Breathe = 6;
 
     public final int command;
     public final LIFXState[] states;
 
+    // Settings of Pulse and Breathe commands
+    public final LIFXWaveform waveform;
+
+    // SetState commands that were batched into this SetStates command
+    final LIFXCommand[] parts;
+
+    // Sent by the remote itself (e.g. refreshing the cache), the listener is not called for it
+    final boolean internal;
+
+    // Finishes with the response of this command
+    final LIFXCommandFuture future;
+
+    // Time in ns the command was queued, kept when it is merged or batched
+    long queuedAt;
+
+    // Time in ns before which a retried command is not sent, 0 to send right away
+    long notBefore;
+
+    // Number of times the command was sent again after failing
+    int retries;
+
+    // Put back in the queue after it was taken, it does not count against the capacity
+    boolean requeued;
+
+    // Ids of the lights and the snapshot they were resolved with, only used by the queue
+    private boolean mLightsResolved;
+    private LIFXBulbRegistry.Snapshot mLightsSnapshot;
+    private Set<String> mLights;
+
     LIFXCommand(int command, LIFXState[] states) {
+        this(command, states, false);
+    }
+
+    LIFXCommand(int command, LIFXState[] states, boolean internal) {
         this.command = command;
         this.states = states;
+        this.internal = internal;
+        waveform = null;
+        parts = null;
+        future = new LIFXCommandFuture(this);
+    }
+
+    /**
+     * Create a Pulse or Breathe command
+     * @param command Pulse or Breathe
+     * @param selector of the lightbulbs
+     * @param waveform settings of the effect
+     */
+    LIFXCommand(int command, String selector, LIFXWaveform waveform) {
+        this.command = command;
+        this.waveform = waveform;
+        states = new LIFXState[] { waveform.toState(selector) };
+        internal = false;
+        parts = null;
+        future = new LIFXCommandFuture(this);
+    }
+
+    LIFXCommand(LIFXCommand[] parts) {
+        command = SetStates;
+        states = new LIFXState[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            states[i] = parts[i].states[0];
+        }
+        this.parts = parts;
+        internal = false;
+        waveform = null;
+        future = new LIFXCommandFuture(this);
+        queuedAt = parts[0].queuedAt;
+    }
+
+    /**
+     * Sending the command again leaves the lights the same as sending it once. Toggling the
+     * power and effects are not, sending them twice undoes or restarts them.
+     * @return if the command can be sent again safely
+     */
+    public boolean isIdempotent() {
+        return command == ListLights || command == SetState || command == SetStates;
+    }
+
+    /**
+     * Only single SetState commands for specific lights can be sent together in a batch
+     * @return if this command can be batched
+     */
+    boolean isBatchable() {
+        return command == SetState && !states[0].selector.equalsIgnoreCase(LIFXState.SelectorAll);
+    }
+
+    /**
+     * Check if this command and another command could affect the same lights. Selectors are
+     * resolved to the ids of their lights, so "group:Kitchen" conflicts with the id of a light
+     * in the kitchen and "id:a,id:b" with "id:a".
+     * @param other command
+     * @param snapshot to resolve labels, groups and locations with, null to only resolve ids
+     * @return true if they share a light, or either could affect any light
+     */
+    boolean conflictsWith(LIFXCommand other, LIFXBulbRegistry.Snapshot snapshot) {
+        Set<String> lights = lights(snapshot);
+        Set<String> otherLights = other.lights(snapshot);
+        if (lights == null || otherLights == null) {
+            return true;
+        }
+        if (lights.size() > otherLights.size()) {
+            Set<String> swap = lights;
+            lights = otherLights;
+            otherLights = swap;
+        }
+        for (String id : lights) {
+            if (otherLights.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolve the selectors of the states to the ids of their lights, kept until the snapshot
+     * changes
+     * @param snapshot to resolve labels, groups and locations with, null to only resolve ids
+     * @return lower case ids or null if the command could affect any light: a selector is all,
+     *         or it cannot be resolved or matches no light in the snapshot
+     */
+    private Set<String> lights(LIFXBulbRegistry.Snapshot snapshot) {
+        if (!mLightsResolved || mLightsSnapshot != snapshot) {
+            mLights = resolveLights(snapshot);
+            mLightsSnapshot = snapshot;
+            mLightsResolved = true;
+        }
+        return mLights;
+    }
+
+    private Set<String> resolveLights(LIFXBulbRegistry.Snapshot snapshot) {
+        Set<String> lights = new HashSet<>();
+        for (LIFXState s : states) {
+            for (String part : s.selector.split(",")) {
+                int zone = part.indexOf('|');
+                part = (zone >= 0 ? part.substring(0, zone) : part).trim().toLowerCase(Locale.US);
+                if (part.startsWith(LIFXBulbRegistry.SelectorId)) {
+                    lights.add(part.substring(LIFXBulbRegistry.SelectorId.length()));
+                    continue;
+                }
+                List<LIFXBulb> bulbs = snapshot != null && !part.equals(LIFXState.SelectorAll)
+                        ? snapshot.find(part) : null;
+                if (bulbs == null || bulbs.isEmpty()) {
+                    // The server could know lights for it that are not cached
+                    return null;
+                }
+                for (LIFXBulb bulb : bulbs) {
+                    lights.add(bulb.id().toLowerCase(Locale.US));
+                }
+            }
+        }
+        return lights;
     }
 
     public String url() {
+        return url(DefaultApiUrl);
+    }
+
+    /**
+     * @param apiUrl base url of the lights api ending with a slash
+     * @return url of this command
+     */
+    public String url(String apiUrl) {
         switch (command) {
             case ListLights:
-                return ApiUrl + states[0].selector;
+                return apiUrl + states[0].selector;
             case SetState:
-                return ApiUrl + states[0].selector + "/state";
+                return apiUrl + states[0].selector + "/state";
             case SetStates:
-                return ApiUrl + "states";
+                return apiUrl + "states";
             case TogglePower:
-                return ApiUrl + states[0].selector + "/toggle";
+                return apiUrl + states[0].selector + "/toggle";
+            case Pulse:
+                return apiUrl + states[0].selector + "/effects/pulse";
+            case Breathe:
+                return apiUrl + states[0].selector + "/effects/breathe";
         }
         throw new IllegalStateException("Invalid command getting url: " + command);
     }
@@ -66,6 +228,9 @@ public class LIFXCommand {
                     throw new IllegalStateException("Setting state did not provide any states!");
                 }
                 return "{ \"duration\": \"" + ((double) states[0].duration / 1000f) + "\"}";
+            case Pulse:
+            case Breathe:
+                return waveform.formatJson(command == Breathe).toString();
         }
         return null;
     }
@@ -79,56 +244,89 @@ public class LIFXCommand {
             case SetState:
                 return "put";
             case TogglePower:
+            case Pulse:
+            case Breathe:
                 return "post";
         }
         throw new IllegalStateException("Invalid command getting action: " + command);
     }
 
     public LIFXRemoteResponse request(String token) throws JSONException, LIFXResponseException, IOException, ParseException {
-        BufferedReader reader = null;
+        return request(getDefaultTransport(), token);
+    }
+
+    public LIFXRemoteResponse request(LIFXTransport transport, String token) throws JSONException, LIFXResponseException, IOException, ParseException {
+        return request(transport, token, null);
+    }
+
+    /**
+     * Send the command and keep the rate limiter up to date with the response
+     * @param transport sends the request
+     * @param token app token
+     * @param limiter rate limiter to update or null
+     * @return response of the server
+     */
+    public LIFXRemoteResponse request(LIFXTransport transport, String token, LIFXRateLimiter limiter) throws JSONException, LIFXResponseException, IOException, ParseException {
+        return request(transport, DefaultApiUrl, token, limiter);
+    }
+
+    /**
+     * Send the command to another server, e.g. a mock server for testing
+     * @param transport sends the request
+     * @param apiUrl base url of the lights api ending with a slash
+     * @param token app token
+     * @param limiter rate limiter to update or null
+     * @return response of the server
+     */
+    public LIFXRemoteResponse request(LIFXTransport transport, String apiUrl, String token, LIFXRateLimiter limiter) throws JSONException, LIFXResponseException, IOException, ParseException {
+        return request(transport, apiUrl, token, limiter, null);
+    }
+
+    LIFXRemoteResponse request(LIFXTransport transport, String apiUrl, String token, LIFXRateLimiter limiter,
+                               LIFXCommandMetrics metrics) throws JSONException, LIFXResponseException, IOException, ParseException {
+        String action = getAction();
+        long start = System.nanoTime();
+        LIFXTransport.Response response = transport.execute(action.toUpperCase(Locale.US), url(apiUrl), token,
+                action.equals("get") ? null : buildJsonData());
         try {
-            HttpsURLConnection connection;
-            URL url = new URL(url());
-            connection = (HttpsURLConnection) url.openConnection();
-            connection.setRequestMethod(getAction().toUpperCase(Locale.getDefault()));
-            connection.setRequestProperty("Authorization", "Bearer " + token);
-            connection.setRequestProperty("content-type", "application/json");
-            connection.setRequestProperty("Accept", "*/*");
-            if (!getAction().equalsIgnoreCase("get")) {
-                connection.setDoOutput(true);
-                OutputStreamWriter out = new OutputStreamWriter(
-                        connection.getOutputStream());
-                out.write(buildJsonData());
-                out.close();
+            if (limiter != null) {
+                limiter.update(response);
             }
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.connect();
-
             // Parse response
-            int code = connection.getResponseCode();
+            int code = response.code();
+            long received = System.nanoTime();
+            if (metrics != null) {
+                metrics.http(this, received - start, code);
+            }
             if (200 <= code && code < 500) {
-                reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line);
+                LIFXJsonReader reader = new LIFXJsonReader(new InputStreamReader(response.body(), "UTF-8"));
+                LIFXRemoteResponse res;
+                try {
+                    res = LIFXRemoteResponse.read(reader, code, states[0]);
+                } catch (LIFXJsonReader.SyntaxException e) {
+                    // The server answered with a body that cannot be read, this is not a network error
+                    ParseException error = new ParseException(e.getMessage(), 0);
+                    error.initCause(e);
+                    throw error;
                 }
-                String data = sb.toString().trim();
-                if (data.charAt(0) == '{' || (command != ListLights && command != SetStates)) {
-                    return new LIFXRemoteResponse(new JSONObject(data), code, states[0]);
-                } else {
-                    return new LIFXRemoteResponse(new JSONArray(data), code, states[0]);
+                if (metrics != null) {
+                    metrics.parsed(this, System.nanoTime() - received);
                 }
+                return res;
             }
-            throw new LIFXResponseException("Server error in '" + getAction() + "' for command " + command, code);
+            LIFXResponseException e = new LIFXResponseException("Server error in '" + action + "' for command "
+                    + command, code);
+            e.setRetryAfter(LIFXRetryPolicy.parseRetryAfter(response.header("Retry-After")));
+            throw e;
         } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ignored) {
-                }
-            }
+            response.close();
+        }
+    }
+
+    private static synchronized LIFXTransport getDefaultTransport() {
+        if (sDefaultTransport == null) {
+            sDefaultTransport = new LIFXKeepAliveTransport();
         }
+        return sDefaultTransport;
     }
 }
@@ -0,0 +1,270 @@
+package com.matthewn4444.lifx.remote;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle to a command given by LIFXRemote. It finishes with the response of that command only,
+ * so many commands can be sent at the same time without matching up the listener callbacks.
+ * State changes that were coalesced or batched still finish with the response for their own
+ * lights. A command can be cancelled until a request thread takes it from the queue.
+ */
+public class LIFXCommandFuture implements Future<LIFXRemoteResponse> {
+    private static final String TAG = "LIFXCommandFuture";
+
+    /**
+     * Called when the command has finished, from the request thread or right away if it had
+     * already finished when the callback was added
+     */
+    public interface Callback {
+        void onFinished(LIFXRemoteResponse response);
+        void onError(LIFXResponseException e);
+    }
+
+    /**
+     * Sends the next command after a command has finished
+     */
+    public interface Continuation {
+        /**
+         * @param response of the previous command
+         * @return future of the next command or null to finish with the previous response
+         */
+        LIFXCommandFuture then(LIFXRemoteResponse response);
+    }
+
+    private static final int Pending = 0;
+    private static final int Finished = 1;
+    private static final int Failed = 2;
+    private static final int Cancelled = 3;
+
+    private final LIFXCommand mCommand;
+    private LIFXCommandQueue mQueue;
+    private int mState;
+    private LIFXRemoteResponse mResponse;
+    private LIFXResponseException mException;
+    private List<Callback> mCallbacks;
+
+    LIFXCommandFuture(LIFXCommand command) {
+        mCommand = command;
+    }
+
+    /**
+     * Get a future that has already failed, used when a command cannot be sent
+     * @param e the error
+     * @return failed future
+     */
+    static LIFXCommandFuture failed(LIFXResponseException e) {
+        LIFXCommandFuture future = new LIFXCommandFuture(null);
+        future.fail(e);
+        return future;
+    }
+
+    /**
+     * Cancel the command if it is still waiting in the queue. Commands that are being sent or
+     * were merged with a newer command for the same lights cannot be cancelled.
+     * @param mayInterruptIfRunning ignored, requests are never interrupted
+     * @return true if the command will not be sent
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        LIFXCommandQueue queue;
+        synchronized (this) {
+            if (mState != Pending) {
+                return false;
+            }
+            queue = mQueue;
+        }
+        if (mCommand != null && (queue == null || !queue.remove(mCommand))) {
+            return false;
+        }
+        return finish(Cancelled, null, new LIFXResponseException("Command was cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == Cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != Pending;
+    }
+
+    @Override
+    public synchronized LIFXRemoteResponse get() throws InterruptedException, ExecutionException {
+        while (mState == Pending) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized LIFXRemoteResponse get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == Pending) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Command did not finish in " + timeout + " " + unit);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    /**
+     * Get told when the command finishes
+     * @param callback called once
+     * @return this future
+     */
+    public LIFXCommandFuture addCallback(Callback callback) {
+        synchronized (this) {
+            if (mState == Pending) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<>();
+                }
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        call(callback);
+        return this;
+    }
+
+    /**
+     * Send another command after this one finishes. If this command fails or the returned
+     * future is cancelled, the next command is not sent.
+     * @param next gives the next command from the response of this command
+     * @return future that finishes with the response of the next command
+     */
+    public LIFXCommandFuture then(final Continuation next) {
+        final LIFXCommandFuture result = new LIFXCommandFuture(null);
+        addCallback(new Callback() {
+            @Override
+            public void onFinished(LIFXRemoteResponse response) {
+                if (result.isDone()) {
+                    return;
+                }
+                LIFXCommandFuture future;
+                try {
+                    future = next.then(response);
+                } catch (RuntimeException e) {
+                    LIFXResponseException ex = new LIFXResponseException(e.getMessage());
+                    ex.setStackTrace(e.getStackTrace());
+                    result.fail(ex);
+                    return;
+                }
+                if (future == null) {
+                    result.complete(response);
+                } else {
+                    future.forwardTo(result);
+                }
+            }
+
+            @Override
+            public void onError(LIFXResponseException e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    void setQueue(LIFXCommandQueue queue) {
+        synchronized (this) {
+            mQueue = queue;
+        }
+    }
+
+    void complete(LIFXRemoteResponse response) {
+        finish(Finished, response, null);
+    }
+
+    void fail(LIFXResponseException e) {
+        finish(Failed, null, e);
+    }
+
+    /**
+     * Cancel without going through the queue, used when the remote is destroyed
+     */
+    void abort() {
+        finish(Cancelled, null, new LIFXResponseException("Command was cancelled"));
+    }
+
+    /**
+     * Finish another future the same way this one finishes. Used when a queued command was
+     * merged into a newer one, the older future cannot be cancelled anymore.
+     * @param other future to finish
+     */
+    void forwardTo(final LIFXCommandFuture other) {
+        other.setQueue(null);
+        addCallback(new Callback() {
+            @Override
+            public void onFinished(LIFXRemoteResponse response) {
+                other.complete(response);
+            }
+
+            @Override
+            public void onError(LIFXResponseException e) {
+                if (isCancelled()) {
+                    other.abort();
+                } else {
+                    other.fail(e);
+                }
+            }
+        });
+    }
+
+    private boolean finish(int state, LIFXRemoteResponse response, LIFXResponseException e) {
+        List<Callback> callbacks;
+        synchronized (this) {
+            if (mState != Pending) {
+                return false;
+            }
+            mState = state;
+            mResponse = response;
+            mException = e;
+            mQueue = null;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                // A callback that throws must not stop the others or the request thread
+                try {
+                    call(callback);
+                } catch (RuntimeException ex) {
+                    Log.w(TAG, "Callback of a command failed", ex);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void call(Callback callback) {
+        if (mState == Finished) {
+            callback.onFinished(mResponse);
+        } else {
+            callback.onError(mException);
+        }
+    }
+
+    // Must be called with the lock held
+    private LIFXRemoteResponse result() throws ExecutionException {
+        switch (mState) {
+            case Cancelled:
+                throw new CancellationException();
+            case Failed:
+                throw new ExecutionException(mException);
+            default:
+                return mResponse;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.matthewn4444.lifx.remote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instruments of the command pipeline of a remote, looked up once so recording a command is
+ * only a few atomic updates. Times are in ns, histograms are per command type:
+ * command.TYPE.queue from queued until taken by a worker, command.TYPE.http until the response
+ * headers arrived, command.TYPE.parse to read the body and command.TYPE.total until finished.
+ */
+class LIFXCommandMetrics {
+    private static final String[] CommandNames = {
+            "unknown", "list", "state", "states", "toggle", "pulse", "breathe"
+    };
+    private static final int MaxResponseCode = 600;
+
+    private final LIFXMetrics mMetrics;
+    private final LIFXHistogram[] mQueueTimes;
+    private final LIFXHistogram[] mHttpTimes;
+    private final LIFXHistogram[] mParseTimes;
+    private final LIFXHistogram[] mTotalTimes;
+    private final LIFXHistogram mRateLimitTime;
+    private final LIFXHistogram mRefreshTime;
+    private final AtomicLong mErrors;
+    private final AtomicLong mRetries;
+    private final AtomicLong mQueueRejected;
+    private final AtomicLong mQueueDropped;
+    private final AtomicLong mCircuitRejected;
+
+    // Counters of response codes, created on the first response with each code
+    private final AtomicLong[] mResponses;
+
+    LIFXCommandMetrics(LIFXMetrics metrics, final LIFXCommandQueue queue, final LIFXCircuitBreaker breaker) {
+        mMetrics = metrics;
+        mQueueTimes = new LIFXHistogram[CommandNames.length];
+        mHttpTimes = new LIFXHistogram[CommandNames.length];
+        mParseTimes = new LIFXHistogram[CommandNames.length];
+        mTotalTimes = new LIFXHistogram[CommandNames.length];
+        for (int i = 0; i < CommandNames.length; i++) {
+            String prefix = "command." + CommandNames[i];
+            mQueueTimes[i] = metrics.histogram(prefix + ".queue");
+            mHttpTimes[i] = metrics.histogram(prefix + ".http");
+            mParseTimes[i] = metrics.histogram(prefix + ".parse");
+            mTotalTimes[i] = metrics.histogram(prefix + ".total");
+        }
+        mRateLimitTime = metrics.histogram("request.ratelimit");
+        mRefreshTime = metrics.histogram("refresh.total");
+        mErrors = metrics.counter("request.errors");
+        mRetries = metrics.counter("request.retries");
+        mQueueRejected = metrics.counter("queue.rejected");
+        mQueueDropped = metrics.counter("queue.dropped");
+        mCircuitRejected = metrics.counter("circuit.rejected");
+        mResponses = new AtomicLong[MaxResponseCode];
+
+        metrics.gauge("queue.size", new LIFXMetrics.Gauge() {
+            @Override
+            public long value() {
+                return queue.size();
+            }
+        });
+        metrics.gauge("queue.inflight", new LIFXMetrics.Gauge() {
+            @Override
+            public long value() {
+                return queue.inFlightSize();
+            }
+        });
+        metrics.gauge("circuit.open", new LIFXMetrics.Gauge() {
+            @Override
+            public long value() {
+                return breaker.getState() != LIFXCircuitBreaker.State.CLOSED ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * @param command taken from the queue
+     * @param now time in ns it was taken
+     */
+    void taken(LIFXCommand command, long now) {
+        mQueueTimes[index(command)].record(now - command.queuedAt);
+    }
+
+    void waitedForRateLimit(long time) {
+        mRateLimitTime.record(time);
+    }
+
+    void http(LIFXCommand command, long time, int code) {
+        mHttpTimes[index(command)].record(time);
+        if (code >= 0 && code < MaxResponseCode) {
+            // Racing threads get the same counter from the registry
+            AtomicLong counter = mResponses[code];
+            if (counter == null) {
+                counter = mMetrics.counter("response." + code);
+                mResponses[code] = counter;
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    void parsed(LIFXCommand command, long time) {
+        mParseTimes[index(command)].record(time);
+    }
+
+    /**
+     * @param command that got a response or failed
+     * @param now time in ns it finished
+     */
+    void finished(LIFXCommand command, long now) {
+        long time = now - command.queuedAt;
+        mTotalTimes[index(command)].record(time);
+        if (command.internal && command.command == LIFXCommand.ListLights) {
+            mRefreshTime.record(time);
+        }
+    }
+
+    /**
+     * A request failed without a response that could be read
+     */
+    void error() {
+        mErrors.incrementAndGet();
+    }
+
+    /**
+     * A command was queued again after it failed or the server answered too many requests
+     */
+    void retried() {
+        mRetries.incrementAndGet();
+    }
+
+    /**
+     * A command was not queued because the queue was full
+     */
+    void queueRejected() {
+        mQueueRejected.incrementAndGet();
+    }
+
+    /**
+     * The oldest waiting command was dropped to make room for a new one
+     */
+    void queueDropped() {
+        mQueueDropped.incrementAndGet();
+    }
+
+    /**
+     * A command failed fast because the circuit is open
+     */
+    void circuitRejected() {
+        mCircuitRejected.incrementAndGet();
+    }
+
+    private static int index(LIFXCommand command) {
+        return command.command > 0 && command.command < CommandNames.length ? command.command : 0;
+    }
+}
@@ -0,0 +1,560 @@
+package com.matthewn4444.lifx.remote;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of commands waiting to be sent to the server. When coalescing is enabled, a new SetState
+ * command replaces a pending SetState command with the same selector instead of being appended.
+ * Commands taken by the workers are kept as in flight until finished() is called so that the
+ * ordering policy can hold back commands for the same lights. The number of waiting commands is
+ * bounded, the overflow policy decides what happens to new commands when the queue is full.
+ * Commands put back to be retried do not count against the bound and are never dropped, nor
+ * are the commands of the remote itself.
+ */
+class LIFXCommandQueue {
+    public static final int DefaultCapacity = 1000;
+
+    private final LinkedList<LIFXCommand> mQueue;
+    private final List<LIFXCommand> mInFlight;
+
+    // Number of waiting commands that count against the capacity, the ones put back to be
+    // retried do not
+    private int mCounted;
+    private final ReentrantLock mLock;
+    private final Condition mChanged;
+    private final Condition mNotFull;
+
+    private boolean mCoalescing;
+    private boolean mLowBudget;
+    private LIFXRemote.OrderingPolicy mPolicy;
+    private int mCapacity;
+    private LIFXRemote.OverflowPolicy mOverflow;
+
+    // Resolves the selectors of commands to lights for the ordering policy, null for only ids
+    private LIFXBulbRegistry mBulbs;
+
+    LIFXCommandQueue() {
+        mQueue = new LinkedList<>();
+        mInFlight = new ArrayList<>();
+        mLock = new ReentrantLock();
+        mChanged = mLock.newCondition();
+        mNotFull = mLock.newCondition();
+        mPolicy = LIFXRemote.OrderingPolicy.PER_SELECTOR;
+        mCapacity = DefaultCapacity;
+        mOverflow = LIFXRemote.OverflowPolicy.REJECT;
+    }
+
+    /**
+     * Set the bulbs used to find out which commands share lights. Without them, commands with
+     * labels, groups or locations are ordered as if they could affect any light.
+     * @param bulbs registry of the remote
+     */
+    void setBulbRegistry(LIFXBulbRegistry bulbs) {
+        mLock.lock();
+        try {
+            mBulbs = bulbs;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setCoalescing(boolean flag) {
+        mLock.lock();
+        try {
+            mCoalescing = flag;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    boolean isCoalescing() {
+        mLock.lock();
+        try {
+            return mCoalescing;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setOrderingPolicy(LIFXRemote.OrderingPolicy policy) {
+        mLock.lock();
+        try {
+            mPolicy = policy;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    LIFXRemote.OrderingPolicy getOrderingPolicy() {
+        mLock.lock();
+        try {
+            return mPolicy;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setCapacity(int capacity, LIFXRemote.OverflowPolicy overflow) {
+        mLock.lock();
+        try {
+            mCapacity = capacity;
+            mOverflow = overflow;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        mLock.lock();
+        try {
+            return mCapacity;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    LIFXRemote.OverflowPolicy getOverflowPolicy() {
+        mLock.lock();
+        try {
+            return mOverflow;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * When the rate limit budget is low, state changes are coalesced even if coalescing is off
+     * @param flag budget is low
+     */
+    void setLowBudget(boolean flag) {
+        mLock.lock();
+        try {
+            mLowBudget = flag;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queue a command, when the queue is full the overflow policy decides what happens to it.
+     * With BLOCK this waits for room, if the thread is interrupted the command is rejected.
+     * @param command to send
+     * @return null if the command was queued or merged, the command itself if it was rejected,
+     *         or the oldest waiting command if it was dropped to make room
+     */
+    LIFXCommand add(LIFXCommand command) {
+        mLock.lock();
+        try {
+            command.future.setQueue(this);
+            command.queuedAt = System.nanoTime();
+            command.requeued = false;
+            boolean full = mCounted >= mCapacity;
+            if ((mCoalescing || mLowBudget || (full && mOverflow == LIFXRemote.OverflowPolicy.COALESCE))
+                    && coalesce(command)) {
+                mChanged.signalAll();
+                return null;
+            }
+            LIFXCommand dropped = null;
+            if (full) {
+                switch (mOverflow) {
+                    case BLOCK:
+                        try {
+                            while (mCounted >= mCapacity && mOverflow == LIFXRemote.OverflowPolicy.BLOCK) {
+                                mNotFull.await();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return command;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = removeOldestDroppable();
+                        if (dropped == null) {
+                            return command;
+                        }
+                        break;
+                    default:
+                        // Rejected, or nothing to coalesce with
+                        return command;
+                }
+            }
+            mQueue.addLast(command);
+            mCounted++;
+            mChanged.signalAll();
+            return dropped;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queue a command without waiting for room and without dropping another command, used for
+     * the commands of the remote itself such as refreshing the cache
+     * @param command to send
+     * @return null if the command was queued, the command itself if the queue is full
+     */
+    LIFXCommand offer(LIFXCommand command) {
+        mLock.lock();
+        try {
+            if (mCounted >= mCapacity) {
+                return command;
+            }
+            command.future.setQueue(this);
+            command.queuedAt = System.nanoTime();
+            command.requeued = false;
+            mQueue.addLast(command);
+            mCounted++;
+            mChanged.signalAll();
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take a command out of the queue before it is sent
+     * @param command to remove
+     * @return true if the command was still waiting in the queue
+     */
+    boolean remove(LIFXCommand command) {
+        mLock.lock();
+        try {
+            if (mQueue.remove(command)) {
+                uncount(command);
+                mChanged.signalAll();
+                mNotFull.signalAll();
+                return true;
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next command that is allowed to be sent by the ordering policy
+     * @param timeout time to wait for a command
+     * @param unit unit of the timeout
+     * @return the command or null if the timeout passed
+     * @throws InterruptedException
+     */
+    LIFXCommand poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            LIFXCommand command;
+            while ((command = takeNext()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                // Wake up when a delayed retry is due
+                long wait = Math.min(nanos, nanosUntilDue());
+                nanos -= wait - mChanged.awaitNanos(wait);
+            }
+            uncount(command);
+            mInFlight.add(command);
+            mNotFull.signalAll();
+            return command;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Put a failed command back in the queue to be sent after a delay. Other commands are sent
+     * meanwhile except ones for the same lights that were queued after it, so their order is
+     * kept. With the STRICT ordering policy nothing is sent until the retry.
+     * @param command that was taken from poll() or batch()
+     * @param delay time in ms to wait
+     */
+    void retryLater(LIFXCommand command, long delay) {
+        mLock.lock();
+        try {
+            command.notBefore = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            command.requeued = true;
+            mInFlight.remove(command);
+            mQueue.addFirst(command);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Let commands waiting on the lights of this command be sent
+     * @param command that was taken from poll() or batch()
+     */
+    void finished(LIFXCommand command) {
+        mLock.lock();
+        try {
+            mInFlight.remove(command);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Collect more SetState commands from the queue to send together with the first command.
+     * Waits up to the window for more commands to arrive and stops early once the maximum
+     * number of states is reached or no more commands can be batched.
+     * @param first command already taken from the queue
+     * @param window time to wait for more commands
+     * @param unit unit of the window
+     * @return the first command if nothing was batched, otherwise a SetStates command
+     * @throws InterruptedException
+     */
+    LIFXCommand batch(LIFXCommand first, long window, TimeUnit unit) throws InterruptedException {
+        if (!first.isBatchable()) {
+            return first;
+        }
+        List<LIFXCommand> batch = new ArrayList<>();
+        batch.add(first);
+        long nanos = unit.toNanos(window);
+        mLock.lockInterruptibly();
+        try {
+            while (batch.size() < LIFXState.MaxStateSize) {
+                LIFXCommand next = takeBatchable(batch);
+                if (next == null) {
+                    if (nanos <= 0) {
+                        break;
+                    }
+                    nanos = mChanged.awaitNanos(nanos);
+                    continue;
+                }
+                uncount(next);
+                batch.add(next);
+                mInFlight.add(next);
+                mNotFull.signalAll();
+            }
+            if (batch.size() == 1) {
+                return first;
+            }
+            LIFXCommand command = new LIFXCommand(batch.toArray(new LIFXCommand[batch.size()]));
+            mInFlight.removeAll(batch);
+            mInFlight.add(command);
+            return command;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int size() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int inFlightSize() {
+        mLock.lock();
+        try {
+            return mInFlight.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove all the commands waiting and in flight
+     * @return the removed commands
+     */
+    List<LIFXCommand> clear() {
+        mLock.lock();
+        try {
+            List<LIFXCommand> removed = new ArrayList<>(mQueue);
+            removed.addAll(mInFlight);
+            mQueue.clear();
+            mInFlight.clear();
+            mCounted = 0;
+            mNotFull.signalAll();
+            return removed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Must be called with the lock held
+    private LIFXCommand takeNext() {
+        if (mQueue.isEmpty()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        switch (mPolicy) {
+            case STRICT:
+                return mInFlight.isEmpty() && isDue(mQueue.getFirst(), now) ? mQueue.removeFirst() : null;
+            case PER_SELECTOR:
+                int index = 0;
+                for (Iterator<LIFXCommand> it = mQueue.iterator(); it.hasNext(); index++) {
+                    LIFXCommand command = it.next();
+                    if (isDue(command, now) && isFree(command, index)) {
+                        it.remove();
+                        return command;
+                    }
+                }
+                return null;
+            default:
+                for (Iterator<LIFXCommand> it = mQueue.iterator(); it.hasNext(); ) {
+                    LIFXCommand command = it.next();
+                    if (isDue(command, now)) {
+                        it.remove();
+                        return command;
+                    }
+                }
+                return null;
+        }
+    }
+
+    // Must be called with the lock held
+    private LIFXCommand takeBatchable(List<LIFXCommand> batch) {
+        int index = 0;
+        for (Iterator<LIFXCommand> it = mQueue.iterator(); it.hasNext(); index++) {
+            LIFXCommand command = it.next();
+            boolean free = mPolicy == LIFXRemote.OrderingPolicy.PER_SELECTOR
+                    ? isFree(command, index)
+                    : !conflictsWithAny(batch, command);
+            free &= isDue(command, System.nanoTime());
+            if (free && command.isBatchable()) {
+                it.remove();
+                return command;
+            }
+            if (mPolicy != LIFXRemote.OrderingPolicy.PER_SELECTOR) {
+                // Other policies cannot skip over commands
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A command is free to send if no command in flight or waiting before it in the queue uses
+     * the same lights. Must be called with the lock held.
+     * @param command to check
+     * @param index position of the command in the queue
+     * @return if the command can be sent now
+     */
+    private boolean isFree(LIFXCommand command, int index) {
+        LIFXBulbRegistry.Snapshot snapshot = snapshot();
+        for (LIFXCommand c : mInFlight) {
+            if (command.conflictsWith(c, snapshot)) {
+                return false;
+            }
+        }
+        int i = 0;
+        for (Iterator<LIFXCommand> it = mQueue.iterator(); i < index && it.hasNext(); i++) {
+            if (command.conflictsWith(it.next(), snapshot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest command that was queued by the user and is not waiting to be retried.
+     * Must be called with the lock held.
+     * @return the removed command or null if there is none
+     */
+    private LIFXCommand removeOldestDroppable() {
+        for (Iterator<LIFXCommand> it = mQueue.iterator(); it.hasNext(); ) {
+            LIFXCommand command = it.next();
+            if (!command.internal && !command.requeued) {
+                it.remove();
+                mCounted--;
+                return command;
+            }
+        }
+        return null;
+    }
+
+    // Must be called with the lock held after a command left the queue
+    private void uncount(LIFXCommand command) {
+        if (!command.requeued) {
+            mCounted--;
+        }
+    }
+
+    private static boolean isDue(LIFXCommand command, long now) {
+        return command.notBefore == 0 || now - command.notBefore >= 0;
+    }
+
+    /**
+     * Must be called with the lock held
+     * @return time in ns until the next delayed retry is due, Long.MAX_VALUE if there is none
+     */
+    private long nanosUntilDue() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (LIFXCommand command : mQueue) {
+            if (command.notBefore != 0 && command.notBefore - now > 0) {
+                wait = Math.min(wait, command.notBefore - now);
+            }
+        }
+        return wait;
+    }
+
+    // Must be called with the lock held
+    private boolean conflictsWithAny(List<LIFXCommand> commands, LIFXCommand command) {
+        LIFXBulbRegistry.Snapshot snapshot = snapshot();
+        for (LIFXCommand c : commands) {
+            if (command.conflictsWith(c, snapshot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Must be called with the lock held
+    private LIFXBulbRegistry.Snapshot snapshot() {
+        return mBulbs != null ? mBulbs.getSnapshot() : null;
+    }
+
+    /**
+     * Walks backwards from the newest pending command looking for a SetState with the same
+     * selector. Commands for other lights are skipped, anything else that could affect the
+     * same lights (such as a group holding one of them) stops the search so ordering is never
+     * changed. Must be called with the lock held.
+     * @param command the new command
+     * @return true if the command was merged into a pending one
+     */
+    private boolean coalesce(LIFXCommand command) {
+        if (command.command != LIFXCommand.SetState) {
+            return false;
+        }
+        LIFXState state = command.states[0];
+        LIFXBulbRegistry.Snapshot snapshot = snapshot();
+        ListIterator<LIFXCommand> it = mQueue.listIterator(mQueue.size());
+        while (it.hasPrevious()) {
+            LIFXCommand pending = it.previous();
+            if (pending.command == LIFXCommand.SetState
+                    && pending.states[0].selector.equalsIgnoreCase(state.selector)) {
+                LIFXCommand merged = new LIFXCommand(LIFXCommand.SetState, new LIFXState[]{
+                        pending.states[0].mergeWith(state)
+                });
+                merged.future.setQueue(this);
+                merged.queuedAt = pending.queuedAt;
+                merged.notBefore = pending.notBefore;
+                merged.requeued = pending.requeued;
+                merged.retries = Math.max(pending.retries, command.retries);
+                merged.future.forwardTo(pending.future);
+                merged.future.forwardTo(command.future);
+                it.set(merged);
+                return true;
+            }
+            if (command.conflictsWith(pending, snapshot)) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+package com.matthewn4444.lifx.remote;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive values such as latencies in ns. Like an HDR histogram, values
+ * are counted in buckets that double in size every SubBuckets buckets, so percentiles are within
+ * about 6% of the real value whatever its size and recording is a few atomic increments.
+ */
+public class LIFXHistogram {
+    private static final int SubBucketBits = 4;
+    private static final int SubBuckets = 1 << SubBucketBits;
+
+    // Values above 2^MaxBits (about 18 minutes in ns) are counted in the last bucket
+    private static final int MaxBits = 40;
+    private static final int BucketCount = (MaxBits - SubBucketBits + 2) * SubBuckets;
+
+    /**
+     * Counts of a histogram at one time
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long sum, long max) {
+            mCounts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+        /**
+         * @param percentile from 0.0 to 100.0
+         * @return highest value of the bucket the percentile is in, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(mMax, highestValue(i));
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * @return count, mean and percentiles for values in ns, shown in ms
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "count:%d mean:%.2f p50:%.2f p90:%.2f p99:%.2f max:%.2f",
+                    mCount, getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(90) / 1e6,
+                    getPercentile(99) / 1e6, mMax / 1e6);
+        }
+    }
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+
+    public LIFXHistogram() {
+        mCounts = new AtomicLongArray(BucketCount);
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    /**
+     * @param value to count, negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        mCounts.incrementAndGet(bucketOf(value));
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+        }
+    }
+
+    /**
+     * Copy the counts, values recorded at the same time may only be partly included
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BucketCount];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mSum.get(), mMax.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BucketCount; i++) {
+            mCounts.set(i, 0);
+        }
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SubBuckets) {
+            return (int) value;
+        }
+        int exponent = Math.min(MaxBits, 63 - Long.numberOfLeadingZeros(value));
+        int sub = (int) (value >>> (exponent - SubBucketBits)) & (SubBuckets - 1);
+        if (exponent == MaxBits && value >= 1L << (MaxBits + 1)) {
+            sub = SubBuckets - 1;
+        }
+        return (exponent - SubBucketBits + 1) * SubBuckets + sub;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SubBuckets) {
+            return bucket;
+        }
+        int exponent = bucket / SubBuckets + SubBucketBits - 1;
+        long sub = bucket % SubBuckets;
+        long size = 1L << (exponent - SubBucketBits);
+        return ((SubBuckets + sub) << (exponent - SubBucketBits)) + size - 1;
+    }
+}
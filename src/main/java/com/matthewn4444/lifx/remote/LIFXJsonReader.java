@@ -0,0 +1,400 @@
+package com.matthewn4444.lifx.remote;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Small pull parser that reads json tokens straight from the response stream so responses can
+ * be turned into objects without building a JSONObject tree or holding the whole body in memory.
+ * Works like android.util.JsonReader which is not available on every api level.
+ */
+class LIFXJsonReader implements Closeable {
+
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+    /**
+     * The response was read but it is not valid json, unlike other IOExceptions it does not
+     * mean the connection failed
+     */
+    static final class SyntaxException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int EmptyDocument = 0;
+    private static final int NonEmptyDocument = 1;
+    private static final int EmptyArray = 2;
+    private static final int NonEmptyArray = 3;
+    private static final int EmptyObject = 4;
+    private static final int DanglingName = 5;
+    private static final int NonEmptyObject = 6;
+
+    private final Reader mIn;
+    private final char[] mBuffer;
+    private final StringBuilder mText;
+    private int mPos;
+    private int mLimit;
+
+    private int[] mStack;
+    private int mStackSize;
+    private Token mPeeked;
+
+    LIFXJsonReader(Reader in) {
+        mIn = in;
+        mBuffer = new char[1024];
+        mText = new StringBuilder();
+        mStack = new int[16];
+        mStack[mStackSize++] = EmptyDocument;
+    }
+
+    Token peek() throws IOException {
+        if (mPeeked != null) {
+            return mPeeked;
+        }
+        int scope = mStack[mStackSize - 1];
+        int c;
+        switch (scope) {
+            case EmptyArray:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mPeeked = Token.END_ARRAY;
+                }
+                mPos--;
+                mStack[mStackSize - 1] = NonEmptyArray;
+                return mPeeked = peekValue();
+            case NonEmptyArray:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mPeeked = Token.END_ARRAY;
+                } else if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                return mPeeked = peekValue();
+            case EmptyObject:
+            case NonEmptyObject:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return mPeeked = Token.END_OBJECT;
+                }
+                if (scope == NonEmptyObject) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected name");
+                }
+                mPos--;
+                mStack[mStackSize - 1] = DanglingName;
+                return mPeeked = Token.NAME;
+            case DanglingName:
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                mStack[mStackSize - 1] = NonEmptyObject;
+                return mPeeked = peekValue();
+            case EmptyDocument:
+                mStack[mStackSize - 1] = NonEmptyDocument;
+                return mPeeked = peekValue();
+            default:
+                if (fill() && nextNonWhitespaceOrEnd() != -1) {
+                    throw syntaxError("Expected end of document");
+                }
+                return mPeeked = Token.END_DOCUMENT;
+        }
+    }
+
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        mPos++;
+        push(EmptyObject);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        mStackSize--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        mPos++;
+        push(EmptyArray);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        mStackSize--;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        mPos++;
+        return readQuoted();
+    }
+
+    String nextString() throws IOException {
+        Token token = peek();
+        mPeeked = null;
+        if (token == Token.STRING) {
+            mPos++;
+            return readQuoted();
+        } else if (token == Token.NUMBER) {
+            return readLiteral();
+        }
+        throw syntaxError("Expected string but was " + token);
+    }
+
+    double nextDouble() throws IOException {
+        String text = readNumberText();
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number: " + text);
+        }
+    }
+
+    long nextLong() throws IOException {
+        String text = readNumberText();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            double value = nextDoubleFrom(text);
+            if (value != (long) value) {
+                throw syntaxError("Expected a long: " + text);
+            }
+            return (long) value;
+        }
+    }
+
+    int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw syntaxError("Expected an int: " + value);
+        }
+        return (int) value;
+    }
+
+    boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        String literal = readLiteral();
+        if (literal.equals("true")) {
+            return true;
+        } else if (literal.equals("false")) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean: " + literal);
+    }
+
+    void nextNull() throws IOException {
+        expect(Token.NULL);
+        String literal = readLiteral();
+        if (!literal.equals("null")) {
+            throw syntaxError("Expected null: " + literal);
+        }
+    }
+
+    void skipValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+            case NUMBER:
+                nextString();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Cannot skip " + peek());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void expect(Token token) throws IOException {
+        Token peeked = peek();
+        if (peeked != token) {
+            throw syntaxError("Expected " + token + " but was " + peeked);
+        }
+        mPeeked = null;
+    }
+
+    private void push(int scope) {
+        if (mStackSize == mStack.length) {
+            int[] stack = new int[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+        }
+        mStack[mStackSize++] = scope;
+    }
+
+    private Token peekValue() throws IOException {
+        int c = nextNonWhitespace();
+        mPos--;
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                if (c == '-' || ('0' <= c && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private String readNumberText() throws IOException {
+        Token token = peek();
+        if (token != Token.NUMBER && token != Token.STRING) {
+            throw syntaxError("Expected number but was " + token);
+        }
+        return nextString();
+    }
+
+    private double nextDoubleFrom(String text) throws IOException {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number: " + text);
+        }
+    }
+
+    private String readQuoted() throws IOException {
+        mText.setLength(0);
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw new EOFException("Unterminated string");
+            }
+            char c = mBuffer[mPos++];
+            if (c == '"') {
+                return mText.toString();
+            } else if (c == '\\') {
+                mText.append(readEscape());
+            } else {
+                mText.append(c);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            throw new EOFException("Unterminated escape");
+        }
+        char c = mBuffer[mPos++];
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (mPos == mLimit && !fill()) {
+                        throw new EOFException("Unterminated escape");
+                    }
+                    int digit = Character.digit(mBuffer[mPos++], 16);
+                    if (digit == -1) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                return c;
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        mText.setLength(0);
+        while (mPos < mLimit || fill()) {
+            char c = mBuffer[mPos];
+            if (c == ',' || c == ']' || c == '}' || c == ':' || c == ' ' || c == '\t' || c == '\n'
+                    || c == '\r') {
+                break;
+            }
+            mText.append(c);
+            mPos++;
+        }
+        return mText.toString();
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c = nextNonWhitespaceOrEnd();
+        if (c == -1) {
+            throw new EOFException("End of input");
+        }
+        return c;
+    }
+
+    private int nextNonWhitespaceOrEnd() throws IOException {
+        while (mPos < mLimit || fill()) {
+            char c = mBuffer[mPos++];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        if (mPos < mLimit) {
+            return true;
+        }
+        int read = mIn.read(mBuffer, 0, mBuffer.length);
+        if (read <= 0) {
+            mPos = mLimit = 0;
+            return false;
+        }
+        mPos = 0;
+        mLimit = read;
+        return true;
+    }
+
+    private SyntaxException syntaxError(String message) {
+        return new SyntaxException(message + " in json response");
+    }
+}
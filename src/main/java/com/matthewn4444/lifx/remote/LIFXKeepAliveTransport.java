@@ -0,0 +1,587 @@
+package com.matthewn4444.lifx.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Http/1.1 transport that keeps connections open after each request and reuses them for the
+ * next request to the same host, so the TLS handshake is only done once instead of every command.
+ * Like HttpsURLConnection it uses the default SSLSocketFactory and hostname verifier of
+ * HttpsURLConnection and the proxies chosen by the default ProxySelector.
+ */
+public class LIFXKeepAliveTransport implements LIFXTransport {
+    public static final int DefaultTimeout = 10000;
+    public static final long DefaultKeepAlive = 60000;
+    private static final int MaxIdleConnections = 5;
+    private static final int MaxDrainSize = 8192;
+    private static final int MaxLineLength = 8192;
+
+    private final Map<String, ArrayDeque<Connection>> mIdleConnections;
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final long mKeepAlive;
+
+    private final AtomicLong mRequestCount;
+    private final AtomicLong mConnectionCount;
+    private final AtomicLong mReusedCount;
+
+    public LIFXKeepAliveTransport() {
+        this(DefaultTimeout, DefaultTimeout, DefaultKeepAlive);
+    }
+
+    /**
+     * @param connectTimeout time in ms to wait to connect
+     * @param readTimeout time in ms to wait for the server to respond
+     * @param keepAlive time in ms an unused connection is kept open
+     */
+    public LIFXKeepAliveTransport(int connectTimeout, int readTimeout, long keepAlive) {
+        mIdleConnections = new HashMap<>();
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mKeepAlive = keepAlive;
+        mRequestCount = new AtomicLong();
+        mConnectionCount = new AtomicLong();
+        mReusedCount = new AtomicLong();
+    }
+
+    @Override
+    public Response execute(String method, String url, String token, String body) throws IOException {
+        URL u = new URL(url);
+        String protocol = u.getProtocol().toLowerCase(Locale.US);
+        if (!protocol.equals("https") && !protocol.equals("http")) {
+            throw new IOException("Unsupported protocol: " + protocol);
+        }
+        boolean secure = protocol.equals("https");
+        int port = u.getPort() != -1 ? u.getPort() : u.getDefaultPort();
+        Proxy proxy = selectProxy(u);
+        String key = protocol + "://" + u.getHost() + ":" + port;
+        if (proxy.type() != Proxy.Type.DIRECT) {
+            key += " via " + proxy;
+        }
+        byte[] payload = body != null ? body.getBytes("UTF-8") : null;
+
+        // Plain http through an http proxy names the full url, https goes through a tunnel
+        boolean absolute = !secure && proxy.type() == Proxy.Type.HTTP;
+        byte[] head = buildHead(method, u, token, payload, absolute);
+        mRequestCount.incrementAndGet();
+
+        Connection connection = takeIdleConnection(key);
+        if (connection != null) {
+            try {
+                Response response = connection.exchange(head, payload);
+                mReusedCount.incrementAndGet();
+                return response;
+            } catch (NoResponseException e) {
+                // Server most likely closed the connection while it was idle. Nothing was read
+                // back, but it could still have run the request so only send it again if that
+                // is safe, otherwise the retry policy decides.
+                connection.closeQuietly();
+                if (!isIdempotent(method)) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                connection.closeQuietly();
+                throw e;
+            }
+        }
+
+        try {
+            connection = new Connection(key, u.getHost(), port, secure, proxy);
+        } catch (IOException e) {
+            if (proxy.type() != Proxy.Type.DIRECT) {
+                ProxySelector selector = ProxySelector.getDefault();
+                if (selector != null) {
+                    selector.connectFailed(toUri(u), proxy.address(), e);
+                }
+            }
+            throw e;
+        }
+        mConnectionCount.incrementAndGet();
+        try {
+            return connection.exchange(head, payload);
+        } catch (IOException e) {
+            connection.closeQuietly();
+            throw e;
+        }
+    }
+
+    @Override
+    public void releaseConnections() {
+        synchronized (mIdleConnections) {
+            for (ArrayDeque<Connection> connections : mIdleConnections.values()) {
+                for (Connection c : connections) {
+                    c.closeQuietly();
+                }
+            }
+            mIdleConnections.clear();
+        }
+    }
+
+    /**
+     * Get the number of requests sent
+     * @return number of requests
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Get the number of new connections (and TLS handshakes) made
+     * @return number of connections
+     */
+    public long getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Get the number of requests that were sent over an existing connection
+     * @return number of reused connections
+     */
+    public long getReusedCount() {
+        return mReusedCount.get();
+    }
+
+    /**
+     * Get how often connections are reused
+     * @return ratio between 0.0 and 1.0 of requests that did not need a new connection
+     */
+    public float getReuseRatio() {
+        long requests = mRequestCount.get();
+        return requests == 0 ? 0 : (float) mReusedCount.get() / requests;
+    }
+
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("PUT");
+    }
+
+    private static URI toUri(URL url) throws IOException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid url: " + url, e);
+        }
+    }
+
+    /**
+     * Ask the default ProxySelector how to reach the url
+     * @param url of the request
+     * @return the first direct, http or socks proxy the selector returns, Proxy.NO_PROXY if none
+     */
+    private static Proxy selectProxy(URL url) throws IOException {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return Proxy.NO_PROXY;
+        }
+        List<Proxy> proxies = selector.select(toUri(url));
+        if (proxies != null) {
+            for (Proxy proxy : proxies) {
+                if (proxy.type() == Proxy.Type.DIRECT
+                        || proxy.address() instanceof InetSocketAddress) {
+                    return proxy;
+                }
+            }
+        }
+        return Proxy.NO_PROXY;
+    }
+
+    private byte[] buildHead(String method, URL url, String token, byte[] payload, boolean absolute)
+            throws UnsupportedEncodingException {
+        String path = url.getFile();
+        if (path.isEmpty()) {
+            path = "/";
+        }
+        if (absolute) {
+            path = url.getProtocol() + "://" + url.getAuthority() + path;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append("\r\n");
+        sb.append("Authorization: Bearer ").append(token).append("\r\n");
+        sb.append("Content-Type: application/json\r\n");
+        sb.append("Accept: */*\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        if (payload != null) {
+            sb.append("Content-Length: ").append(payload.length).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes("ISO-8859-1");
+    }
+
+    private Connection takeIdleConnection(String key) {
+        synchronized (mIdleConnections) {
+            ArrayDeque<Connection> connections = mIdleConnections.get(key);
+            if (connections == null) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            Connection connection;
+            while ((connection = connections.pollLast()) != null) {
+                if (now - connection.mIdleSince < mKeepAlive && !connection.mSocket.isClosed()) {
+                    return connection;
+                }
+                connection.closeQuietly();
+            }
+            return null;
+        }
+    }
+
+    private void recycle(Connection connection) {
+        synchronized (mIdleConnections) {
+            ArrayDeque<Connection> connections = mIdleConnections.get(connection.mKey);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                mIdleConnections.put(connection.mKey, connections);
+            }
+            connection.mIdleSince = System.currentTimeMillis();
+            connections.addLast(connection);
+
+            // Close the oldest connections when too many are unused
+            Iterator<Connection> it = connections.iterator();
+            while (connections.size() > MaxIdleConnections && it.hasNext()) {
+                it.next().closeQuietly();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Read a line of the status, headers or chunk sizes
+     * @param in stream to read from
+     * @return line without its line break or null if the stream ended first
+     * @throws IOException if the line is longer than MaxLineLength
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] data = line.toByteArray();
+                int len = data.length > 0 && data[data.length - 1] == '\r' ? data.length - 1 : data.length;
+                return new String(data, 0, len, "ISO-8859-1");
+            }
+            if (line.size() >= MaxLineLength) {
+                throw new IOException("Line is longer than " + MaxLineLength + " bytes");
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+
+    /**
+     * The connection was closed before any of the response was read
+     */
+    private static final class NoResponseException extends EOFException {
+        private static final long serialVersionUID = 1L;
+
+        NoResponseException() {
+            super("Connection closed by server");
+        }
+    }
+
+    private final class Connection {
+        private final String mKey;
+        private final Socket mSocket;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+        private long mIdleSince;
+
+        Connection(String key, String host, int port, boolean secure, Proxy proxy) throws IOException {
+            mKey = key;
+            // A Socket connects through socks by itself, an http proxy is connected to directly
+            Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+            try {
+                SocketAddress address = proxy.type() == Proxy.Type.HTTP ? proxy.address()
+                        : new InetSocketAddress(host, port);
+                socket.connect(address, mConnectTimeout);
+                socket.setSoTimeout(mReadTimeout);
+                socket.setTcpNoDelay(true);
+                if (secure) {
+                    if (proxy.type() == Proxy.Type.HTTP) {
+                        openTunnel(socket, host, port);
+                    }
+                    SSLSocket sslSocket = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory()
+                            .createSocket(socket, host, port, true);
+                    sslSocket.startHandshake();
+                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                        throw new SSLPeerUnverifiedException("Hostname " + host + " was not verified");
+                    }
+                    socket = sslSocket;
+                }
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                throw e;
+            }
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream());
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Ask an http proxy to open a tunnel to the host, the TLS handshake then goes through it
+         */
+        private void openTunnel(Socket socket, String host, int port) throws IOException {
+            String authority = host + ":" + port;
+            OutputStream out = socket.getOutputStream();
+            out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+
+            // Read one byte at a time so nothing sent after the proxy's answer is buffered here
+            InputStream in = socket.getInputStream();
+            String statusLine = LIFXKeepAliveTransport.readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("Proxy closed the connection");
+            }
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].startsWith("2")) {
+                throw new IOException("Proxy refused the tunnel: " + statusLine);
+            }
+            String line;
+            while ((line = LIFXKeepAliveTransport.readLine(in)) != null && !line.isEmpty()) {
+            }
+            if (line == null) {
+                throw new EOFException("Proxy closed the connection");
+            }
+        }
+
+        Response exchange(byte[] head, byte[] payload) throws IOException {
+            mOut.write(head);
+            if (payload != null) {
+                mOut.write(payload);
+            }
+            mOut.flush();
+
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new NoResponseException();
+            }
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int index = line.indexOf(':');
+                if (index > 0) {
+                    headers.put(line.substring(0, index).trim().toLowerCase(Locale.US),
+                            line.substring(index + 1).trim());
+                }
+            }
+            if (line == null) {
+                throw new EOFException("Connection closed while reading headers");
+            }
+
+            String connectionHeader = headers.get("connection");
+            boolean keepAlive = status[0].equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+            BodyStream body;
+            String length = headers.get("content-length");
+            if (code == 204 || code == 304 || (100 <= code && code < 200)) {
+                body = new BodyStream(this, 0, false);
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = new BodyStream(this, 0, true);
+            } else if (length != null) {
+                try {
+                    body = new BodyStream(this, Long.parseLong(length), false);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid content length: " + length);
+                }
+            } else {
+                // Body ends when the server closes the connection
+                body = new BodyStream(this, -1, false);
+                keepAlive = false;
+            }
+            return new HttpResponse(this, code, headers, body, keepAlive);
+        }
+
+        String readLine() throws IOException {
+            return LIFXKeepAliveTransport.readLine(mIn);
+        }
+
+        void closeQuietly() {
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class BodyStream extends InputStream {
+        private final Connection mConnection;
+        private final boolean mChunked;
+        private long mRemaining;
+        private boolean mFinished;
+
+        /**
+         * @param length size of the body, -1 reads until the connection is closed
+         */
+        BodyStream(Connection connection, long length, boolean chunked) {
+            mConnection = connection;
+            mChunked = chunked;
+            mRemaining = length;
+            mFinished = length == 0 && !chunked;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mFinished) {
+                return -1;
+            }
+            if (mChunked && mRemaining == 0) {
+                String line = mConnection.readLine();
+                if (line == null) {
+                    throw new EOFException("Connection closed while reading chunk");
+                }
+                int extension = line.indexOf(';');
+                try {
+                    mRemaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + line);
+                }
+                if (mRemaining == 0) {
+                    // Skip trailers until the empty line
+                    while ((line = mConnection.readLine()) != null && !line.isEmpty()) {
+                    }
+                    mFinished = true;
+                    return -1;
+                }
+            }
+            if (mRemaining >= 0) {
+                count = (int) Math.min(count, mRemaining);
+            }
+            int read = mConnection.mIn.read(buffer, offset, count);
+            if (read == -1) {
+                if (mRemaining >= 0) {
+                    throw new EOFException("Connection closed before the response finished");
+                }
+                mFinished = true;
+                return -1;
+            }
+            if (mRemaining >= 0) {
+                mRemaining -= read;
+                if (mRemaining == 0) {
+                    if (mChunked) {
+                        mConnection.readLine();
+                    } else {
+                        mFinished = true;
+                    }
+                }
+            }
+            return read;
+        }
+
+        boolean drain() {
+            if (mRemaining < 0) {
+                return false;
+            }
+            try {
+                byte[] buffer = new byte[512];
+                int total = 0;
+                while (!mFinished && total < MaxDrainSize) {
+                    int read = read(buffer, 0, buffer.length);
+                    if (read == -1) {
+                        break;
+                    }
+                    total += read;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            return mFinished;
+        }
+    }
+
+    private final class HttpResponse implements Response {
+        private final Connection mConnection;
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+        private final BodyStream mBody;
+        private final boolean mKeepAlive;
+        private boolean mClosed;
+
+        HttpResponse(Connection connection, int code, Map<String, String> headers, BodyStream body,
+                     boolean keepAlive) {
+            mConnection = connection;
+            mCode = code;
+            mHeaders = headers;
+            mBody = body;
+            mKeepAlive = keepAlive;
+        }
+
+        @Override
+        public int code() {
+            return mCode;
+        }
+
+        @Override
+        public String header(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public InputStream body() {
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mKeepAlive && mBody.drain()) {
+                recycle(mConnection);
+            } else {
+                mConnection.closeQuietly();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.matthewn4444.lifx.remote;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of named counters, gauges and histograms. Counters and histograms are lock-free so
+ * they can be updated on every command, looking up a name is only needed once. Snapshots of
+ * everything can be taken at any time or given to exporters at an interval.
+ */
+public class LIFXMetrics {
+    private static final String TAG = "LIFXMetrics";
+
+    /**
+     * Value that is read when a snapshot is taken, e.g. the size of a queue
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * Gets snapshots of the metrics, e.g. to log them or send them to a monitoring service
+     */
+    public interface Exporter {
+        /**
+         * Called from the export thread of the metrics
+         * @param snapshot of all the metrics
+         */
+        void export(Snapshot snapshot);
+    }
+
+    /**
+     * Values of all the metrics at one time, sorted by name
+     */
+    public static class Snapshot {
+        public final long time;
+        public final Map<String, Long> counters;
+        public final Map<String, Long> gauges;
+        public final Map<String, LIFXHistogram.Snapshot> histograms;
+
+        Snapshot(long time, Map<String, Long> counters, Map<String, Long> gauges,
+                 Map<String, LIFXHistogram.Snapshot> histograms) {
+            this.time = time;
+            this.counters = Collections.unmodifiableMap(counters);
+            this.gauges = Collections.unmodifiableMap(gauges);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /**
+         * @return one metric on each line, histograms without values are left out
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> e : counters.entrySet()) {
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Long> e : gauges.entrySet()) {
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            for (Map.Entry<String, LIFXHistogram.Snapshot> e : histograms.entrySet()) {
+                if (e.getValue().getCount() == 0) {
+                    continue;
+                }
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    private final class ExportLoop implements Runnable {
+        private final Exporter mExporter;
+        private final long mInterval;
+
+        ExportLoop(Exporter exporter, long interval) {
+            mExporter = exporter;
+            mInterval = interval;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(mInterval);
+                    try {
+                        mExporter.export(snapshot());
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Exporter failed", e);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, AtomicLong> mCounters;
+    private final ConcurrentMap<String, Gauge> mGauges;
+    private final ConcurrentMap<String, LIFXHistogram> mHistograms;
+
+    // Export threads by exporter, guarded by this
+    private final List<Exporter> mExporters;
+    private final List<Thread> mExportThreads;
+
+    public LIFXMetrics() {
+        mCounters = new ConcurrentHashMap<>();
+        mGauges = new ConcurrentHashMap<>();
+        mHistograms = new ConcurrentHashMap<>();
+        mExporters = new ArrayList<>();
+        mExportThreads = new ArrayList<>();
+    }
+
+    /**
+     * Get a counter, it is created the first time
+     * @param name of the counter
+     * @return counter, keep it to update it without looking up the name again
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Get a histogram, it is created the first time
+     * @param name of the histogram
+     * @return histogram, keep it to record without looking up the name again
+     */
+    public LIFXHistogram histogram(String name) {
+        LIFXHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            LIFXHistogram created = new LIFXHistogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @param name of the gauge
+     * @param gauge read on every snapshot, replaces a gauge with the same name
+     */
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Take the values of all the metrics
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        Map<String, Long> counters = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> e : mCounters.entrySet()) {
+            counters.put(e.getKey(), e.getValue().get());
+        }
+        Map<String, Long> gauges = new TreeMap<>();
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            gauges.put(e.getKey(), e.getValue().value());
+        }
+        Map<String, LIFXHistogram.Snapshot> histograms = new TreeMap<>();
+        for (Map.Entry<String, LIFXHistogram> e : mHistograms.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), counters, gauges, histograms);
+    }
+
+    /**
+     * Set all counters and histograms back to 0
+     */
+    public void reset() {
+        for (AtomicLong counter : mCounters.values()) {
+            counter.set(0);
+        }
+        for (LIFXHistogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Give a snapshot to an exporter at an interval on its own thread
+     * @param exporter gets the snapshots
+     * @param interval time in ms between snapshots
+     */
+    public synchronized void addExporter(Exporter exporter, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid export interval: " + interval);
+        }
+        Thread thread = new Thread(new ExportLoop(exporter, interval), TAG);
+        thread.setDaemon(true);
+        mExporters.add(exporter);
+        mExportThreads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Stop giving snapshots to an exporter
+     * @param exporter that was added
+     */
+    public synchronized void removeExporter(Exporter exporter) {
+        int index = mExporters.indexOf(exporter);
+        if (index >= 0) {
+            mExporters.remove(index);
+            mExportThreads.remove(index).interrupt();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.matthewn4444.lifx.remote;
+
+/**
+ * Token bucket that paces requests to stay under the server's rate limit. The bucket refills at
+ * the limit per period and follows the X-RateLimit-Limit, X-RateLimit-Remaining and
+ * X-RateLimit-Reset headers from each response. When the server answers 429 no more requests
+ * are let through until the limit resets.
+ */
+public class LIFXRateLimiter {
+    public static final int DefaultLimit = 120;
+    public static final long DefaultPeriod = 60000;
+    public static final int TooManyRequests = 429;
+    private static final float LowBudgetRatio = 0.2f;
+
+    private final long mPeriod;
+    private int mLimit;
+    private double mTokens;
+    private long mLastRefill;
+    private long mHoldUntil;
+
+    private int mServerRemaining;
+    private long mResetTime;
+
+    private long mWaitTime;
+    private long mWaitCount;
+
+    public LIFXRateLimiter() {
+        this(DefaultLimit, DefaultPeriod);
+    }
+
+    /**
+     * @param limit number of requests allowed every period until the server says otherwise
+     * @param period time in ms the limit applies to
+     */
+    public LIFXRateLimiter(int limit, long period) {
+        mLimit = limit;
+        mPeriod = period;
+        mTokens = limit;
+        mLastRefill = System.nanoTime();
+        mServerRemaining = -1;
+    }
+
+    /**
+     * Wait until another request can be sent
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        boolean waited = false;
+        while (true) {
+            refill();
+            long now = System.currentTimeMillis();
+            long wait;
+            if (now < mHoldUntil) {
+                wait = mHoldUntil - now;
+            } else if (mTokens >= 1) {
+                mTokens -= 1;
+                break;
+            } else {
+                wait = Math.max(1, (long) Math.ceil((1 - mTokens) * mPeriod / mLimit));
+            }
+            waited = true;
+            wait(wait);
+        }
+        if (waited) {
+            mWaitCount++;
+            mWaitTime += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Update the budget from the rate limit headers of a response
+     * @param response from the server
+     */
+    public void update(LIFXTransport.Response response) {
+        update(response.code(), response.header("X-RateLimit-Limit"),
+                response.header("X-RateLimit-Remaining"), response.header("X-RateLimit-Reset"),
+                response.header("Retry-After"));
+    }
+
+    synchronized void update(int code, String limit, String remaining, String reset, String retryAfter) {
+        long now = System.currentTimeMillis();
+        refill();
+        int limitValue = parseInt(limit);
+        if (limitValue > 0) {
+            mLimit = limitValue;
+        }
+        long resetValue = parseLong(reset);
+        if (resetValue > 0) {
+            // Reset is usually a unix time in seconds but accept seconds from now as well
+            mResetTime = resetValue > 1000000000L ? resetValue * 1000 : now + resetValue * 1000;
+        }
+        int remainingValue = parseInt(remaining);
+        if (remainingValue >= 0) {
+            mServerRemaining = remainingValue;
+            mTokens = Math.min(mTokens, remainingValue);
+            if (remainingValue == 0 && mResetTime > now) {
+                mHoldUntil = Math.max(mHoldUntil, mResetTime);
+            }
+        }
+        if (code == TooManyRequests) {
+            long retryValue = parseLong(retryAfter);
+            long until;
+            if (retryValue > 0) {
+                until = now + retryValue * 1000;
+            } else if (mResetTime > now) {
+                until = mResetTime;
+            } else {
+                until = now + mPeriod / mLimit;
+            }
+            mTokens = 0;
+            mHoldUntil = Math.max(mHoldUntil, until);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the number of requests allowed every period
+     * @return request limit
+     */
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Get the number of requests that can be sent right now without waiting
+     * @return available requests
+     */
+    public synchronized int getAvailable() {
+        refill();
+        return System.currentTimeMillis() < mHoldUntil ? 0 : (int) mTokens;
+    }
+
+    /**
+     * Get the remaining number of requests the server last reported
+     * @return remaining requests or -1 if the server never sent it
+     */
+    public synchronized int getServerRemaining() {
+        return mServerRemaining;
+    }
+
+    /**
+     * Get when the server will reset the limit
+     * @return time in ms since epoch or 0 if unknown
+     */
+    public synchronized long getResetTime() {
+        return mResetTime;
+    }
+
+    /**
+     * See if most of the budget is used, then commands should be combined when possible
+     * @return budget is low
+     */
+    public synchronized boolean isLow() {
+        refill();
+        float threshold = mLimit * LowBudgetRatio;
+        return mTokens < threshold || (mServerRemaining >= 0 && mServerRemaining < threshold)
+                || System.currentTimeMillis() < mHoldUntil;
+    }
+
+    /**
+     * Get the total time spent waiting to send requests
+     * @return time in ms
+     */
+    public synchronized long getTotalWaitTime() {
+        return mWaitTime / 1000000;
+    }
+
+    /**
+     * Get the number of requests that had to wait to be sent
+     * @return number of requests
+     */
+    public synchronized long getWaitCount() {
+        return mWaitCount;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mLimit, mTokens + (double) (now - mLastRefill) / 1000000 * mLimit / mPeriod);
+        mLastRefill = now;
+    }
+
+    private static int parseInt(String value) {
+        return (int) Math.min(Integer.MAX_VALUE, parseLong(value));
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
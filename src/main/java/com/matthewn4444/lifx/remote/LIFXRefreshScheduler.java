@@ -0,0 +1,278 @@
+package com.matthewn4444.lifx.remote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the cached lightbulbs fresh by listing lights on its own thread. Each lightbulb has its
+ * own time to be refreshed: soon after it was changed or while it is offline or timed out, and
+ * less often while nothing changes. Only the lightbulbs that are due are listed by their ids,
+ * all lights are listed when most of them are due or to find lights that were added or removed.
+ * The refreshes go through the command queue so they share the rate limit with other commands,
+ * they are queued without holding the lock of the scheduler because the workers call into it.
+ * A refresh that does not fit in the queue is tried again after the minimum interval.
+ */
+class LIFXRefreshScheduler implements Runnable {
+    public static final long DefaultMinInterval = 15000;
+    public static final long DefaultMaxInterval = 5 * 60000;
+
+    private static final String TAG = "LIFXRefreshScheduler";
+
+    private static final class Refresh {
+        // Lowercase bulb ids, null to list all lights
+        final List<String> ids;
+
+        Refresh(List<String> ids) {
+            this.ids = ids;
+        }
+
+        String selector() {
+            if (ids == null) {
+                return LIFXState.SelectorAll;
+            }
+            StringBuilder selector = new StringBuilder();
+            for (String id : ids) {
+                if (selector.length() > 0) {
+                    selector.append(',');
+                }
+                selector.append(LIFXBulbRegistry.SelectorId).append(id);
+            }
+            return selector.toString();
+        }
+    }
+
+    private final LIFXRemote mRemote;
+
+    // Lowercase bulb id to the time in ms it should be refreshed
+    private final Map<String, Long> mNextRefresh;
+    private long mNextFullRefresh;
+
+    private long mMinInterval;
+    private long mMaxInterval;
+    private long mInterval;
+
+    private Thread mThread;
+    private long mRefreshCount;
+
+    LIFXRefreshScheduler(LIFXRemote remote) {
+        mRemote = remote;
+        mNextRefresh = new HashMap<>();
+        mMinInterval = DefaultMinInterval;
+        mMaxInterval = DefaultMaxInterval;
+        mInterval = DefaultMinInterval;
+    }
+
+    /**
+     * Start refreshing, the first full refresh is expected to be queued by the caller
+     */
+    synchronized void start() {
+        if (mThread == null) {
+            mInterval = mMinInterval;
+            mNextFullRefresh = System.currentTimeMillis() + mMaxInterval;
+            mThread = new Thread(this, TAG);
+            mThread.start();
+        }
+    }
+
+    synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        mNextRefresh.clear();
+    }
+
+    synchronized void setIntervals(long min, long max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Invalid refresh intervals: " + min + ", " + max);
+        }
+        mMinInterval = min;
+        mMaxInterval = max;
+        mInterval = Math.max(min, Math.min(max, mInterval));
+        long now = System.currentTimeMillis();
+        mNextFullRefresh = Math.min(mNextFullRefresh, now + max);
+        for (Map.Entry<String, Long> entry : mNextRefresh.entrySet()) {
+            entry.setValue(Math.min(entry.getValue(), now + max));
+        }
+        notifyAll();
+    }
+
+    synchronized long getMinInterval() {
+        return mMinInterval;
+    }
+
+    synchronized long getMaxInterval() {
+        return mMaxInterval;
+    }
+
+    /**
+     * Get the time stable lightbulbs are refreshed at right now
+     * @return time in ms between refreshes
+     */
+    synchronized long getInterval() {
+        return mInterval;
+    }
+
+    synchronized long getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    /**
+     * List all the lights as soon as possible, used when the cache does not know a lightbulb
+     */
+    synchronized void refreshAll() {
+        long now = System.currentTimeMillis();
+        if (mThread != null && mNextFullRefresh > now) {
+            mNextFullRefresh = now;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Lights were listed, refresh them again later depending on how much changed
+     * @param selector that was listed
+     * @param bulbs that were listed
+     * @param changes number of changes the list made to the cache
+     */
+    synchronized void onRefreshed(String selector, LIFXBulb[] bulbs, int changes) {
+        long now = System.currentTimeMillis();
+        mInterval = changes > 0 ? mMinInterval : Math.min(mMaxInterval, mInterval * 2);
+        if (selector.equalsIgnoreCase(LIFXState.SelectorAll)) {
+            mNextFullRefresh = now + mMaxInterval;
+            mNextRefresh.clear();
+        }
+        for (LIFXBulb bulb : bulbs) {
+            mNextRefresh.put(key(bulb.id()), now + (isUnreachable(bulb) ? mMinInterval : mInterval));
+        }
+        notifyAll();
+    }
+
+    /**
+     * The state of lightbulbs was changed, refresh them soon to see their real state
+     * @param bulbs from the response of the change
+     */
+    synchronized void onChanged(LIFXBulb[] bulbs) {
+        long due = System.currentTimeMillis() + mMinInterval;
+        mInterval = mMinInterval;
+        for (LIFXBulb bulb : bulbs) {
+            String key = key(bulb.id());
+            Long next = mNextRefresh.get(key);
+            if (next == null || next > due) {
+                mNextRefresh.put(key, due);
+            }
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<Refresh> due;
+            synchronized (this) {
+                if (mThread != Thread.currentThread()) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                due = takeDue(now);
+                if (due.isEmpty()) {
+                    long wait = nextDue() - now;
+                    try {
+                        if (wait > 0) {
+                            wait(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            for (Refresh refresh : due) {
+                queueList(refresh);
+            }
+        }
+    }
+
+    /**
+     * Take the lightbulbs that are due, must be called with the lock held
+     * @param now current time in ms
+     * @return the lists to queue, empty if nothing is due
+     */
+    private List<Refresh> takeDue(long now) {
+        List<String> due = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : mNextRefresh.entrySet()) {
+            if (entry.getValue() <= now) {
+                due.add(entry.getKey());
+            }
+        }
+
+        List<Refresh> refreshes = new ArrayList<>();
+        if (now >= mNextFullRefresh || (!due.isEmpty() && due.size() * 2 > mNextRefresh.size())) {
+            refreshes.add(new Refresh(null));
+            mNextFullRefresh = now + mMaxInterval;
+
+            // Wait for the result before deciding when to refresh again
+            for (Map.Entry<String, Long> entry : mNextRefresh.entrySet()) {
+                entry.setValue(now + mInterval);
+            }
+        } else if (!due.isEmpty()) {
+            for (int i = 0; i < due.size(); i += LIFXState.MaxStateSize) {
+                List<String> ids = new ArrayList<>(due.subList(i, Math.min(due.size(), i + LIFXState.MaxStateSize)));
+                for (String id : ids) {
+                    mNextRefresh.put(id, now + mInterval);
+                }
+                refreshes.add(new Refresh(ids));
+            }
+        }
+        return refreshes;
+    }
+
+    /**
+     * Must be called with the lock held
+     * @return the next time in ms a refresh is due
+     */
+    private long nextDue() {
+        long next = mNextFullRefresh;
+        for (Long time : mNextRefresh.values()) {
+            next = Math.min(next, time);
+        }
+        return next;
+    }
+
+    private void queueList(Refresh refresh) {
+        LIFXCommand command = new LIFXCommand(LIFXCommand.ListLights, new LIFXState[]{
+                new LIFXState(refresh.selector(), LIFXState.PowerNoChange, null,
+                        LIFXState.BrightnessNoChange, LIFXState.DefaultDuration)
+        }, true);
+        boolean queued = mRemote.sendInternal(command);
+        synchronized (this) {
+            if (queued) {
+                mRefreshCount++;
+                return;
+            }
+            // Try again later instead of waiting for room while the queue is full
+            long retry = System.currentTimeMillis() + mMinInterval;
+            if (refresh.ids == null) {
+                mNextFullRefresh = Math.min(mNextFullRefresh, retry);
+            } else {
+                for (String id : refresh.ids) {
+                    Long next = mNextRefresh.get(id);
+                    if (next != null && next > retry) {
+                        mNextRefresh.put(id, retry);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isUnreachable(LIFXBulb bulb) {
+        return !bulb.connected || bulb.status() == LIFXBulb.Status.TIMED_OUT
+                || bulb.status() == LIFXBulb.Status.OFFLINE;
+    }
+
+    private static String key(String id) {
+        return id.toLowerCase(Locale.US);
+    }
+}
@@ -6,20 +6,33 @@ import com.matthewn4444.lifx.HSBKColor;
 
 import org.json.JSONException;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 
 public class LIFXRemote {
     private static final String TAG = "LIFXRemote";
+    private static final long LowBudgetBatchWindow = 250;
+    private static final String CircuitOpenMessage = "Server is unreachable, try again later";
 
     /**
-     * Listener is to get callbacks for commands and any other errors that may occur
+     * Decides which queued commands can be sent at the same time by different workers
+     */
+    public enum OrderingPolicy { PER_SELECTOR, STRICT, NONE }
+
+    /**
+     * What happens to a new command when the queue is full
+     */
+    public enum OverflowPolicy { BLOCK, DROP_OLDEST, REJECT, COALESCE }
+
+    /**
+     * Listener is to get callbacks for commands and any other errors that may occur. To get the
+     * response of one command, use the LIFXCommandFuture returned when sending it instead.
      */
     public interface OnRemoteCommandFinishedListener {
         void onRemoteCommandFinished(int command, LIFXRemoteResponse response);
@@ -27,57 +40,323 @@ public class LIFXRemote {
     }
 
     private final String mAppToken;
-    private final LinkedBlockingDeque<LIFXCommand> mCommandQueue;
-    private final List<LIFXBulb> mBulbs;
+    private final LIFXTransport mTransport;
+    private final LIFXRateLimiter mRateLimiter;
+    private final LIFXCommandQueue mCommandQueue;
+    private final LIFXBulbRegistry mBulbs;
+    private final LIFXRefreshScheduler mRefreshScheduler;
+    private final LIFXCircuitBreaker mCircuitBreaker;
+    private final LIFXMetrics mMetrics;
+    private final LIFXCommandMetrics mCommandMetrics;
 
-    private final Runnable mThreadLoop = new Runnable() {
+    private final class Worker implements Runnable {
         @Override
         public void run() {
             while (!(Thread.currentThread().isInterrupted())) {
+                LIFXCommand commandObj = null;
+                boolean answered = false;
                 try {
-                    LIFXCommand commandObj = mCommandQueue.poll(5, TimeUnit.MINUTES);
-
+                    commandObj = mCommandQueue.poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
                     if (commandObj == null) {
-                        // Poll timeout, we will go get the light information
-                        requestUpdateAllBulbs();
                         continue;
                     }
-                    LIFXRemoteResponse res = commandObj.request(mAppToken);
-                    if (mListener != null) {
-                        if (res == null) {
-                            mListener.onLIFXError(new LIFXResponseException("Error in sending request"));
-                        } else if (res.errorMessage != null) {
-                            mListener.onLIFXError(new LIFXResponseException(res.errorMessage, res.responseCode, res.errors));
+                    long taken = System.nanoTime();
+                    mCommandMetrics.taken(commandObj, taken);
+                    if (!mCircuitBreaker.allowRequest()) {
+                        mCommandMetrics.circuitRejected();
+                        fail(commandObj, new LIFXResponseException(CircuitOpenMessage));
+                        continue;
+                    }
+
+                    // Wait for the rate limit, more commands can queue up to be batched meanwhile
+                    mRateLimiter.acquire();
+                    mCommandMetrics.waitedForRateLimit(System.nanoTime() - taken);
+                    long window = mRateLimiter.isLow() ? Math.max(mBatchWindow, LowBudgetBatchWindow) : mBatchWindow;
+                    if (window > 0) {
+                        commandObj = mCommandQueue.batch(commandObj, window, TimeUnit.MILLISECONDS);
+                        if (commandObj.parts != null) {
+                            long now = System.nanoTime();
+                            for (int i = 1; i < commandObj.parts.length; i++) {
+                                mCommandMetrics.taken(commandObj.parts[i], now);
+                            }
+                        }
+                    }
+                    LIFXRemoteResponse res = commandObj.request(mTransport, mApiUrl, mAppToken, mRateLimiter,
+                            mCommandMetrics);
+                    answered = true;
+                    mCircuitBreaker.onSuccess();
+                    mCommandQueue.setLowBudget(mRateLimiter.isLow());
+                    if (res != null && res.responseCode == LIFXRateLimiter.TooManyRequests) {
+                        // Over the limit, the limiter now waits until the server allows more. The
+                        // retry policy decides how often it is sent again so it cannot loop forever.
+                        LIFXResponseException ex = new LIFXResponseException(res.errorMessage != null
+                                ? res.errorMessage : "Too many requests", res.responseCode, res.errors);
+                        if (retryLater(commandObj, ex, -1)) {
+                            commandObj = null;
                         } else {
-                            updateBulbs(commandObj, res);
-                            mListener.onRemoteCommandFinished(commandObj.command, res);
+                            fail(commandObj, ex);
+                        }
+                        continue;
+                    }
+                    if (res == null) {
+                        fail(commandObj, new LIFXResponseException("Error in sending request"));
+                    } else if (res.errorMessage != null) {
+                        fail(commandObj, new LIFXResponseException(res.errorMessage, res.responseCode, res.errors));
+                    } else if (commandObj.parts != null) {
+                        // Give back each batched state as if it was sent by itself
+                        for (LIFXCommand part : commandObj.parts) {
+                            LIFXRemoteResponse partRes = res.splitFor(part.states[0]);
+                            updateBulbs(part, partRes);
+                            notifyFinished(part.command, partRes);
+                            part.future.complete(partRes);
+                        }
+                    } else {
+                        updateBulbs(commandObj, res);
+                        if (!commandObj.internal) {
+                            // Refreshing the cache only gives back errors
+                            notifyFinished(commandObj.command, res);
                         }
+                        commandObj.future.complete(res);
                     }
                 } catch (InterruptedException ignored) {
+                    if (commandObj != null) {
+                        abort(commandObj);
+                    }
                     break;
                 } catch (JSONException | ParseException | IOException e) {
-                    if (mListener != null) {
-                        LIFXResponseException ex = new LIFXResponseException(e.getMessage());
-                        ex.setStackTrace(e.getStackTrace());
-                        mListener.onLIFXError(ex);
+                    mCommandMetrics.error();
+                    if (e instanceof IOException) {
+                        mCircuitBreaker.onFailure();
+                    } else {
+                        // The server answered, only the response was not understood
+                        mCircuitBreaker.onSuccess();
+                    }
+                    if (retryLater(commandObj, e, -1)) {
+                        commandObj = null;
+                        continue;
                     }
+                    LIFXResponseException ex = new LIFXResponseException(e.getMessage());
+                    ex.setStackTrace(e.getStackTrace());
+                    fail(commandObj, ex);
                 } catch (LIFXResponseException e) {
-                    if (mListener != null) {
-                        mListener.onLIFXError(e);
+                    mCircuitBreaker.onFailure();
+                    if (retryLater(commandObj, e, e.getRetryAfter())) {
+                        commandObj = null;
+                        continue;
+                    }
+                    fail(commandObj, e);
+                } catch (RuntimeException e) {
+                    // E.g. a response with values this version does not know, keep the thread alive
+                    Log.w(TAG, "Unexpected error in command " + (commandObj != null ? commandObj.command : -1), e);
+                    if (commandObj != null && !answered) {
+                        // Failed before the server answered, do not leave a probe of the circuit unfinished
+                        mCircuitBreaker.onFailure();
+                    }
+                    if (commandObj != null) {
+                        mCommandMetrics.error();
+                        LIFXResponseException ex = new LIFXResponseException(String.valueOf(e.getMessage()));
+                        ex.setStackTrace(e.getStackTrace());
+                        fail(commandObj, ex);
+                    }
+                } finally {
+                    if (commandObj != null) {
+                        mCommandMetrics.finished(commandObj, System.nanoTime());
+                        mCommandQueue.finished(commandObj);
                     }
                 }
             }
-            mThread = null;
         }
-    };
+    }
 
-    private Thread mThread;
+    private Thread[] mWorkers;
+    private int mWorkerCount = 1;
     private OnRemoteCommandFinishedListener mListener;
+    private volatile long mBatchWindow;
+    private volatile String mApiUrl = LIFXCommand.DefaultApiUrl;
+    private volatile LIFXBulbCache mBulbCache;
+
+    // The cached bulbs came from the file and all lights were not listed since
+    private volatile boolean mBulbCacheStale;
+
+    // Retry policy by command type, replaced when a policy changes
+    private volatile LIFXRetryPolicy[] mRetryPolicies;
 
     public LIFXRemote(String appToken) {
-        mCommandQueue = new LinkedBlockingDeque<>();
-        mBulbs = new ArrayList<>();
+        this(appToken, new LIFXKeepAliveTransport());
+    }
+
+    /**
+     * Create the remote with a different way of sending requests
+     * @param appToken your token
+     * @param transport sends the requests to the server
+     */
+    public LIFXRemote(String appToken, LIFXTransport transport) {
+        this(appToken, transport, new LIFXRateLimiter());
+    }
+
+    /**
+     * Create the remote for a server with another rate limit than the LIFX cloud
+     * @param appToken your token
+     * @param transport sends the requests to the server
+     * @param rateLimiter paces the requests
+     */
+    public LIFXRemote(String appToken, LIFXTransport transport, LIFXRateLimiter rateLimiter) {
+        mCommandQueue = new LIFXCommandQueue();
+        mBulbs = new LIFXBulbRegistry();
+        mCommandQueue.setBulbRegistry(mBulbs);
+        mRefreshScheduler = new LIFXRefreshScheduler(this);
         mAppToken = appToken;
+        mTransport = transport;
+        mRateLimiter = rateLimiter;
+        mCircuitBreaker = new LIFXCircuitBreaker();
+        mMetrics = new LIFXMetrics();
+        mCommandMetrics = new LIFXCommandMetrics(mMetrics, mCommandQueue, mCircuitBreaker);
+        mRetryPolicies = new LIFXRetryPolicy[LIFXCommand.Breathe + 1];
+        Arrays.fill(mRetryPolicies, new LIFXRetryPolicy());
+    }
+
+    /**
+     * Get the rate limiter that paces requests, it shows the remaining budget and the time
+     * spent waiting for it. When the budget is low, state changes are coalesced and batched.
+     * @return rate limiter
+     */
+    public LIFXRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Bound the number of commands waiting to be sent so they cannot use up memory while the
+     * server is slow or unreachable. By default 1000 commands can wait and new commands are
+     * rejected after. BLOCK makes the caller wait for room, DROP_OLDEST fails the oldest waiting
+     * command, REJECT fails the new command and COALESCE merges state changes into waiting ones
+     * for the same lights and rejects other commands. Commands waiting to be retried do not count
+     * against the capacity and are not dropped, neither are refreshes of the cache.
+     * @param capacity number of commands that can wait, at least 1
+     * @param policy what happens to new commands when the queue is full
+     */
+    public void setQueueCapacity(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mCommandQueue.setCapacity(capacity, policy);
+    }
+
+    /**
+     * @return number of commands that can wait to be sent
+     */
+    public int getQueueCapacity() {
+        return mCommandQueue.getCapacity();
+    }
+
+    /**
+     * @return what happens to new commands when the queue is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return mCommandQueue.getOverflowPolicy();
+    }
+
+    /**
+     * Get the circuit breaker that fails commands fast while the server is unreachable, use it
+     * to change its thresholds or to listen for when the server goes down and recovers
+     * @return circuit breaker
+     */
+    public LIFXCircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Get the metrics of the commands: queue size, time queued, http and parse time and total
+     * time of each type of command, response codes, errors and refresh times. They are always
+     * recorded, add an exporter to get them at an interval.
+     * @return metrics of this remote
+     */
+    public LIFXMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Get the transport used to send requests, useful to see how often connections are reused
+     * @return transport
+     */
+    public LIFXTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Send requests to another server than the LIFX cloud, e.g. a mock server for testing
+     * @param apiUrl base url of the lights api, e.g. http://localhost:8080/v1/lights/
+     */
+    public void setApiUrl(String apiUrl) {
+        mApiUrl = apiUrl.endsWith("/") ? apiUrl : apiUrl + "/";
+    }
+
+    /**
+     * Get the base url requests are sent to
+     * @return url ending with a slash
+     */
+    public String getApiUrl() {
+        return mApiUrl;
+    }
+
+    /**
+     * Set how a type of command is retried after a network or server error. By default all
+     * commands are retried up to 3 times, commands that are not idempotent like TogglePower
+     * only when the request could not have reached the server. While a command waits to be
+     * retried other commands are still sent, except later ones for the same lights.
+     * @param command type of command, e.g. LIFXCommand.SetState
+     * @param policy retry policy, LIFXRetryPolicy.None to never retry
+     */
+    public synchronized void setRetryPolicy(int command, LIFXRetryPolicy policy) {
+        if (command < LIFXCommand.ListLights || command >= mRetryPolicies.length) {
+            throw new IllegalArgumentException("Invalid command: " + command);
+        }
+        LIFXRetryPolicy[] policies = mRetryPolicies.clone();
+        policies[command] = policy;
+        mRetryPolicies = policies;
+    }
+
+    /**
+     * Set how all types of commands are retried, see setRetryPolicy(int, LIFXRetryPolicy)
+     * @param policy retry policy, LIFXRetryPolicy.None to never retry
+     */
+    public synchronized void setRetryPolicy(LIFXRetryPolicy policy) {
+        LIFXRetryPolicy[] policies = new LIFXRetryPolicy[mRetryPolicies.length];
+        Arrays.fill(policies, policy);
+        mRetryPolicies = policies;
+    }
+
+    /**
+     * @param command type of command
+     * @return how the type of command is retried
+     */
+    public LIFXRetryPolicy getRetryPolicy(int command) {
+        return mRetryPolicies[command];
+    }
+
+    /**
+     * Keep the cached lightbulbs in a file so getAllBulbs() has the lightbulbs of the last run
+     * right after start(), before the cloud lists them. Set it before calling start().
+     * @param file to keep the lightbulbs in, null to not keep them
+     */
+    public void setBulbCacheFile(File file) {
+        mBulbCache = file != null ? new LIFXBulbCache(file) : null;
+    }
+
+    /**
+     * Get the file cache of the lightbulbs, e.g. to see when it was saved or to delete it
+     * @return bulb cache or null if there is no cache file
+     */
+    public LIFXBulbCache getBulbCache() {
+        return mBulbCache;
+    }
+
+    /**
+     * See if the cached lightbulbs were loaded from the cache file and not checked with the
+     * cloud yet, they can be out of date until all the lights are listed after start()
+     * @return true until the first list of all the lights finishes
+     */
+    public boolean isBulbCacheStale() {
+        return mBulbCacheStale;
     }
 
     /**
@@ -89,51 +368,199 @@ public class LIFXRemote {
     }
 
     /**
-     * Start the lightbulb thread and get the all the lightbulbs related to your token
-     * Listen for when the callback happens for the first connect to occur
+     * Merge new state changes into pending state changes for the same selector. When enabled,
+     * calling setState() many times quickly (e.g. from a slider) will only send the latest
+     * values instead of sending every value one after another. Only the merged command will
+     * get a callback.
+     * @param flag enable coalescing
+     */
+    public void setCoalescingEnabled(boolean flag) {
+        mCommandQueue.setCoalescing(flag);
+    }
+
+    /**
+     * See if state changes are being coalesced
+     * @return is coalescing enabled
+     */
+    public boolean isCoalescingEnabled() {
+        return mCommandQueue.isCoalescing();
+    }
+
+    /**
+     * Send state changes for different lights together in one request. After a state change is
+     * taken from the queue, other state changes that come within the window are sent with it
+     * (up to LIFXState.MaxStateSize). Each state change still gets its own callback.
+     * @param window time in ms to wait for more state changes, 0 to disable batching
+     */
+    public void setBatchWindow(long window) {
+        mBatchWindow = Math.max(0, window);
+    }
+
+    /**
+     * Get the time waited to batch state changes together
+     * @return time in ms, 0 if batching is disabled
+     */
+    public long getBatchWindow() {
+        return mBatchWindow;
+    }
+
+    /**
+     * Set how many threads send commands at the same time. Takes effect on the next start().
+     * With more than one thread, callbacks can come from different threads and the ordering
+     * policy decides which commands may be sent at the same time.
+     * @param count number of threads, at least 1
+     */
+    public void setWorkerCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Need at least one worker, got " + count);
+        }
+        mWorkerCount = count;
+    }
+
+    /**
+     * Get the number of threads that send commands
+     * @return number of threads
+     */
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    /**
+     * Set the order commands are sent in when there is more than one worker thread.
+     * PER_SELECTOR (default) keeps commands to the same lights in order while other lights
+     * are sent at the same time, STRICT sends one command at a time in order and NONE sends
+     * commands as soon as a thread is free. Labels, groups and locations are matched to lights
+     * with the cached bulbs, ones that match no cached bulb are kept in order with everything.
+     * @param policy ordering policy
+     */
+    public void setOrderingPolicy(OrderingPolicy policy) {
+        mCommandQueue.setOrderingPolicy(policy);
+    }
+
+    /**
+     * Get the order commands are sent in
+     * @return ordering policy
+     */
+    public OrderingPolicy getOrderingPolicy() {
+        return mCommandQueue.getOrderingPolicy();
+    }
+
+    /**
+     * Set how often the cached lightbulbs are refreshed. Lightbulbs are refreshed at the
+     * minimum interval after they were changed or while they are offline or timed out, the
+     * interval doubles while nothing changes up to the maximum. All lights are listed at least
+     * once every maximum interval to find lights that were added or removed.
+     * @param min time in ms, default is 15 seconds
+     * @param max time in ms, default is 5 minutes
+     */
+    public void setRefreshInterval(long min, long max) {
+        mRefreshScheduler.setIntervals(min, max);
+    }
+
+    /**
+     * Get the shortest time between refreshes of a lightbulb
+     * @return time in ms
+     */
+    public long getMinRefreshInterval() {
+        return mRefreshScheduler.getMinInterval();
+    }
+
+    /**
+     * Get the longest time between refreshes of a lightbulb
+     * @return time in ms
+     */
+    public long getMaxRefreshInterval() {
+        return mRefreshScheduler.getMaxInterval();
+    }
+
+    /**
+     * Get the time lightbulbs that are not changing are refreshed at right now
+     * @return time in ms
+     */
+    public long getCurrentRefreshInterval() {
+        return mRefreshScheduler.getInterval();
+    }
+
+    /**
+     * Get the number of list requests queued to refresh the cache
+     * @return number of refreshes
+     */
+    public long getRefreshCount() {
+        return mRefreshScheduler.getRefreshCount();
+    }
+
+    /**
+     * Start the lightbulb threads and get the all the lightbulbs related to your token
+     * Listen for when the callback happens for the first connect to occur. With a cache file
+     * the saved lightbulbs are in the cache before this returns.
      */
     public void start() {
-        if (mThread == null) {
-            mThread = new Thread(mThreadLoop);
-            mThread.start();
+        if (mWorkers == null) {
+            LIFXBulbCache cache = mBulbCache;
+            if (cache != null) {
+                LIFXBulb[] bulbs = cache.load();
+                if (bulbs.length > 0) {
+                    mBulbCacheStale = true;
+                    mBulbs.replaceAll(bulbs);
+                }
+            }
+            mWorkers = new Thread[mWorkerCount];
+            for (int i = 0; i < mWorkers.length; i++) {
+                mWorkers[i] = new Thread(new Worker(), TAG + "-" + i);
+                mWorkers[i].start();
+            }
+            mRefreshScheduler.start();
             listAllLights();
         }
     }
 
     /**
-     * Kill the request thread and clean up this file.
+     * Kill the request threads and clean up this file.
      * You can reuse this object by calling start again
      */
     public void destroy() {
-        if (mThread != null) {
-            mThread.interrupt();
+        if (mWorkers != null) {
+            for (Thread worker : mWorkers) {
+                worker.interrupt();
+            }
+            mWorkers = null;
+        }
+        mRefreshScheduler.stop();
+        for (LIFXCommand commandObj : mCommandQueue.clear()) {
+            abort(commandObj);
+        }
+        LIFXBulbCache cache = mBulbCache;
+        if (cache != null) {
+            cache.flush();
         }
-        mCommandQueue.clear();
         mBulbs.clear();
+        mTransport.releaseConnections();
     }
 
     /**
-     * See if the thread in this class is running or not
+     * See if the threads in this class are running or not
      * @return is currently running
      */
     public boolean isRunning() {
-        return mThread != null;
+        return mWorkers != null;
     }
 
     /**
      * Request a poll to get all the information on all the lights
+     * @return future of the command
      */
-    public void listAllLights() {
-        listLights(LIFXState.SelectorAll);
+    public LIFXCommandFuture listAllLights() {
+        return listLights(LIFXState.SelectorAll);
     }
 
     /**
      * Light only the lights that you selecting for. You could also just query the lights
      * in the cache by using getAllBulbs() and searching for the selector
      * @param selector of which lights to turn off
+     * @return future of the command
      */
-    public void listLights(String selector) {
-        mCommandQueue.add(new LIFXCommand(LIFXCommand.ListLights, new LIFXState[]{
+    public LIFXCommandFuture listLights(String selector) {
+        return send(new LIFXCommand(LIFXCommand.ListLights, new LIFXState[]{
                 new LIFXState(selector, LIFXState.PowerNoChange, null,
                         LIFXState.BrightnessNoChange, LIFXState.DefaultDuration)
         }));
@@ -141,84 +568,94 @@ public class LIFXRemote {
 
     /**
      * Turn off all your lights
+     * @return future of the command
      */
-    public void turnAllOff() {
-        turnAllOff(LIFXState.DefaultDuration);
+    public LIFXCommandFuture turnAllOff() {
+        return turnAllOff(LIFXState.DefaultDuration);
     }
 
     /**
      * Turn off all the lights with duration
      * @param duration time in ms
+     * @return future of the command
      */
-    public void turnAllOff(long duration) {
-        turnOff(LIFXState.SelectorAll, duration);
+    public LIFXCommandFuture turnAllOff(long duration) {
+        return turnOff(LIFXState.SelectorAll, duration);
     }
 
     /**
      * Turn off a subsection of your lights
      * @param selector of which lights to turn off
+     * @return future of the command
      */
-    public void turnOff(String selector) {
-        turnOff(selector, LIFXState.DefaultDuration);
+    public LIFXCommandFuture turnOff(String selector) {
+        return turnOff(selector, LIFXState.DefaultDuration);
     }
 
     /**
      * Turn off a subsection of your lights with duration
      * @param selector of which lights to turn off
      * @param duration time in ms
+     * @return future of the command
      */
-    public void turnOff(String selector, long duration) {
-        setState(selector, LIFXState.PowerOff, null, LIFXState.BrightnessNoChange, duration);
+    public LIFXCommandFuture turnOff(String selector, long duration) {
+        return setState(selector, LIFXState.PowerOff, null, LIFXState.BrightnessNoChange, duration);
     }
 
     /**
      * Turn on all your lights
+     * @return future of the command
      */
-    public void turnAllOn() {
-        turnAllOn(LIFXState.DefaultDuration);
+    public LIFXCommandFuture turnAllOn() {
+        return turnAllOn(LIFXState.DefaultDuration);
     }
 
     /**
      * Turn on all the lights with duration
      * @param duration time in ms
+     * @return future of the command
      */
-    public void turnAllOn(long duration) {
-        turnOn(LIFXState.SelectorAll, duration);
+    public LIFXCommandFuture turnAllOn(long duration) {
+        return turnOn(LIFXState.SelectorAll, duration);
     }
 
     /**
      * Turn onb a subsection of your lights
      * @param selector of which lights to turn on
+     * @return future of the command
      */
-    public void turnOn(String selector) {
-        turnOn(selector, LIFXState.DefaultDuration);
+    public LIFXCommandFuture turnOn(String selector) {
+        return turnOn(selector, LIFXState.DefaultDuration);
     }
 
     /**
      * Turn on a subsection of your lights with duration
      * @param selector of which lights to turn on
      * @param duration time in ms
+     * @return future of the command
      */
-    public void turnOn(String selector, long duration) {
-        setState(selector, LIFXState.PowerOn, null, LIFXState.BrightnessNoChange, duration);
+    public LIFXCommandFuture turnOn(String selector, long duration) {
+        return setState(selector, LIFXState.PowerOn, null, LIFXState.BrightnessNoChange, duration);
     }
 
     /**
      * Set the brightness of all your lightbulbs
      * @param brightness level between 0.0 to 1.0
      * @param duration time in ms
+     * @return future of the command
      */
-    public void setAllBrightness(float brightness, long duration) {
-        setState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null, brightness, duration);
+    public LIFXCommandFuture setAllBrightness(float brightness, long duration) {
+        return setState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null, brightness, duration);
     }
 
     /**
      * Set the brightness of a subset of your lightbulbs
      * @param selector of which your lights to set brightness
      * @param brightness level between 0.0 to 1.0
+     * @return future of the command
      */
-    public void setBrightness(String selector, float brightness) {
-        setState(selector, LIFXState.PowerNoChange, null, brightness, 1000);
+    public LIFXCommandFuture setBrightness(String selector, float brightness) {
+        return setState(selector, LIFXState.PowerNoChange, null, brightness, 1000);
     }
 
     /**
@@ -226,49 +663,42 @@ public class LIFXRemote {
      * @param selector of which your lights to set brightness
      * @param brightness level between 0.0 to 1.0
      * @param duration time in ms
+     * @return future of the command
      */
-    public void setBrightness(String selector, float brightness, long duration) {
-        setState(selector, LIFXState.PowerNoChange, null, brightness, duration);
+    public LIFXCommandFuture setBrightness(String selector, float brightness, long duration) {
+        return setState(selector, LIFXState.PowerNoChange, null, brightness, duration);
     }
 
     /**
      * Set the multiple states using multiple selectors at one time
      * @param states collection of state objects
+     * @return future of the command
      */
-    public void setStates(Collection<LIFXState> states) {
+    public LIFXCommandFuture setStates(Collection<LIFXState> states) {
         if (states == null || states.isEmpty()) {
             Log.w(TAG, "States is either null or empty, operation is ignored");
-            if (mListener != null) {
-                mListener.onLIFXError(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
-            }
+            return reject(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
         } else if (states.size() > LIFXState.MaxStateSize) {
             Log.w(TAG, "Cannot set more than " + LIFXState.MaxStateSize + " states, operation is ignored");
-            if (mListener != null) {
-                mListener.onLIFXError(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
-            }
-        } else {
-            mCommandQueue.add(new LIFXCommand(LIFXCommand.SetStates, states.toArray(new LIFXState[states.size()])));
+            return reject(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
         }
+        return send(new LIFXCommand(LIFXCommand.SetStates, states.toArray(new LIFXState[states.size()])));
     }
 
     /**
      * Set the multiple states using multiple selectors at one time
      * @param states array of state objects
+     * @return future of the command
      */
-    public void setStates(LIFXState[] states) {
+    public LIFXCommandFuture setStates(LIFXState[] states) {
         if (states == null || states.length == 0) {
             Log.w(TAG, "States is either null or empty, operation is ignored");
-            if (mListener != null) {
-                mListener.onLIFXError(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
-            }
+            return reject(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
         } else if (states.length > LIFXState.MaxStateSize) {
             Log.w(TAG, "Cannot set more than " + LIFXState.MaxStateSize + " states, operation is ignored");
-            if (mListener != null) {
-                mListener.onLIFXError(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
-            }
-        } else {
-            mCommandQueue.add(new LIFXCommand(LIFXCommand.SetStates, states));
+            return reject(new LIFXResponseException("setStates() argument states is either empty or null, operation cannot be conducted"));
         }
+        return send(new LIFXCommand(LIFXCommand.SetStates, states));
     }
 
     /**
@@ -277,9 +707,10 @@ public class LIFXRemote {
      * @param color HSBKColor color
      * @param brightness level between 0.0 to 1.0
      * @param duration time in ms
+     * @return future of the command
      */
-    public void setAllState(int powerState, HSBKColor color, float brightness, long duration) {
-        setState(LIFXState.SelectorAll, powerState, color, brightness, duration);
+    public LIFXCommandFuture setAllState(int powerState, HSBKColor color, float brightness, long duration) {
+        return setState(LIFXState.SelectorAll, powerState, color, brightness, duration);
     }
 
     /**
@@ -289,72 +720,165 @@ public class LIFXRemote {
      * @param color HSBKColor color
      * @param brightness level between 0.0 to 1.0
      * @param duration time in ms
+     * @return future of the command
      */
-    public void setState(String selector, int powerState, HSBKColor color, float brightness, long duration) {
-        mCommandQueue.add(new LIFXCommand(LIFXCommand.SetState, new LIFXState[]{
+    public LIFXCommandFuture setState(String selector, int powerState, HSBKColor color, float brightness, long duration) {
+        return send(new LIFXCommand(LIFXCommand.SetState, new LIFXState[]{
                 new LIFXState(selector, powerState, color, brightness, duration)
         }));
     }
 
     /**
      * Toggle all lightbulbs from on to off and vice versa
+     * @return future of the command
      */
-    public void togglePower() {
-        togglePower(LIFXState.SelectorAll);
+    public LIFXCommandFuture togglePower() {
+        return togglePower(LIFXState.SelectorAll);
     }
 
     /**
      * Toggle a selected subset of lightbulbs from on to off and vice versa
      * @param selector of which your lights to set brightness
+     * @return future of the command
      */
-    public void togglePower(String selector) {
-        togglePower(selector, 0);
+    public LIFXCommandFuture togglePower(String selector) {
+        return togglePower(selector, 0);
     }
 
     /**
      * Toggle all lights from on to off and vice versa with duration
      * @param duration time in ms
+     * @return future of the command
      */
-    public void togglePower(long duration) {
-        togglePower(LIFXState.SelectorAll, duration);
+    public LIFXCommandFuture togglePower(long duration) {
+        return togglePower(LIFXState.SelectorAll, duration);
     }
 
     /**
      * Toggle a selected subset of lightbulbs on to off and vice versa with duration
      * @param selector of which your lights to set brightness
      * @param duration time in ms
+     * @return future of the command
      */
-    public void togglePower(String selector, long duration) {
-        mCommandQueue.add(new LIFXCommand(LIFXCommand.TogglePower, new LIFXState[]{
+    public LIFXCommandFuture togglePower(String selector, long duration) {
+        return send(new LIFXCommand(LIFXCommand.TogglePower, new LIFXState[]{
                 new LIFXState(selector, LIFXState.PowerNoChange, null,
                         LIFXState.BrightnessNoChange, duration)
         }));
     }
 
+    /**
+     * Quickly flash the selected lightbulbs between their color and another color
+     * @param selector of which your lights to pulse
+     * @param color to flash
+     * @param period time in ms of one flash
+     * @param cycles number of flashes
+     * @return future of the command
+     */
+    public LIFXCommandFuture pulse(String selector, HSBKColor color, long period, float cycles) {
+        return pulse(selector, new LIFXWaveform(color, period, cycles));
+    }
+
+    /**
+     * Run a pulse effect on the server, the lightbulbs switch between the colors
+     * @param selector of which your lights to pulse
+     * @param waveform settings of the effect
+     * @return future of the command
+     */
+    public LIFXCommandFuture pulse(String selector, LIFXWaveform waveform) {
+        return send(new LIFXCommand(LIFXCommand.Pulse, selector, waveform));
+    }
+
+    /**
+     * Slowly fade the selected lightbulbs between their color and another color
+     * @param selector of which your lights to breathe
+     * @param color to fade to
+     * @param period time in ms of one breath
+     * @param cycles number of breaths
+     * @return future of the command
+     */
+    public LIFXCommandFuture breathe(String selector, HSBKColor color, long period, float cycles) {
+        return breathe(selector, new LIFXWaveform(color, period, cycles));
+    }
+
+    /**
+     * Run a breathe effect on the server, the lightbulbs fade between the colors
+     * @param selector of which your lights to breathe
+     * @param waveform settings of the effect
+     * @return future of the command
+     */
+    public LIFXCommandFuture breathe(String selector, LIFXWaveform waveform) {
+        return send(new LIFXCommand(LIFXCommand.Breathe, selector, waveform));
+    }
+
     /**
      * Get the cache state of all lightbulbs
-     * @return cache lightbulbs state
+     * @return cache lightbulbs state, the list does not change when the cache updates
      */
     public List<LIFXBulb> getAllBulbs() {
-        return mBulbs;
+        return mBulbs.getAll();
     }
 
-    private void requestUpdateAllBulbs() throws LIFXResponseException, JSONException, IOException, ParseException {
-        LIFXCommand cmd = new LIFXCommand(LIFXCommand.ListLights, new LIFXState[]{
-                new LIFXState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null,
-                        LIFXState.BrightnessNoChange, LIFXState.DefaultDuration)
-        });
-        LIFXRemoteResponse response = cmd.request(mAppToken);
-        if (response != null && response.errorMessage == null) {
-            updateBulbs(cmd, response);
-        }
+    /**
+     * Get the cached lightbulb with the id
+     * @param id of the lightbulb
+     * @return the lightbulb or null if it is not in the cache
+     */
+    public LIFXBulb getBulb(String id) {
+        return mBulbs.get(id);
+    }
+
+    /**
+     * Find the cached lightbulbs that a selector would control without asking the server
+     * @param selector such as "all", "id:", "label:", "group:" or "location:"
+     * @return lightbulbs or null if the selector cannot be resolved from the cache
+     */
+    public List<LIFXBulb> findBulbs(String selector) {
+        return mBulbs.find(selector);
+    }
+
+    /**
+     * Get told which lightbulbs were added, removed or changed power, color, label or status
+     * whenever the cache is updated, instead of going through all the lightbulbs
+     * @param listener callback, called from the request threads
+     */
+    public void setOnBulbsChangedListener(LIFXBulbRegistry.OnBulbsChangedListener listener) {
+        mBulbs.setOnBulbsChangedListener(listener);
+    }
+
+    /**
+     * Get the state of all the lightbulbs at this moment. It is safe to read from any thread and
+     * does not change, get a new snapshot to see newer changes.
+     * @return snapshot of the cached lightbulbs
+     */
+    public LIFXBulbRegistry.Snapshot getBulbSnapshot() {
+        return mBulbs.getSnapshot();
     }
 
-    private void updateBulbs(LIFXCommand commandObj, LIFXRemoteResponse res) throws ParseException, LIFXResponseException, JSONException, IOException {
-        if (commandObj.command == LIFXCommand.ListLights && commandObj.states[0].selector.equalsIgnoreCase(LIFXState.SelectorAll)) {
-            // Update our list of bulbs mirroring whatever is online
-            mBulbs.clear();
-            Collections.addAll(mBulbs, res.operations[0].getBulbs());
+    /**
+     * Get the cache of lightbulbs to look them up by id, label, group or location
+     * @return bulb registry
+     */
+    public LIFXBulbRegistry getBulbRegistry() {
+        return mBulbs;
+    }
+
+    private void updateBulbs(LIFXCommand commandObj, LIFXRemoteResponse res) {
+        if (commandObj.command == LIFXCommand.ListLights) {
+            String selector = commandObj.states[0].selector;
+            LIFXBulb[] bulbs = res.operations[0].getBulbs();
+            List<LIFXBulbChange> changes;
+            if (selector.equalsIgnoreCase(LIFXState.SelectorAll)) {
+                // Update our list of bulbs mirroring whatever is online
+                changes = mBulbs.replaceAll(bulbs);
+            } else {
+                changes = mBulbs.putAll(bulbs);
+            }
+            mRefreshScheduler.onRefreshed(selector, bulbs, changes.size());
+            saveBulbCache(changes);
+            if (selector.equalsIgnoreCase(LIFXState.SelectorAll)) {
+                mBulbCacheStale = false;
+            }
         } else {
             for (LIFXRemoteResponse.Operation operation: res.operations) {
                 updateCachedBulbsWithResponseBulbsAndState(operation.mResults, operation.state);
@@ -362,27 +886,146 @@ public class LIFXRemote {
         }
     }
 
-    private void updateCachedBulbsWithResponseBulbsAndState(LIFXBulb[] resBulbs, LIFXState state)
-            throws ParseException, LIFXResponseException, JSONException, IOException {
-        for (int i = 0; i < resBulbs.length; i++) {
-            LIFXBulb statusBulb = resBulbs[i];
-            boolean found = false;
-            for (LIFXBulb savedBulb: mBulbs) {
-                if (savedBulb.id().equals(statusBulb.id())) {
-                    // Update all the information about the bulbs
-                    savedBulb.updateState(state, statusBulb.id(), statusBulb.label(), statusBulb.status());
+    // Not private so the benchmarks can measure it
+    void updateCachedBulbsWithResponseBulbsAndState(LIFXBulb[] resBulbs, LIFXState state) {
+        if (resBulbs == null) {
+            return;
+        }
+        // Update all the information about the bulbs
+        LIFXBulb[] savedBulbs = mBulbs.update(resBulbs, state);
+        if (savedBulbs == null) {
+            // Nope we have different bulbs, list lights again
+            mRefreshScheduler.refreshAll();
+            return;
+        }
 
-                    // Give the response back with all the data of the bulb
-                    resBulbs[i] = savedBulb;
-                    found = true;
-                    break;
-                }
+        // Give the response back with all the data of the bulbs
+        System.arraycopy(savedBulbs, 0, resBulbs, 0, savedBulbs.length);
+        mRefreshScheduler.onChanged(savedBulbs);
+        LIFXBulbCache cache = mBulbCache;
+        if (cache != null) {
+            List<String> ids = new ArrayList<>(savedBulbs.length);
+            for (LIFXBulb bulb : savedBulbs) {
+                ids.add(bulb.id());
             }
-            if (!found) {
-                // Nope we have different bulbs, list lights again
-                requestUpdateAllBulbs();
-                return;
+            cache.saveLater(ids, mBulbs);
+        }
+    }
+
+    private void saveBulbCache(List<LIFXBulbChange> changes) {
+        LIFXBulbCache cache = mBulbCache;
+        if (cache != null && !changes.isEmpty()) {
+            List<String> ids = new ArrayList<>(changes.size());
+            for (LIFXBulbChange change : changes) {
+                ids.add(change.bulb.id());
+            }
+            cache.saveLater(ids, mBulbs);
+        }
+    }
+
+    /**
+     * Queue a failed command again if its retry policy allows it
+     * @param commandObj that failed
+     * @param error why it failed
+     * @param retryAfter time in ms the server asked to wait or -1
+     * @return true if the command will be sent again
+     */
+    private boolean retryLater(LIFXCommand commandObj, Exception error, long retryAfter) {
+        LIFXRetryPolicy policy = mRetryPolicies[commandObj.command];
+        int attempt = commandObj.retries + 1;
+        if (mCircuitBreaker.isOpen() || !policy.shouldRetry(commandObj, attempt, error)) {
+            return false;
+        }
+        long delay = policy.getDelay(attempt, retryAfter);
+        Log.w(TAG, "Retrying command " + commandObj.command + " in " + delay + "ms: " + error.getMessage());
+        commandObj.retries = attempt;
+        mCommandMetrics.retried();
+        mCommandQueue.retryLater(commandObj, delay);
+        return true;
+    }
+
+    private LIFXCommandFuture send(LIFXCommand commandObj) {
+        if (mCircuitBreaker.isOpen()) {
+            mCommandMetrics.circuitRejected();
+            return reject(new LIFXResponseException(CircuitOpenMessage));
+        }
+        LIFXCommand notQueued = mCommandQueue.add(commandObj);
+        if (notQueued == commandObj) {
+            mCommandMetrics.queueRejected();
+            return reject(new LIFXResponseException("Command queue is full"));
+        }
+        if (notQueued != null) {
+            mCommandMetrics.queueDropped();
+            fail(notQueued, new LIFXResponseException("Command was dropped from the full queue"));
+        }
+        return commandObj.future;
+    }
+
+    /**
+     * Queue a command of the remote itself, such as refreshing the cache. It never waits for
+     * room or drops another command, when it cannot be queued the error goes to the listener
+     * like for other commands.
+     * @param commandObj internal command
+     * @return true if it was queued
+     */
+    boolean sendInternal(LIFXCommand commandObj) {
+        if (mCircuitBreaker.isOpen()) {
+            mCommandMetrics.circuitRejected();
+            notifyError(new LIFXResponseException(CircuitOpenMessage));
+            return false;
+        }
+        if (mCommandQueue.offer(commandObj) == commandObj) {
+            mCommandMetrics.queueRejected();
+            notifyError(new LIFXResponseException("Command queue is full"));
+            return false;
+        }
+        return true;
+    }
+
+    private LIFXCommandFuture reject(LIFXResponseException e) {
+        notifyError(e);
+        return LIFXCommandFuture.failed(e);
+    }
+
+    private void fail(LIFXCommand commandObj, LIFXResponseException e) {
+        notifyError(e);
+        if (commandObj.parts != null) {
+            for (LIFXCommand part : commandObj.parts) {
+                part.future.fail(e);
+            }
+        }
+        commandObj.future.fail(e);
+    }
+
+    // Listener exceptions are logged so they cannot keep futures from finishing
+    private void notifyFinished(int command, LIFXRemoteResponse response) {
+        OnRemoteCommandFinishedListener listener = mListener;
+        if (listener != null) {
+            try {
+                listener.onRemoteCommandFinished(command, response);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Listener failed for command " + command, e);
+            }
+        }
+    }
+
+    private void notifyError(LIFXResponseException e) {
+        OnRemoteCommandFinishedListener listener = mListener;
+        if (listener != null) {
+            try {
+                listener.onLIFXError(e);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Listener failed for error " + e.getMessage(), ex);
+            }
+        }
+    }
+
+    private static void abort(LIFXCommand commandObj) {
+        if (commandObj.parts != null) {
+            for (LIFXCommand part : commandObj.parts) {
+                part.future.abort();
             }
         }
+        commandObj.future.abort();
     }
 }
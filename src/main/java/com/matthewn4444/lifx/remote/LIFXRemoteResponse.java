@@ -6,9 +6,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 public class LIFXRemoteResponse {
@@ -17,6 +20,11 @@ public class LIFXRemoteResponse {
         public final String message;
         public final Map<String, String> unknownParameters;
 
+        Warning(String message, Map<String, String> unknownParameters) {
+            this.message = message;
+            this.unknownParameters = unknownParameters;
+        }
+
         Warning(JSONObject data) throws JSONException {
             message = data.getString("warning");
             if (data.has("unknown_params")) {
@@ -46,7 +54,7 @@ public class LIFXRemoteResponse {
             JSONObject operationJson = data.getJSONObject("operation");
             state = LIFXState.fromJson(operationJson);
             if (data.has("results")) {
-                JSONArray arr = new JSONArray();
+                JSONArray arr = data.getJSONArray("results");
                 mResults = new LIFXBulb[arr.length()];
                 for (int i = 0; i < arr.length(); i++) {
                     mResults[i] = new LIFXBulb(arr.getJSONObject(i));
@@ -73,6 +81,197 @@ public class LIFXRemoteResponse {
     // Operation for states
     public final Operation[] operations;
 
+    LIFXRemoteResponse(int responseCode, Warning[] warnings, Operation[] operations) {
+        this(responseCode, null, null, warnings, operations);
+    }
+
+    LIFXRemoteResponse(int responseCode, String errorMessage, ErrorField[] errors,
+                       Warning[] warnings, Operation[] operations) {
+        this.responseCode = responseCode;
+        this.errorMessage = errorMessage;
+        this.errors = errors;
+        this.warnings = warnings;
+        this.operations = operations;
+    }
+
+    /**
+     * Read the response straight from the json stream without building a json tree first
+     * @param reader of the response body
+     * @param responseCode http code of the response
+     * @param state the first state that was sent
+     * @return the response
+     * @throws IOException when the json is malformed
+     * @throws ParseException when a time cannot be parsed
+     */
+    static LIFXRemoteResponse read(LIFXJsonReader reader, int responseCode, LIFXState state) throws IOException, ParseException {
+        if (reader.peek() == LIFXJsonReader.Token.BEGIN_ARRAY) {
+            return new LIFXRemoteResponse(responseCode, null, toOperations(readResults(reader), state));
+        }
+
+        String errorMessage = null;
+        List<ErrorField> errors = null;
+        List<Warning> warnings = null;
+        List<Object> results = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == LIFXJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (name.equals("error")) {
+                errorMessage = reader.nextString();
+            } else if (name.equals("errors")) {
+                errors = readErrors(reader);
+            } else if (name.equals("warnings")) {
+                warnings = readWarnings(reader);
+            } else if (name.equals("results")) {
+                results = readResults(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (errorMessage != null) {
+            return new LIFXRemoteResponse(responseCode, errorMessage,
+                    errors != null ? errors.toArray(new ErrorField[errors.size()]) : null, null, null);
+        }
+        if (results == null) {
+            throw new IOException("Response has no results");
+        }
+        return new LIFXRemoteResponse(responseCode, null, null,
+                warnings != null ? warnings.toArray(new Warning[warnings.size()]) : null,
+                toOperations(results, state));
+    }
+
+    private static Operation[] toOperations(List<Object> results, LIFXState state) {
+        if (!results.isEmpty() && results.get(0) instanceof Operation) {
+            // Setting multiple states returns the results of each operation
+            return results.toArray(new Operation[results.size()]);
+        }
+        return new Operation[] {
+                new Operation(state, results.toArray(new LIFXBulb[results.size()]))
+        };
+    }
+
+    /**
+     * Results are either bulbs or operations that each have their own bulbs
+     */
+    private static List<Object> readResults(LIFXJsonReader reader) throws IOException, ParseException {
+        List<Object> results = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            LIFXState operationState = null;
+            List<Object> operationBulbs = null;
+            LIFXBulb.Fields fields = new LIFXBulb.Fields();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("operation") && reader.peek() == LIFXJsonReader.Token.BEGIN_OBJECT) {
+                    operationState = LIFXState.read(reader);
+                } else if (name.equals("results") && reader.peek() == LIFXJsonReader.Token.BEGIN_ARRAY) {
+                    operationBulbs = readResults(reader);
+                } else {
+                    fields.read(name, reader);
+                }
+            }
+            reader.endObject();
+            if (operationState != null) {
+                results.add(new Operation(operationState, operationBulbs != null
+                        ? operationBulbs.toArray(new LIFXBulb[operationBulbs.size()]) : null));
+            } else {
+                results.add(fields.toBulb());
+            }
+        }
+        reader.endArray();
+        return results;
+    }
+
+    private static List<Warning> readWarnings(LIFXJsonReader reader) throws IOException {
+        List<Warning> warnings = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String message = null;
+            Map<String, String> unknownParameters = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("warning")) {
+                    message = reader.nextString();
+                } else if (name.equals("unknown_params") && reader.peek() == LIFXJsonReader.Token.BEGIN_OBJECT) {
+                    unknownParameters = new HashMap<>();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        if (reader.peek() == LIFXJsonReader.Token.STRING || reader.peek() == LIFXJsonReader.Token.NUMBER) {
+                            unknownParameters.put(key, reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            warnings.add(new Warning(message, unknownParameters));
+        }
+        reader.endArray();
+        return warnings;
+    }
+
+    private static List<ErrorField> readErrors(LIFXJsonReader reader) throws IOException {
+        List<ErrorField> errors = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String field = null;
+            String[] messages = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("field")) {
+                    field = reader.nextString();
+                } else if (name.equals("message") && reader.peek() == LIFXJsonReader.Token.BEGIN_ARRAY) {
+                    List<String> list = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        list.add(reader.nextString());
+                    }
+                    reader.endArray();
+                    messages = list.toArray(new String[list.size()]);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            errors.add(new ErrorField(field, messages));
+        }
+        reader.endArray();
+        return errors;
+    }
+
+    /**
+     * Split out the result of one state from a response of multiple states
+     * @param state that was sent as part of the request
+     * @return response with only the operation of that state
+     */
+    LIFXRemoteResponse splitFor(LIFXState state) {
+        LIFXBulb[] bulbs = new LIFXBulb[0];
+        if (operations != null) {
+            for (Operation operation : operations) {
+                if (operation.state != null && state.selector.equalsIgnoreCase(operation.state.selector)) {
+                    if (operation.mResults != null) {
+                        bulbs = operation.mResults;
+                    }
+                    break;
+                }
+            }
+        }
+        return new LIFXRemoteResponse(responseCode, warnings, new Operation[] {
+                new Operation(state, bulbs)
+        });
+    }
+
     public LIFXRemoteResponse(JSONObject json, int responseCode, LIFXState state) throws JSONException, ParseException {
         this.responseCode = responseCode;
         if (json.has("error")) {
@@ -105,13 +304,21 @@ public class LIFXRemoteResponse {
             }
 
             JSONArray results = json.getJSONArray("results");
-            LIFXBulb[] bulbs = new LIFXBulb[results.length()];
-            for (int i = 0; i < results.length(); i++) {
-                bulbs[i] = new LIFXBulb(results.getJSONObject(i));
+            if (results.length() > 0 && results.getJSONObject(0).has("operation")) {
+                // Setting multiple states returns the results of each operation
+                operations = new Operation[results.length()];
+                for (int i = 0; i < results.length(); i++) {
+                    operations[i] = new Operation(results.getJSONObject(i));
+                }
+            } else {
+                LIFXBulb[] bulbs = new LIFXBulb[results.length()];
+                for (int i = 0; i < results.length(); i++) {
+                    bulbs[i] = new LIFXBulb(results.getJSONObject(i));
+                }
+                operations = new Operation[] {
+                    new Operation(state, bulbs)
+                };
             }
-            operations = new Operation[] {
-                new Operation(state, bulbs)
-            };
 
         }
     }
@@ -124,7 +331,7 @@ public class LIFXRemoteResponse {
         errors = null;
         warnings = null;
 
-        if (json.toString().contains("operation")) {
+        if (json.length() > 0 && json.getJSONObject(0).has("operation")) {
             operations = new Operation[json.length()];
             for (int i = 0; i < json.length(); i++) {
                 operations[i] = new Operation(json.getJSONObject(i));
@@ -12,6 +12,11 @@ public class LIFXResponseException extends LIFXException {
         public final String field;
         public final String[] messages;
 
+        ErrorField(String field, String[] messages) {
+            this.field = field;
+            this.messages = messages;
+        }
+
         ErrorField(JSONObject data) throws JSONException {
             field = data.getString("field");
             if (data.has("message")) {
@@ -28,6 +33,7 @@ public class LIFXResponseException extends LIFXException {
 
     private final int mResponseCode;
     private final ErrorField[] mFields;
+    private long mRetryAfter = -1;
 
     public LIFXResponseException(String s) {
         this(s, 0, null);
@@ -50,4 +56,16 @@ public class LIFXResponseException extends LIFXException {
     public ErrorField[] getErrorFields() {
         return mFields;
     }
+
+    /**
+     * Get how long the server asked to wait before sending again
+     * @return time in ms or -1 if the server did not say
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    void setRetryAfter(long retryAfter) {
+        mRetryAfter = retryAfter;
+    }
 }
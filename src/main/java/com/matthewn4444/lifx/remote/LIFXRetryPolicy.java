@@ -0,0 +1,126 @@
+package com.matthewn4444.lifx.remote;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides if a failed command is sent again and how long to wait before. Network errors and
+ * server errors (5xx) are retried with an exponential backoff and random jitter, or after the
+ * Retry-After the server asked for if that is longer. Commands that are not idempotent such
+ * as toggling the power are only retried when the request could not have reached the server,
+ * so a toggle is never done twice. Commands over the rate limit (429) are always retried up to
+ * the maximum, the server did not run them.
+ */
+public class LIFXRetryPolicy {
+    public static final int DefaultMaxRetries = 3;
+    public static final long DefaultBaseDelay = 500;
+    public static final long DefaultMaxDelay = 30000;
+    public static final float DefaultJitter = 0.5f;
+
+    public static final LIFXRetryPolicy None = new LIFXRetryPolicy(0, 0, 0, 0);
+
+    private static final Random sRandom = new Random();
+
+    public final int maxRetries;
+    public final long baseDelay;
+    public final long maxDelay;
+    public final float jitter;
+
+    public LIFXRetryPolicy() {
+        this(DefaultMaxRetries, DefaultBaseDelay, DefaultMaxDelay, DefaultJitter);
+    }
+
+    /**
+     * @param maxRetries number of times a command is sent again, 0 to never retry
+     * @param baseDelay time in ms before the first retry, doubled for each retry after
+     * @param maxDelay longest time in ms to wait unless the server asks for longer
+     * @param jitter part of the delay that is random from 0.0 to 1.0, spreads out retries of
+     *               many clients that failed at the same time
+     */
+    public LIFXRetryPolicy(int maxRetries, long baseDelay, long maxDelay, float jitter) {
+        if (maxRetries < 0 || baseDelay < 0 || maxDelay < baseDelay || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Invalid retry policy: " + maxRetries + ", " + baseDelay
+                    + ", " + maxDelay + ", " + jitter);
+        }
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param command that failed
+     * @param attempt number of the retry, 1 for the first retry
+     * @param error why the command failed
+     * @return if the command should be sent again
+     */
+    public boolean shouldRetry(LIFXCommand command, int attempt, Exception error) {
+        if (attempt > maxRetries) {
+            return false;
+        }
+        if (error instanceof IOException) {
+            return command.isIdempotent() || wasNotSent((IOException) error);
+        }
+        if (error instanceof LIFXResponseException) {
+            int code = ((LIFXResponseException) error).getErrorResponseCode();
+            if (code == LIFXRateLimiter.TooManyRequests) {
+                // The server refused it without running it
+                return true;
+            }
+            return command.isIdempotent() && code >= 500;
+        }
+        return false;
+    }
+
+    /**
+     * @param attempt number of the retry, 1 for the first retry
+     * @param retryAfter time in ms the server asked to wait or -1
+     * @return time in ms to wait before sending again
+     */
+    public long getDelay(int attempt, long retryAfter) {
+        long delay = baseDelay << Math.min(30, attempt - 1);
+        delay = Math.min(maxDelay, delay < 0 ? maxDelay : delay);
+        float random;
+        synchronized (sRandom) {
+            random = sRandom.nextFloat();
+        }
+        delay = (long) (delay * (1 - jitter + jitter * random));
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Read a Retry-After header, either seconds or an http date
+     * @param value of the header or null
+     * @return time in ms to wait or -1 if there is no valid value
+     */
+    public static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Connecting failed so nothing was sent to the server
+     */
+    private static boolean wasNotSent(IOException e) {
+        return e instanceof ConnectException || e instanceof UnknownHostException
+                || e instanceof NoRouteToHostException;
+    }
+}
@@ -5,6 +5,8 @@ import com.matthewn4444.lifx.HSBKColor;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class LIFXState {
     public static final int MaxStateSize = 50;
 
@@ -30,6 +32,20 @@ public class LIFXState {
         this.duration = duration;
     }
 
+    /**
+     * Combine this state with a newer state for the same selector. Any field the newer state
+     * changes takes over, the rest is kept from this state.
+     * @param newer state that was requested after this one
+     * @return merged state
+     */
+    LIFXState mergeWith(LIFXState newer) {
+        return new LIFXState(selector,
+                newer.powerState != PowerNoChange ? newer.powerState : powerState,
+                newer.color != null ? newer.color : color,
+                newer.brightness != BrightnessNoChange ? newer.brightness : brightness,
+                newer.duration);
+    }
+
     static LIFXState fromJson(JSONObject json) throws JSONException {
         String selector = json.has("selector") ? json.getString("selector") : null;
         int power = PowerNoChange;
@@ -41,7 +57,7 @@ public class LIFXState {
             power = json.getString("power").equals("on") ? LIFXState.PowerOn : LIFXState.PowerOff;
         }
         if (json.has("color")) {
-            color = HSBKColor.fromFormattedString(json.getString("selector"));
+            color = HSBKColor.fromFormattedString(json.getString("color"));
         }
         if (json.has("brightness")) {
             brightness = (float) json.getDouble("brightness");
@@ -52,6 +68,36 @@ public class LIFXState {
         return new LIFXState(selector, power, color, brightness, duration);
     }
 
+    static LIFXState read(LIFXJsonReader reader) throws IOException {
+        String selector = null;
+        int power = PowerNoChange;
+        HSBKColor color = null;
+        float brightness = BrightnessNoChange;
+        long duration = DefaultDuration;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == LIFXJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (name.equals("selector")) {
+                selector = reader.nextString();
+            } else if (name.equals("power")) {
+                power = reader.nextString().equals("on") ? LIFXState.PowerOn : LIFXState.PowerOff;
+            } else if (name.equals("color")) {
+                color = HSBKColor.fromFormattedString(reader.nextString());
+            } else if (name.equals("brightness")) {
+                brightness = (float) reader.nextDouble();
+            } else if (name.equals("duration")) {
+                duration = (int)(reader.nextDouble() * 1000);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new LIFXState(selector, power, color, brightness, duration);
+    }
+
     JSONObject formatJson(boolean showSelector) throws JSONException {
         JSONObject data = new JSONObject();
         if (powerState == PowerOn) {
@@ -0,0 +1,41 @@
+package com.matthewn4444.lifx.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sends the http requests for commands to the server. Implement this to change how connections
+ * are made, otherwise LIFXKeepAliveTransport is used.
+ */
+public interface LIFXTransport {
+
+    interface Response extends Closeable {
+        int code();
+
+        /**
+         * Get the value of a response header
+         * @param name of the header, case insensitive
+         * @return value or null if the header was not sent
+         */
+        String header(String name);
+
+        InputStream body() throws IOException;
+    }
+
+    /**
+     * Send a request, the response must be closed after its body is read
+     * @param method http method in upper case
+     * @param url full url of the request
+     * @param token app token for authorization
+     * @param body json data to send or null if nothing is sent
+     * @return the response from the server
+     * @throws IOException
+     */
+    Response execute(String method, String url, String token, String body) throws IOException;
+
+    /**
+     * Close any connections kept open by this transport. The transport can still be used after.
+     */
+    void releaseConnections();
+}
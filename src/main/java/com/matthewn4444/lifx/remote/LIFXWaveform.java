@@ -0,0 +1,81 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Settings of a pulse or breathe effect that the cloud runs on the lightbulbs
+ */
+public class LIFXWaveform {
+    public static final long DefaultPeriod = 1000;
+    public static final float DefaultCycles = 1;
+    public static final float DefaultPeak = 0.5f;
+
+    public final HSBKColor color;
+    public final HSBKColor fromColor;
+    public final long period;
+    public final float cycles;
+    public final boolean persist;
+    public final boolean powerOn;
+    public final float peak;
+
+    /**
+     * @param color the lightbulbs change to
+     * @param period time in ms of one cycle
+     * @param cycles number of times to repeat
+     */
+    public LIFXWaveform(HSBKColor color, long period, float cycles) {
+        this(color, null, period, cycles, false, true, DefaultPeak);
+    }
+
+    /**
+     * @param color the lightbulbs change to
+     * @param fromColor the lightbulbs start from, null for their current color
+     * @param period time in ms of one cycle
+     * @param cycles number of times to repeat
+     * @param persist keep the last color of the effect instead of going back
+     * @param powerOn turn on lightbulbs that are off
+     * @param peak where in a cycle the color is strongest from 0.0 to 1.0, only for breathe
+     */
+    public LIFXWaveform(HSBKColor color, HSBKColor fromColor, long period, float cycles, boolean persist,
+                        boolean powerOn, float peak) {
+        if (color == null) {
+            throw new IllegalArgumentException("Waveform needs a color");
+        }
+        this.color = color;
+        this.fromColor = fromColor;
+        this.period = period;
+        this.cycles = cycles;
+        this.persist = persist;
+        this.powerOn = powerOn;
+        this.peak = peak;
+    }
+
+    /**
+     * Get the state the lightbulbs are left in, used to update the cache after the effect
+     * @param selector of the lightbulbs
+     * @return state with no duration
+     */
+    LIFXState toState(String selector) {
+        return new LIFXState(selector, powerOn ? LIFXState.PowerOn : LIFXState.PowerNoChange,
+                persist ? color : null, LIFXState.BrightnessNoChange, 0);
+    }
+
+    JSONObject formatJson(boolean breathe) throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("color", color.toString());
+        if (fromColor != null) {
+            data.put("from_color", fromColor.toString());
+        }
+        data.put("period", (double) period / 1000f);
+        data.put("cycles", cycles);
+        data.put("persist", persist);
+        data.put("power_on", powerOn);
+        if (breathe) {
+            data.put("peak", peak);
+        }
+        return data;
+    }
+}
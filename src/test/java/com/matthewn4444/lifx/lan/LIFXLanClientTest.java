@@ -0,0 +1,267 @@
+package com.matthewn4444.lifx.lan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LIFXLanClientTest {
+    private static final long Target = 0x0000D5D37300L;
+    private static final long Timeout = 2000;
+
+    private LIFXLanTestBulb mBulb;
+    private LIFXLanClient mClient;
+    private final List<LIFXLanMessage> mUnmatched = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mBulb = new LIFXLanTestBulb(Target);
+        mClient = new LIFXLanClient(0, mBulb.getAddress());
+        mClient.setListener(new LIFXLanClient.OnLanMessageListener() {
+            @Override
+            public void onLanMessage(LIFXLanDevice device, LIFXLanMessage message) {
+                synchronized (mUnmatched) {
+                    mUnmatched.add(message);
+                    mUnmatched.notifyAll();
+                }
+            }
+
+            @Override
+            public void onLIFXError(LIFXLanException e) {
+            }
+        });
+        mClient.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.destroy();
+        mBulb.close();
+    }
+
+    @Test
+    public void headerRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(LIFXLanCodec.MaxPacketSize);
+        LIFXLanCodec.encodeHeader(buffer, LIFXLanMessage.GetColor, Target, 0x12345678, 200, false, true, true);
+        buffer.flip();
+
+        assertEquals(LIFXLanCodec.HeaderSize, buffer.remaining());
+        assertTrue(LIFXLanCodec.isValid(buffer));
+        assertEquals(LIFXLanMessage.GetColor, LIFXLanCodec.type(buffer));
+        assertEquals(0x12345678, LIFXLanCodec.source(buffer));
+        assertEquals(Target, LIFXLanCodec.target(buffer));
+        assertEquals(200, LIFXLanCodec.sequence(buffer));
+
+        LIFXLanMessage message = LIFXLanCodec.decode(buffer);
+        assertNotNull(message);
+        assertEquals(LIFXLanMessage.GetColor, message.type());
+        assertEquals(200, message.sequence());
+        assertFalse(message.mTagged);
+        assertTrue(message.mAckRequired);
+        assertTrue(message.mResRequired);
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void messageRoundTrip() {
+        LIFXLanMessage state = new LIFXLanMessage(LIFXLanMessage.LightState);
+        state.mTarget = Target;
+        state.mHue = 65535;
+        state.mSaturation = 1;
+        state.mBrightness = 32768;
+        state.mKelvin = 9000;
+        state.mLevel = LIFXLanMessage.PowerOn;
+        state.setLabel("Kitchen");
+        ByteBuffer buffer = ByteBuffer.allocate(LIFXLanCodec.MaxPacketSize);
+        LIFXLanCodec.encode(state, buffer);
+        buffer.flip();
+        assertEquals(LIFXLanCodec.packetSize(LIFXLanMessage.LightState), buffer.remaining());
+
+        LIFXLanMessage decoded = LIFXLanCodec.decode(buffer);
+        assertEquals(LIFXLanMessage.LightState, decoded.type());
+        assertEquals(65535, decoded.hue());
+        assertEquals(1, decoded.saturation());
+        assertEquals(32768, decoded.brightness());
+        assertEquals(9000, decoded.kelvin());
+        assertTrue(decoded.isOn());
+        assertEquals("Kitchen", decoded.label());
+    }
+
+    @Test
+    public void invalidPacketIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(LIFXLanCodec.MaxPacketSize);
+        LIFXLanCodec.encodeHeader(buffer, LIFXLanMessage.LightState, Target, 2, 1, false, false, false);
+        buffer.flip();
+        // Header says LightState but there is no payload
+        assertFalse(LIFXLanCodec.isValid(buffer));
+        assertEquals(null, LIFXLanCodec.decode(buffer));
+    }
+
+    @Test
+    public void queryIsAnsweredWithItsState() throws Exception {
+        LIFXLanRequest request = mClient.getColor(mBulb.getDevice());
+        LIFXLanMessage answer = request.get(Timeout, TimeUnit.MILLISECONDS);
+
+        assertEquals(LIFXLanMessage.LightState, answer.type());
+        assertEquals(Target, answer.target());
+        assertEquals(mBulb.hue, answer.hue());
+        assertEquals(mBulb.label, answer.label());
+        assertEquals(1, request.getAttempts());
+    }
+
+    @Test
+    public void changeIsAnsweredWithAcknowledgement() throws Exception {
+        LIFXLanRequest request = mClient.turnOff(mBulb.getDevice());
+        assertEquals(LIFXLanMessage.Acknowledgement, request.get(Timeout, TimeUnit.MILLISECONDS).type());
+    }
+
+    @Test
+    public void answerOfAnotherTypeDoesNotFinishRequest() throws Exception {
+        // The bulb first sends a StateService with the sequence of the GetColor
+        mBulb.sendBefore = LIFXLanMessage.StateService;
+        LIFXLanRequest request = mClient.getColor(mBulb.getDevice());
+
+        assertEquals(LIFXLanMessage.LightState, request.get(Timeout, TimeUnit.MILLISECONDS).type());
+        LIFXLanMessage other = awaitUnmatched();
+        assertEquals(LIFXLanMessage.StateService, other.type());
+        assertEquals(request.getMessage().sequence(), other.sequence());
+    }
+
+    @Test
+    public void answerFromAnotherBulbDoesNotFinishRequest() throws Exception {
+        LIFXLanTestBulb other = new LIFXLanTestBulb(Target + 1);
+        try {
+            // Address of the other bulb with the target of the first, the answer has the wrong target
+            mClient.setRetry(50, 2);
+            LIFXLanRequest request = mClient.getColor(new LIFXLanDevice(Target, other.getAddress()));
+            try {
+                request.get(Timeout, TimeUnit.MILLISECONDS);
+                fail("Answer from another bulb finished the request");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LIFXLanException);
+            }
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void broadcastAnswersGoToListener() throws Exception {
+        LIFXLanTestBulb silent = new LIFXLanTestBulb(Target + 1);
+        try {
+            silent.drop = Integer.MAX_VALUE;
+            LIFXLanRequest pending = mClient.getPower(silent.getDevice());
+            mClient.discover();
+
+            LIFXLanMessage answer = awaitUnmatched();
+            assertEquals(LIFXLanMessage.StateService, answer.type());
+            assertEquals(mBulb.getAddress().getPort(), answer.port());
+            assertFalse(pending.isDone());
+            assertNotEquals(answer.sequence(), pending.getMessage().sequence());
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void failingCallbacksDoNotStopReceiver() throws Exception {
+        mClient.setListener(new LIFXLanClient.OnLanMessageListener() {
+            @Override
+            public void onLanMessage(LIFXLanDevice device, LIFXLanMessage message) {
+                throw new IllegalStateException("Listener failed");
+            }
+
+            @Override
+            public void onLIFXError(LIFXLanException e) {
+                throw new IllegalStateException("Listener failed");
+            }
+        });
+        mClient.discover();
+        LIFXLanRequest request = mClient.getColor(mBulb.getDevice());
+        request.addCallback(new LIFXLanRequest.Callback() {
+            @Override
+            public void onResponse(LIFXLanMessage response) {
+                throw new IllegalStateException("Callback failed");
+            }
+
+            @Override
+            public void onError(LIFXLanException e) {
+            }
+        });
+        assertEquals(LIFXLanMessage.LightState, request.get(Timeout, TimeUnit.MILLISECONDS).type());
+
+        // The receiving thread still answers requests after the listener and callback threw
+        assertEquals(LIFXLanMessage.StatePower, mClient.getPower(mBulb.getDevice())
+                .get(Timeout, TimeUnit.MILLISECONDS).type());
+    }
+
+    @Test
+    public void requestIsSentAgainWhenNotAnswered() throws Exception {
+        mClient.setRetry(100, 3);
+        mBulb.drop = 1;
+        LIFXLanRequest request = mClient.getPower(mBulb.getDevice());
+
+        assertEquals(LIFXLanMessage.StatePower, request.get(Timeout, TimeUnit.MILLISECONDS).type());
+        assertEquals(2, request.getAttempts());
+        List<LIFXLanMessage> received = mBulb.getReceived();
+        assertEquals(2, received.size());
+        assertEquals(received.get(0).sequence(), received.get(1).sequence());
+    }
+
+    @Test
+    public void requestFailsAfterLastAttempt() throws Exception {
+        mClient.setRetry(50, 3);
+        mBulb.drop = Integer.MAX_VALUE;
+        LIFXLanRequest request = mClient.getColor(mBulb.getDevice());
+
+        try {
+            request.get(Timeout, TimeUnit.MILLISECONDS);
+            fail("Request to a silent bulb finished");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LIFXLanException);
+        }
+        assertEquals(3, request.getAttempts());
+        assertEquals(3, mBulb.getReceived().size());
+    }
+
+    @Test
+    public void destroyFailsWaitingRequests() throws Exception {
+        mBulb.drop = Integer.MAX_VALUE;
+        LIFXLanRequest request = mClient.getColor(mBulb.getDevice());
+        mClient.destroy();
+
+        assertTrue(request.isDone());
+        try {
+            request.get();
+            fail("Request finished after the client was destroyed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LIFXLanException);
+        }
+    }
+
+    private LIFXLanMessage awaitUnmatched() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Timeout;
+        synchronized (mUnmatched) {
+            while (mUnmatched.isEmpty()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    fail("No unmatched message was received");
+                }
+                mUnmatched.wait(wait);
+            }
+            return mUnmatched.remove(0);
+        }
+    }
+}
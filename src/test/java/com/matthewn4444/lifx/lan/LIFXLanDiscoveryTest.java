@@ -0,0 +1,204 @@
+package com.matthewn4444.lifx.lan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LIFXLanDiscoveryTest {
+    private static final long Timeout = 2000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<LIFXLanTestBulb> mBulbs = new ArrayList<>();
+    private final List<LIFXLanDevice> mFound = new ArrayList<>();
+    private final List<LIFXLanDevice> mLost = new ArrayList<>();
+    private LIFXLanClient mClient;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            mBulbs.add(new LIFXLanTestBulb(0xD5D373000000L + i));
+        }
+        // Broadcasts reach the first bulb, the others answer with announce()
+        mClient = new LIFXLanClient(0, mBulbs.get(0).getAddress());
+        mClient.start();
+        mFile = new File(mFolder.getRoot(), "lan-devices");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.destroy();
+        for (LIFXLanTestBulb bulb : mBulbs) {
+            bulb.close();
+        }
+    }
+
+    @Test
+    public void discoverCollectsStateService() throws Exception {
+        LIFXLanDiscovery discovery = createDiscovery(mFile);
+        discovery.discover();
+        InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), mClient.getLocalPort());
+        mBulbs.get(1).announce(client);
+        mBulbs.get(2).announce(client);
+        awaitFound(3);
+
+        assertEquals(3, discovery.size());
+        for (LIFXLanTestBulb bulb : mBulbs) {
+            LIFXLanDevice device = discovery.getDevice(LIFXLanDevice.toId(bulb.target));
+            assertNotNull(device);
+            assertEquals(bulb.getAddress(), device.address);
+            assertTrue(discovery.getLastSeen(device.id()) > 0);
+        }
+
+        // Answering again with the same address does not find the bulb again
+        mBulbs.get(1).announce(client);
+        mClient.getColor(mBulbs.get(1).getDevice()).get();
+        synchronized (mFound) {
+            assertEquals(3, mFound.size());
+        }
+    }
+
+    @Test
+    public void expireRemovesBulbsPastTimeToLive() throws Exception {
+        LIFXLanDiscovery discovery = createDiscovery(null);
+        discovery.setIntervals(1000, 5000);
+        LIFXLanDevice first = mBulbs.get(0).getDevice();
+        LIFXLanDevice second = mBulbs.get(1).getDevice();
+        discovery.put(first);
+        discovery.put(second);
+        long firstSeen = Math.min(discovery.getLastSeen(first.id()), discovery.getLastSeen(second.id()));
+        long lastSeen = Math.max(discovery.getLastSeen(first.id()), discovery.getLastSeen(second.id()));
+
+        discovery.expire(firstSeen + 5000);
+        assertEquals(2, discovery.size());
+        assertTrue(mLost.isEmpty());
+
+        discovery.expire(lastSeen + 5001);
+        assertEquals(0, discovery.size());
+        assertEquals(2, mLost.size());
+        assertEquals(-1, discovery.getLastSeen(first.id()));
+    }
+
+    @Test
+    public void tableIsSavedAndLoaded() throws Exception {
+        LIFXLanDiscovery discovery = createDiscovery(mFile);
+        discovery.put(mBulbs.get(0).getDevice());
+        discovery.put(mBulbs.get(1).getDevice());
+        discovery.saveIfChanged();
+        assertTrue(mFile.exists());
+
+        mFound.clear();
+        LIFXLanDiscovery loaded = new LIFXLanDiscovery(new LIFXLanClient(), mFile);
+        loaded.setOnDeviceListener(new Listener());
+        loaded.load();
+        assertEquals(2, loaded.size());
+        assertEquals(2, mFound.size());
+        for (int i = 0; i < 2; i++) {
+            String id = mBulbs.get(i).getDevice().id();
+            assertEquals(mBulbs.get(i).getAddress(), loaded.getDevice(id).address);
+            assertEquals(discovery.getLastSeen(id), loaded.getLastSeen(id));
+        }
+    }
+
+    @Test
+    public void loadSkipsExpiredAndInvalidLines() throws Exception {
+        long now = System.currentTimeMillis();
+        long expired = now - LIFXLanDiscovery.DefaultTimeToLive - 60000;
+        writeTable("LIFXLanDiscovery 1",
+                "d073d5000001 127.0.0.1 56700 " + now,
+                "d073d5000002 127.0.0.1 56700 " + expired,
+                "garbage",
+                "d073d5000003 127.0.0.1 notaport " + now,
+                "d073d5 127.0.0.1 56700 " + now,
+                "d073d5000004 127.0.0.1 56700 yesterday",
+                "d073d5000005 127.0.0.2 56701 " + now);
+
+        LIFXLanDiscovery discovery = createDiscovery(mFile);
+        discovery.load();
+        assertEquals(2, discovery.size());
+        assertEquals(now, discovery.getLastSeen("d073d5000001"));
+        assertNull(discovery.getDevice("d073d5000002"));
+        assertEquals(new InetSocketAddress("127.0.0.2", 56701), discovery.getDevice("d073d5000005").address);
+
+        // Loading again does nothing
+        discovery.load();
+        assertEquals(2, mFound.size());
+    }
+
+    @Test
+    public void tableWithUnknownVersionIsIgnored() throws Exception {
+        writeTable("LIFXLanDiscovery 0",
+                "d073d5000001 127.0.0.1 56700 " + System.currentTimeMillis());
+        LIFXLanDiscovery discovery = createDiscovery(mFile);
+        discovery.load();
+        assertEquals(0, discovery.size());
+    }
+
+    private LIFXLanDiscovery createDiscovery(File file) {
+        LIFXLanDiscovery discovery = new LIFXLanDiscovery(mClient, file);
+        discovery.setOnDeviceListener(new Listener());
+        return discovery;
+    }
+
+    private void writeTable(String... lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void awaitFound(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Timeout;
+        synchronized (mFound) {
+            while (mFound.size() < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    fail("Found " + mFound.size() + " of " + count + " bulbs");
+                }
+                mFound.wait(wait);
+            }
+        }
+    }
+
+    private final class Listener implements LIFXLanDiscovery.OnDeviceListener {
+        @Override
+        public void onDeviceFound(LIFXLanDevice device) {
+            synchronized (mFound) {
+                mFound.add(device);
+                mFound.notifyAll();
+            }
+        }
+
+        @Override
+        public void onDeviceLost(LIFXLanDevice device) {
+            synchronized (mLost) {
+                mLost.add(device);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.matthewn4444.lifx.lan;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A lightbulb on loopback for tests. It answers queries with its state and other messages
+ * with an acknowledgement, using the source and sequence of the request like a real bulb.
+ * Unlike a real bulb it answers packets for any target, always with its own target.
+ */
+class LIFXLanTestBulb implements Runnable {
+    final long target;
+    volatile int level = LIFXLanMessage.PowerOn;
+    volatile int hue = 1000;
+    volatile int brightness = 2000;
+    volatile int kelvin = 3500;
+    volatile String label = "Test bulb";
+
+    // Number of packets to ignore before answering, Integer.MAX_VALUE to never answer
+    volatile int drop;
+
+    // Type of a message sent with the sequence of a request before its real answer, 0 for none
+    volatile int sendBefore;
+
+    private final DatagramChannel mChannel;
+    private final Thread mThread;
+    private final List<LIFXLanMessage> mReceived = new ArrayList<>();
+
+    LIFXLanTestBulb(long target) throws IOException {
+        this.target = target;
+        mChannel = DatagramChannel.open();
+        mChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mThread = new Thread(this, "LIFXLanTestBulb");
+        mThread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) mChannel.socket().getLocalSocketAddress();
+    }
+
+    LIFXLanDevice getDevice() {
+        return new LIFXLanDevice(target, getAddress());
+    }
+
+    /**
+     * @return copy of the messages received, including the dropped ones
+     */
+    List<LIFXLanMessage> getReceived() {
+        synchronized (mReceived) {
+            return new ArrayList<>(mReceived);
+        }
+    }
+
+    /**
+     * Send a StateService as if a broadcast had reached this bulb
+     * @param to address of the client
+     */
+    void announce(InetSocketAddress to) throws IOException {
+        reply(to, new LIFXLanMessage(LIFXLanMessage.GetService));
+    }
+
+    void close() throws IOException {
+        mChannel.close();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(LIFXLanCodec.MaxPacketSize);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress from = mChannel.receive(buffer);
+                buffer.flip();
+                LIFXLanMessage request = LIFXLanCodec.decode(buffer);
+                if (request == null) {
+                    continue;
+                }
+                synchronized (mReceived) {
+                    mReceived.add(request);
+                }
+                if (drop > 0) {
+                    drop--;
+                    continue;
+                }
+                if (sendBefore != 0) {
+                    LIFXLanMessage early = answer(request, sendBefore);
+                    send((InetSocketAddress) from, early);
+                }
+                reply((InetSocketAddress) from, request);
+            }
+        } catch (ClosedChannelException ignored) {
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void reply(InetSocketAddress to, LIFXLanMessage request) throws IOException {
+        if (request.mResRequired || request.isQuery()) {
+            send(to, answer(request, stateType(request.type())));
+        }
+        if (request.mAckRequired) {
+            send(to, answer(request, LIFXLanMessage.Acknowledgement));
+        }
+    }
+
+    private static int stateType(int type) {
+        switch (type) {
+            case LIFXLanMessage.GetService:
+                return LIFXLanMessage.StateService;
+            case LIFXLanMessage.GetPower:
+                return LIFXLanMessage.StatePower;
+            case LIFXLanMessage.GetColor:
+                return LIFXLanMessage.LightState;
+            case LIFXLanMessage.GetLightPower:
+                return LIFXLanMessage.StateLightPower;
+            default:
+                return LIFXLanMessage.Acknowledgement;
+        }
+    }
+
+    private LIFXLanMessage answer(LIFXLanMessage request, int type) {
+        LIFXLanMessage message = new LIFXLanMessage(type);
+        message.mTarget = target;
+        message.mSource = request.mSource;
+        message.mSequence = request.mSequence;
+        message.mService = LIFXLanMessage.ServiceUdp;
+        message.mPort = getAddress().getPort();
+        message.mLevel = level;
+        message.mHue = hue;
+        message.mBrightness = brightness;
+        message.mKelvin = kelvin;
+        message.setLabel(label);
+        return message;
+    }
+
+    private void send(InetSocketAddress to, LIFXLanMessage message) throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(LIFXLanCodec.MaxPacketSize);
+        LIFXLanCodec.encode(message, packet);
+        packet.flip();
+        mChannel.send(packet, to);
+    }
+}
@@ -0,0 +1,396 @@
+package com.matthewn4444.lifx.remote;
+
+import com.matthewn4444.lifx.HSBKColor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LIFXBinaryCodecTest {
+    private static final float Delta = 0.0001f;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void listedBulbRoundTrip() throws IOException {
+        LIFXBulb bulb = listedBulb("d073d5000001", "Kitchen");
+        LIFXBulb read = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeBulb(listedBulb("d073d5000001", "Kitchen"));
+            }
+        })).readBulb();
+
+        assertEquals(bulb.id(), read.id());
+        assertEquals(bulb.label(), read.label());
+        assertEquals(bulb.status(), read.status());
+        assertEquals(bulb.uuid, read.uuid);
+        assertTrue(read.isListed());
+        assertTrue(read.connected);
+        assertArrayEquals(bulb.group, read.group);
+        assertArrayEquals(bulb.location, read.location);
+        assertEquals(bulb.product.name, read.product.name);
+        assertEquals(bulb.product.identifier, read.product.identifier);
+        assertEquals(bulb.product.company, read.product.company);
+        assertEquals(bulb.product.capabilities, read.product.capabilities);
+        assertEquals(bulb.lastSeen.getTimeInMillis(), read.lastSeen.getTimeInMillis());
+        assertEquals(bulb.secLastSeen, read.secLastSeen, Delta);
+        assertEquals(bulb.brightness(), read.brightness(), Delta);
+        assertTrue(read.isOn());
+        assertColorEquals(bulb.color(), read.color());
+    }
+
+    @Test
+    public void unlistedBulbWithNullFieldsRoundTrip() throws IOException {
+        LIFXBulb read = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeBulb(LIFXBulb.unlisted("d073d5000002"));
+            }
+        })).readBulb();
+
+        assertEquals("d073d5000002", read.id());
+        assertFalse(read.isListed());
+        assertNull(read.label());
+        assertNull(read.uuid);
+        assertNull(read.group);
+        assertNull(read.location);
+        assertNull(read.product);
+        assertNull(read.lastSeen);
+        assertNull(read.color());
+        assertFalse(read.connected);
+        assertFalse(read.isOn());
+        assertEquals(LIFXBulb.Status.UNKNOWN, read.status());
+    }
+
+    @Test
+    public void bulbArraysRoundTrip() throws IOException {
+        LIFXBinaryCodec.Reader reader = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeBulbs(null);
+                writer.writeBulbs(new LIFXBulb[0]);
+                writer.writeBulbs(new LIFXBulb[] {
+                        listedBulb("d073d5000001", "Kitchen"), LIFXBulb.unlisted("d073d5000002")
+                });
+            }
+        }));
+
+        assertNull(reader.readBulbs());
+        assertEquals(0, reader.readBulbs().length);
+        LIFXBulb[] bulbs = reader.readBulbs();
+        assertEquals(2, bulbs.length);
+        assertEquals("Kitchen", bulbs[0].label());
+        assertFalse(bulbs[1].isListed());
+    }
+
+    @Test
+    public void statesRoundTrip() throws IOException {
+        final LIFXState withColor = new LIFXState("group:Kitchen", LIFXState.PowerOn,
+                new HSBKColor(120, 0.5f, 0.25f, 4000), 0.75f, 1500);
+        final LIFXState withoutColor = new LIFXState(LIFXState.SelectorAll, LIFXState.PowerNoChange, null,
+                LIFXState.BrightnessNoChange, 0);
+        LIFXBinaryCodec.Reader reader = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeState(withColor);
+                writer.writeState(withoutColor);
+            }
+        }));
+
+        for (LIFXState expected : new LIFXState[] { withColor, withoutColor }) {
+            LIFXState read = reader.readState();
+            assertEquals(expected.selector, read.selector);
+            assertEquals(expected.powerState, read.powerState);
+            assertEquals(expected.brightness, read.brightness, Delta);
+            assertEquals(expected.duration, read.duration);
+            assertColorEquals(expected.color, read.color);
+        }
+    }
+
+    @Test
+    public void colorsKeepKelvinEnabled() throws IOException {
+        final HSBKColor kelvin = new HSBKColor(359.5f, 1, 0, 9000);
+        final HSBKColor noKelvin = new HSBKColor(0, 0, 1, 2500);
+        noKelvin.enableKelvin(false);
+        LIFXBinaryCodec.Reader reader = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeColor(kelvin);
+                writer.writeColor(noKelvin);
+            }
+        }));
+
+        HSBKColor read = reader.readColor();
+        assertTrue(read.isKelvinEnabled());
+        assertColorEquals(kelvin, read);
+        read = reader.readColor();
+        assertFalse(read.isKelvinEnabled());
+        assertColorEquals(noKelvin, read);
+    }
+
+    @Test
+    public void responseRoundTrip() throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("fast", "true");
+        final LIFXRemoteResponse response = new LIFXRemoteResponse(422, "Validation error",
+                new LIFXResponseException.ErrorField[] {
+                        new LIFXResponseException.ErrorField("color", new String[] { "Unable to parse" }),
+                        new LIFXResponseException.ErrorField("power", null)
+                },
+                new LIFXRemoteResponse.Warning[] {
+                        new LIFXRemoteResponse.Warning("Unknown parameters", parameters),
+                        new LIFXRemoteResponse.Warning("No parameters", null)
+                },
+                new LIFXRemoteResponse.Operation[] {
+                        new LIFXRemoteResponse.Operation(new LIFXState("id:d073d5000001", LIFXState.PowerOff,
+                                null, LIFXState.BrightnessNoChange, 0),
+                                new LIFXBulb[] { listedBulb("d073d5000001", "Kitchen") }),
+                        new LIFXRemoteResponse.Operation(null, null)
+                });
+        LIFXRemoteResponse read = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeResponse(response);
+            }
+        })).readResponse();
+
+        assertEquals(422, read.responseCode);
+        assertEquals("Validation error", read.errorMessage);
+        assertEquals(2, read.errors.length);
+        assertEquals("color", read.errors[0].field);
+        assertArrayEquals(new String[] { "Unable to parse" }, read.errors[0].messages);
+        assertEquals("power", read.errors[1].field);
+        assertNull(read.errors[1].messages);
+
+        assertEquals(2, read.warnings.length);
+        assertEquals("Unknown parameters", read.warnings[0].message);
+        assertEquals(parameters, read.warnings[0].unknownParameters);
+        assertNull(read.warnings[1].unknownParameters);
+
+        assertEquals(2, read.operations.length);
+        assertEquals("id:d073d5000001", read.operations[0].state.selector);
+        assertEquals(LIFXState.PowerOff, read.operations[0].state.powerState);
+        assertEquals(1, read.operations[0].getBulbs().length);
+        assertEquals("Kitchen", read.operations[0].getBulbs()[0].label());
+        assertNull(read.operations[1].state);
+        assertNull(read.operations[1].getBulbs());
+    }
+
+    @Test
+    public void responseWithoutErrorsRoundTrip() throws IOException {
+        final LIFXRemoteResponse response = new LIFXRemoteResponse(200, null, null);
+        LIFXRemoteResponse read = reader(write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeResponse(response);
+            }
+        })).readResponse();
+
+        assertEquals(200, read.responseCode);
+        assertNull(read.errorMessage);
+        assertNull(read.errors);
+        assertNull(read.warnings);
+        assertNull(read.operations);
+    }
+
+    @Test
+    public void repeatedStringsAreReferenced() throws IOException {
+        final String label = "A long label for the living room";
+        byte[] once = write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeString(label);
+            }
+        });
+        byte[] twice = write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeString(label);
+                writer.writeString(null);
+                writer.writeString(new String(label));
+            }
+        });
+        // The null and the reference take a byte each
+        assertEquals(once.length + 2, twice.length);
+
+        LIFXBinaryCodec.Reader reader = reader(twice);
+        String first = reader.readString();
+        assertEquals(label, first);
+        assertNull(reader.readString());
+        assertSame(first, reader.readString());
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        byte[] data = write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeString("id");
+            }
+        });
+        data[2] = (byte) (LIFXBinaryCodec.Version + 1);
+        try {
+            reader(data);
+            fail("Read a stream of another version");
+        } catch (IOException expected) {
+        }
+
+        data[2] = (byte) LIFXBinaryCodec.Version;
+        data[0] = 0;
+        try {
+            reader(data);
+            fail("Read a stream that is not from a writer");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void invalidStringReferenceIsRejected() throws IOException {
+        // One string then a reference past it, then a reference that is negative as a long
+        byte[] data = write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeString("id");
+                writer.writeVarLong(3);
+                writer.writeVarLong(-1);
+            }
+        });
+        LIFXBinaryCodec.Reader reader = reader(data);
+        assertEquals("id", reader.readString());
+        for (int i = 0; i < 2; i++) {
+            try {
+                reader.readString();
+                fail("Read a string that was never written");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void invalidCountAndColorAreRejected() throws IOException {
+        byte[] data = write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeVarLong(-5);
+            }
+        });
+        try {
+            reader(data).readBulbs();
+            fail("Read a negative count");
+        } catch (IOException expected) {
+        }
+
+        data = write(new Write() {
+            @Override
+            public void to(LIFXBinaryCodec.Writer writer) throws IOException {
+                writer.writeColor(new HSBKColor(0, 0, 0, 3500));
+            }
+        });
+        // Kelvin is the varint after the three floats
+        data[3 + 12] = 1;
+        try {
+            reader(data).readColor();
+            fail("Read a color with an invalid kelvin");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void cacheWithInvalidStringReferenceLoadsEmpty() throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        LIFXBinaryCodec.Writer writer = new LIFXBinaryCodec.Writer(block);
+        writer.writeVarLong(System.currentTimeMillis());
+        writer.writeVarLong(1);
+        writer.writeVarLong(-1);
+        writer.flush();
+
+        File file = mFolder.newFile("bulbs");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(0x4C584243);
+            out.writeInt(2);
+            out.writeLong(0);
+            out.writeInt(block.size());
+            block.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        LIFXBulb[] bulbs = new LIFXBulbCache(file).load();
+        assertNotNull(bulbs);
+        assertEquals(0, bulbs.length);
+    }
+
+    private interface Write {
+        void to(LIFXBinaryCodec.Writer writer) throws IOException;
+    }
+
+    private static byte[] write(Write write) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LIFXBinaryCodec.Writer writer = new LIFXBinaryCodec.Writer(out);
+        write.to(writer);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static LIFXBinaryCodec.Reader reader(byte[] data) throws IOException {
+        return new LIFXBinaryCodec.Reader(new ByteArrayInputStream(data));
+    }
+
+    private static LIFXBulb listedBulb(String id, String label) throws IOException {
+        LIFXBulb.Fields fields = new LIFXBulb.Fields();
+        fields.id = id;
+        fields.label = label;
+        fields.status = LIFXBulb.Status.OK;
+        fields.uuid = "8fa5f072-af97-44ed-ae54-e70fd7bd9d20";
+        fields.connected = true;
+        fields.group = new String[] { "1c8de82b81f445e7cfaafae49b259c71", "Lounge" };
+        fields.location = new String[] { "1d6fe8ef0fde4c6d77b0012dc736662c", "Home" };
+        Map<String, Boolean> capabilities = new LinkedHashMap<>();
+        capabilities.put("has_color", true);
+        capabilities.put("has_variable_color_temp", false);
+        fields.product = new LIFXBulb.Product("LIFX Color 1000", "lifx_color_a19", "LIFX", capabilities);
+        fields.lastSeen = Calendar.getInstance();
+        fields.lastSeen.setTimeInMillis(1460000000000L);
+        fields.secLastSeen = 1.5;
+        fields.brightness = 0.5f;
+        fields.powerState = LIFXState.PowerOn;
+        fields.color = new HSBKColor(240, 0.75f, 0.5f, 3500);
+        return fields.toBulb();
+    }
+
+    private static void assertColorEquals(HSBKColor expected, HSBKColor actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.hue(), actual.hue(), Delta);
+        assertEquals(expected.saturation(), actual.saturation(), Delta);
+        assertEquals(expected.brightness(), actual.brightness(), Delta);
+        assertEquals(expected.kelvin(), actual.kelvin());
+        assertEquals(expected.isKelvinEnabled(), actual.isKelvinEnabled());
+    }
+}
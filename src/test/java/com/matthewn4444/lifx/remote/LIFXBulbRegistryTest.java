@@ -0,0 +1,94 @@
+package com.matthewn4444.lifx.remote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LIFXBulbRegistryTest {
+    private static final int Count = 100;
+
+    private LIFXBulbRegistry mBulbs;
+
+    @Before
+    public void setUp() throws IOException {
+        mBulbs = new LIFXBulbRegistry();
+        LIFXBulb[] bulbs = new LIFXBulb[Count];
+        for (int i = 0; i < Count; i++) {
+            bulbs[i] = bulb(i, "Bulb " + i, i % 2 == 0 ? "Even" : "Odd");
+        }
+        mBulbs.replaceAll(bulbs);
+    }
+
+    @Test
+    public void putKeepsPreviousSnapshot() throws IOException {
+        LIFXBulbRegistry.Snapshot before = mBulbs.getSnapshot();
+        LIFXBulb moved = bulb(70, "Moved", "Odd");
+        mBulbs.put(moved);
+
+        LIFXBulbRegistry.Snapshot after = mBulbs.getSnapshot();
+        assertEquals(before.version + 1, after.version);
+        assertSame(moved, after.get(id(70)));
+        assertSame(moved, after.getAll().get(70));
+        assertEquals("Bulb 70", before.get(id(70)).label());
+        assertEquals("Bulb 70", before.getAll().get(70).label());
+        assertEquals(1, before.findByLabel("bulb 70").size());
+        assertTrue(after.findByLabel("bulb 70").isEmpty());
+        assertSame(moved, after.findByLabel("moved").get(0));
+        assertEquals(Count / 2, before.findByGroup("Even").size());
+        assertEquals(Count / 2 - 1, after.findByGroup("Even").size());
+        assertEquals(Count / 2 + 1, after.findByGroup("Odd").size());
+    }
+
+    @Test
+    public void movedBulbIsListedInOrder() throws IOException {
+        mBulbs.put(bulb(4, "Bulb 4", "Odd"));
+        List<LIFXBulb> odd = mBulbs.findByGroup("Odd");
+        assertEquals(id(1), odd.get(0).id());
+        assertEquals(id(3), odd.get(1).id());
+        assertEquals(id(4), odd.get(2).id());
+        assertEquals(id(5), odd.get(3).id());
+    }
+
+    @Test
+    public void addedBulbsGrowTheChunks() throws IOException {
+        LIFXBulbRegistry.Snapshot before = mBulbs.getSnapshot();
+        LIFXBulb[] added = new LIFXBulb[Count];
+        for (int i = 0; i < Count; i++) {
+            added[i] = bulb(Count + i, "Bulb " + (Count + i), "New");
+        }
+        mBulbs.putAll(added);
+
+        assertEquals(Count, before.size());
+        assertEquals(Count * 2, mBulbs.size());
+        assertEquals(Count * 2, mBulbs.getAll().size());
+        assertSame(added[Count - 1], mBulbs.get(id(Count * 2 - 1)));
+        assertEquals(Count, mBulbs.findByGroup("new").size());
+        assertTrue(before.findByGroup("new").isEmpty());
+        assertNull(before.get(id(Count)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void listCannotBeModified() {
+        mBulbs.getAll().set(0, null);
+    }
+
+    private static String id(int i) {
+        return String.format("d073d5%06x", i);
+    }
+
+    private static LIFXBulb bulb(int i, String label, String group) throws IOException {
+        LIFXBulb.Fields fields = new LIFXBulb.Fields();
+        fields.id = id(i);
+        fields.label = label;
+        fields.group = new String[] { group.toLowerCase() + "-id", group };
+        fields.location = new String[] { "home-id", "Home" };
+        return fields.toBulb();
+    }
+}
@@ -0,0 +1,132 @@
+package com.matthewn4444.lifx.remote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LIFXCommandQueueTest {
+    private LIFXBulbRegistry mBulbs;
+    private LIFXCommandQueue mQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        mBulbs = new LIFXBulbRegistry();
+        mBulbs.replaceAll(new LIFXBulb[] {
+                bulb("d073d5000001", "Lamp", "Kitchen"),
+                bulb("d073d5000002", "Ceiling", "Kitchen"),
+                bulb("d073d5000003", "Desk", "Lounge")
+        });
+        mQueue = new LIFXCommandQueue();
+        mQueue.setBulbRegistry(mBulbs);
+    }
+
+    @Test
+    public void groupHoldsBackTheIdsOfItsLights() throws Exception {
+        LIFXCommand group = add("group:Kitchen");
+        LIFXCommand inGroup = add("id:d073d5000001");
+        LIFXCommand other = add("id:d073d5000003");
+
+        assertSame(group, take());
+        assertSame(other, take());
+        assertNull(take());
+        mQueue.finished(group);
+        assertSame(inGroup, take());
+    }
+
+    @Test
+    public void labelHoldsBackItsId() throws Exception {
+        LIFXCommand label = add("label:Lamp");
+        LIFXCommand same = add("id:D073D5000001");
+        LIFXCommand other = add("id:d073d5000002");
+
+        assertSame(label, take());
+        assertSame(other, take());
+        assertNull(take());
+        mQueue.finished(label);
+        assertSame(same, take());
+    }
+
+    @Test
+    public void listOfIdsHoldsBackEachId() throws Exception {
+        LIFXCommand list = add("id:d073d5000001,id:d073d5000002");
+        LIFXCommand second = add("id:d073d5000002");
+        LIFXCommand other = add("id:d073d5000003");
+
+        assertSame(list, take());
+        assertSame(other, take());
+        assertNull(take());
+        mQueue.finished(list);
+        assertSame(second, take());
+    }
+
+    @Test
+    public void unresolvedSelectorHoldsBackEverything() throws Exception {
+        LIFXCommand unknown = add("label:Garage");
+        LIFXCommand other = add("id:d073d5000003");
+
+        assertSame(unknown, take());
+        assertNull(take());
+        mQueue.finished(unknown);
+        assertSame(other, take());
+        mQueue.finished(other);
+
+        // Without the bulbs a group could be any light
+        mQueue.setBulbRegistry(null);
+        LIFXCommand group = add("group:Lounge");
+        other = add("id:d073d5000001");
+        assertSame(group, take());
+        assertNull(take());
+    }
+
+    @Test
+    public void stateIsNotMergedPastGroupOfItsLight() throws Exception {
+        mQueue.setCoalescing(true);
+        add("id:d073d5000001");
+        add("group:Kitchen");
+        add("id:d073d5000001");
+        assertEquals(3, mQueue.size());
+
+        // Lights of another group are skipped over
+        add("group:Lounge");
+        add("id:d073d5000001");
+        assertEquals(4, mQueue.size());
+    }
+
+    @Test
+    public void mergedStateKeepsRetries() throws Exception {
+        mQueue.setCoalescing(true);
+        LIFXCommand pending = add("id:d073d5000001");
+        pending.retries = 2;
+        add("id:d073d5000001");
+
+        assertEquals(1, mQueue.size());
+        assertEquals(2, take().retries);
+    }
+
+    private LIFXCommand add(String selector) {
+        LIFXCommand command = new LIFXCommand(LIFXCommand.SetState, new LIFXState[] {
+                new LIFXState(selector, LIFXState.PowerOn, null, LIFXState.BrightnessNoChange, 0)
+        });
+        assertNull(mQueue.add(command));
+        return command;
+    }
+
+    private LIFXCommand take() throws InterruptedException {
+        return mQueue.poll(0, TimeUnit.MILLISECONDS);
+    }
+
+    private static LIFXBulb bulb(String id, String label, String group) throws IOException {
+        LIFXBulb.Fields fields = new LIFXBulb.Fields();
+        fields.id = id;
+        fields.label = label;
+        fields.group = new String[] { group.toLowerCase() + "-id", group };
+        fields.location = new String[] { "home-id", "Home" };
+        return fields.toBulb();
+    }
+}